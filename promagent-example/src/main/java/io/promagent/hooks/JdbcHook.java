@@ -17,6 +17,7 @@ package io.promagent.hooks;
 import io.promagent.annotations.After;
 import io.promagent.annotations.Before;
 import io.promagent.annotations.Hook;
+import io.promagent.hookcontext.LabelHandles;
 import io.promagent.hookcontext.MetricDef;
 import io.promagent.hookcontext.MetricsStore;
 import io.prometheus.client.Counter;
@@ -33,22 +34,22 @@ import static io.promagent.hooks.HttpContext.HTTP_PATH;
 })
 public class JdbcHook {
 
-    private final Counter sqlQueriesTotal;
-    private final Summary sqlQueriesDuration;
+    private final LabelHandles<Counter.Child> sqlQueriesTotal;
+    private final LabelHandles<Summary.Child> sqlQueriesDuration;
     private long startTime = 0;
 
     public JdbcHook(MetricsStore metricsStore) {
 
-        sqlQueriesTotal = metricsStore.createOrGet(new MetricDef<>(
+        sqlQueriesTotal = metricsStore.labelHandles(metricsStore.createOrGet(new MetricDef<>(
                 "sql_queries_total",
                 (name, registry) -> Counter.build()
                         .name(name)
                         .labelNames("method", "path", "query")
                         .help("Total number of sql queries.")
                         .register(registry)
-        ));
+        )));
 
-        sqlQueriesDuration = metricsStore.createOrGet(new MetricDef<>(
+        sqlQueriesDuration = metricsStore.labelHandles(metricsStore.createOrGet(new MetricDef<>(
                 "sql_query_duration",
                 (name, registry) -> Summary.build()
                         .quantile(0.5, 0.05)   // Add 50th percentile (= median) with 5% tolerated error
@@ -58,7 +59,7 @@ public class JdbcHook {
                         .labelNames("method", "path", "query")
                         .help("Duration for serving the sql queries in seconds.")
                         .register(registry)
-        ));
+        )));
     }
 
     private String stripValues(String query) {
@@ -110,8 +111,8 @@ public class JdbcHook {
         String method = HttpContext.get(HTTP_METHOD).orElse("no http context");
         String path = HttpContext.get(HTTP_PATH).orElse("no http context");
         String query = stripValues(sql);
-        sqlQueriesTotal.labels(method, path, query).inc();
-        sqlQueriesDuration.labels(method, path, query).observe(duration);
+        sqlQueriesTotal.get(method, path, query).inc();
+        sqlQueriesDuration.get(method, path, query).observe(duration);
     }
 
     @After(method = {"execute", "executeUpdate", "executeLargeUpdate", "prepareStatement"})
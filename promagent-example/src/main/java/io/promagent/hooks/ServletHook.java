@@ -17,6 +17,7 @@ package io.promagent.hooks;
 import io.promagent.annotations.After;
 import io.promagent.annotations.Before;
 import io.promagent.annotations.Hook;
+import io.promagent.hookcontext.LabelHandles;
 import io.promagent.hookcontext.MetricDef;
 import io.promagent.hookcontext.MetricsStore;
 import io.prometheus.client.Counter;
@@ -37,22 +38,22 @@ import static io.promagent.hooks.HttpContext.HTTP_PATH;
 })
 public class ServletHook {
 
-    private final Counter httpRequestsTotal;
-    private final Summary httpRequestsDuration;
+    private final LabelHandles<Counter.Child> httpRequestsTotal;
+    private final LabelHandles<Summary.Child> httpRequestsDuration;
     private long startTime = 0;
 
     public ServletHook(MetricsStore metricsStore) {
 
-        httpRequestsTotal = metricsStore.createOrGet(new MetricDef<>(
+        httpRequestsTotal = metricsStore.labelHandles(metricsStore.createOrGet(new MetricDef<>(
                 "http_requests_total",
                 (name, registry) -> Counter.build()
                         .name(name)
                         .labelNames("method", "path", "status")
                         .help("Total number of http requests.")
                         .register(registry)
-        ));
+        )));
 
-        httpRequestsDuration = metricsStore.createOrGet(new MetricDef<>(
+        httpRequestsDuration = metricsStore.labelHandles(metricsStore.createOrGet(new MetricDef<>(
                 "http_request_duration",
                 (name, registry) -> Summary.build()
                         .quantile(0.5, 0.05)   // Add 50th percentile (= median) with 5% tolerated error
@@ -62,7 +63,7 @@ public class ServletHook {
                         .labelNames("method", "path", "status")
                         .help("Duration for serving the http requests in seconds.")
                         .register(registry)
-        ));
+        )));
     }
 
     private String stripPathParameters(String path) {
@@ -110,8 +111,8 @@ public class ServletHook {
                 double duration = ((double) System.nanoTime() - startTime) / (double) TimeUnit.SECONDS.toNanos(1L);
                 String method = HttpContext.get(HTTP_METHOD).get();
                 String path = HttpContext.get(HTTP_PATH).get();
-                httpRequestsTotal.labels(method, path, Integer.toString(resp.getStatus())).inc();
-                httpRequestsDuration.labels(method, path, Integer.toString(resp.getStatus())).observe(duration);
+                httpRequestsTotal.get(method, path, Integer.toString(resp.getStatus())).inc();
+                httpRequestsDuration.get(method, path, Integer.toString(resp.getStatus())).observe(duration);
             } finally {
                 HttpContext.clear(HTTP_METHOD, HTTP_PATH);
             }
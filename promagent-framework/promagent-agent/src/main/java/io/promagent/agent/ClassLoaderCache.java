@@ -14,13 +14,13 @@
 
 package io.promagent.agent;
 
+import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * ClassLoaderCache stores the class loaders used for loading the Promagent modules,
@@ -34,19 +34,36 @@ import java.util.Map;
  * When {@link #currentClassLoader()} is called for the first time within a class loader context,
  * a new {@link PerDeploymentClassLoader} is created on the fly.
  * Repeated calls in the same context yield the same {@link PerDeploymentClassLoader}.
+ * <p/>
+ * {@link #currentClassLoader()} is called for each intercepted method call, so the read path is lock-free:
+ * The cache is a copy-on-write array that is scanned without synchronization. There are only a few deployments
+ * in an application server, so the array is small. Only creating a new {@link PerDeploymentClassLoader} is synchronized.
+ * <p/>
+ * The cache does not prevent undeployed class loaders from being garbage collected:
+ * Both the context class loader and the {@link PerDeploymentClassLoader} are weakly referenced,
+ * and the {@link PerDeploymentClassLoader} references the context class loader only weakly, too.
+ * The instrumented classes' dispatch tables and the threads' recycled hook instances reference the hook classes only weakly,
+ * because the instrumented classes and the threads may belong to the application server and outlive the deployment.
+ * So the {@link PerDeploymentClassLoader} is only kept alive while its hooks are running. If it is garbage collected
+ * while the deployment is still running, a new one is created on the next call, and the hooks are resolved again.
+ * Entries that were garbage collected are removed whenever a new entry is added.
  */
 public class ClassLoaderCache {
 
     private static ClassLoaderCache instance;
 
-    // TODO: The cache does not free class loaders when applications are undeployed. Maybe use WeakHashMap?
-    private final Map<ClassLoader, PerDeploymentClassLoader> cache = new HashMap<>();
+    private volatile Entry[] cache = new Entry[0]; // copy-on-write, modified only in createClassLoader()
+    private volatile PerDeploymentClassLoader forBootstrapContext; // for threads where the context class loader is null
     private final URLClassLoader sharedClassLoader; // shared across multiple deployments
     private final List<Path> perDeploymentJars; // one class loader for each deployment for these JARs
 
     private ClassLoaderCache(JarFiles jarFiles) {
-        sharedClassLoader = new URLClassLoader(pathsToURLs(jarFiles.getSharedJars()));
-        perDeploymentJars = jarFiles.getPerDeploymentJars();
+        this(jarFiles.getSharedJars(), jarFiles.getPerDeploymentJars());
+    }
+
+    ClassLoaderCache(List<Path> sharedJars, List<Path> perDeploymentJars) {
+        this.sharedClassLoader = new URLClassLoader(pathsToURLs(sharedJars));
+        this.perDeploymentJars = perDeploymentJars;
     }
 
     public static synchronized ClassLoaderCache getInstance() {
@@ -60,12 +77,62 @@ public class ClassLoaderCache {
         return perDeploymentJars;
     }
 
-    public synchronized ClassLoader currentClassLoader() {
+    public ClassLoader currentClassLoader() {
         ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
-        if (! cache.containsKey(contextClassLoader)) {
-            cache.put(contextClassLoader, new PerDeploymentClassLoader(pathsToURLs(perDeploymentJars), sharedClassLoader, contextClassLoader));
+        if (contextClassLoader == null) {
+            PerDeploymentClassLoader result = forBootstrapContext;
+            return result != null ? result : createClassLoader(null);
+        }
+        for (Entry entry : cache) {
+            if (entry.contextClassLoader.get() == contextClassLoader) {
+                PerDeploymentClassLoader result = entry.perDeploymentClassLoader.get();
+                if (result != null) {
+                    return result;
+                }
+            }
         }
-        return cache.get(contextClassLoader);
+        return createClassLoader(contextClassLoader);
+    }
+
+    private synchronized ClassLoader createClassLoader(ClassLoader contextClassLoader) {
+        if (contextClassLoader == null) {
+            if (forBootstrapContext == null) {
+                forBootstrapContext = newPerDeploymentClassLoader(null);
+            }
+            return forBootstrapContext;
+        }
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : cache) {
+            ClassLoader key = entry.contextClassLoader.get();
+            PerDeploymentClassLoader value = entry.perDeploymentClassLoader.get();
+            if (key == contextClassLoader && value != null) {
+                return value; // created by another thread in the meantime
+            }
+            if (key != null && value != null) {
+                entries.add(entry);
+            }
+        }
+        PerDeploymentClassLoader result = newPerDeploymentClassLoader(contextClassLoader);
+        entries.add(new Entry(contextClassLoader, result));
+        cache = entries.toArray(new Entry[0]);
+        return result;
+    }
+
+    private PerDeploymentClassLoader newPerDeploymentClassLoader(ClassLoader contextClassLoader) {
+        return new PerDeploymentClassLoader(pathsToURLs(perDeploymentJars), sharedClassLoader, contextClassLoader);
+    }
+
+    /**
+     * Number of cached class loaders that are not garbage collected yet (for testing).
+     */
+    int size() {
+        int result = 0;
+        for (Entry entry : cache) {
+            if (entry.contextClassLoader.get() != null && entry.perDeploymentClassLoader.get() != null) {
+                result++;
+            }
+        }
+        return result;
     }
 
     private static URL[] pathsToURLs(List<Path> paths) {
@@ -79,4 +146,14 @@ public class ClassLoaderCache {
             throw new RuntimeException(e);
         }
     }
+
+    private static class Entry {
+        final WeakReference<ClassLoader> contextClassLoader;
+        final WeakReference<PerDeploymentClassLoader> perDeploymentClassLoader;
+
+        private Entry(ClassLoader contextClassLoader, PerDeploymentClassLoader perDeploymentClassLoader) {
+            this.contextClassLoader = new WeakReference<>(contextClassLoader);
+            this.perDeploymentClassLoader = new WeakReference<>(perDeploymentClassLoader);
+        }
+    }
 }
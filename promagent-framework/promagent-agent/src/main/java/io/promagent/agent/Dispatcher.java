@@ -0,0 +1,35 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.agent;
+
+/**
+ * The Dispatcher is called from the Byte Buddy advice in the instrumented code, see {@link DispatcherBridge}.
+ * <p/>
+ * It is implemented by <tt>io.promagent.internal.Delegator</tt>, which is loaded through the agent's own class loader
+ * and is therefore not visible from the instrumented code. This interface is loaded from the system class loader,
+ * so it is visible from both sides.
+ */
+public interface Dispatcher {
+
+    /**
+     * Returns the hooks to be passed on to {@link #after(Object, Object[], Object, Throwable)}.
+     * <p/>
+     * The dispatchId identifies the intercepted method. It is assigned when the intercepted class is transformed
+     * and embedded as a constant in the instrumented code.
+     */
+    Object before(Class<?> interceptedClass, int dispatchId, Object[] args);
+
+    void after(Object hooks, Object[] args, Object returned, Throwable thrown);
+}
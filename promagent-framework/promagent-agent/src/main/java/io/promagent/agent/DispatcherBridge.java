@@ -0,0 +1,77 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.agent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Static entry point for the Byte Buddy advice.
+ * <p/>
+ * The <tt>io.promagent.internal.Delegator</tt> registers itself once when the agent starts, and the advice calls the static methods of this class directly.
+ * <p/>
+ * The Delegator is loaded from the class loader shared across all deployments, so there is only one
+ * {@link Dispatcher} for the whole JVM.
+ * <p/>
+ * Exceptions thrown by hooks are handled in the Delegator. If the Delegator itself throws an exception anyway,
+ * it is caught here, so that the instrumented method is not affected. These exceptions are logged at most once per minute.
+ */
+public final class DispatcherBridge {
+
+    private static final long LOG_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static volatile Dispatcher dispatcher;
+    private static final AtomicLong lastLog = new AtomicLong(System.nanoTime() - LOG_INTERVAL_NANOS);
+    private static final AtomicLong suppressed = new AtomicLong(); // number of errors not logged since the last message
+
+    private DispatcherBridge() {}
+
+    public static void register(Dispatcher dispatcher) {
+        DispatcherBridge.dispatcher = dispatcher;
+    }
+
+    public static Object before(Class<?> interceptedClass, int dispatchId, Object[] args) {
+        Dispatcher current = dispatcher;
+        try {
+            return current == null ? null : current.before(interceptedClass, dispatchId, args);
+        } catch (Throwable t) {
+            logError(t);
+            return null;
+        }
+    }
+
+    public static void after(Object hooks, Object[] args, Object returned, Throwable thrown) {
+        Dispatcher current = dispatcher;
+        try {
+            if (current != null) {
+                current.after(hooks, args, returned, thrown);
+            }
+        } catch (Throwable t) {
+            logError(t);
+        }
+    }
+
+    private static void logError(Throwable t) {
+        long last = lastLog.get();
+        long now = System.nanoTime();
+        if (now - last < LOG_INTERVAL_NANOS || !lastLog.compareAndSet(last, now)) {
+            suppressed.incrementAndGet();
+            return;
+        }
+        long nSuppressed = suppressed.getAndSet(0);
+        System.err.println("Promagent: Error executing hooks" + (nSuppressed == 0 ? "" : " (" + nSuppressed + " more errors since the last message)") + ":");
+        t.printStackTrace();
+    }
+}
@@ -15,6 +15,7 @@
 package io.promagent.agent;
 
 import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.net.URL;
 import java.net.URLClassLoader;
 
@@ -26,14 +27,20 @@ import java.net.URLClassLoader;
  * <p/>
  * However, loading shared classes like the Prometheus client library is delegated to the {@link #sharedClassLoader},
  * because the Prometheus metric registry should be accessible across all deployments within an application server.
+ * <p/>
+ * The deployment's class loader is not used as parent class loader, because the parent is a strong reference and
+ * would prevent the deployment's class loader from being garbage collected after undeployment.
+ * Instead, it is referenced weakly and delegation is implemented in {@link #loadClass(String)}.
  */
 class PerDeploymentClassLoader extends URLClassLoader {
 
     private final URLClassLoader sharedClassLoader; // for loading the Prometheus client library
+    private final WeakReference<ClassLoader> deploymentClassLoader; // null referent means bootstrap class loader
 
-    PerDeploymentClassLoader(URL[] perDeploymentJars, URLClassLoader sharedClassLoader, ClassLoader parent) {
-        super(perDeploymentJars, parent);
+    PerDeploymentClassLoader(URL[] perDeploymentJars, URLClassLoader sharedClassLoader, ClassLoader deploymentClassLoader) {
+        super(perDeploymentJars, null);
         this.sharedClassLoader = sharedClassLoader;
+        this.deploymentClassLoader = new WeakReference<>(deploymentClassLoader);
     }
 
     @Override
@@ -41,10 +48,28 @@ class PerDeploymentClassLoader extends URLClassLoader {
         try {
             return sharedClassLoader.loadClass(name); // The Prometheus client library should all have the same initiating loader across deployments.
         } catch (ClassNotFoundException e) {
+            ClassLoader deployment = deploymentClassLoader.get();
+            if (deployment != null) {
+                try {
+                    return deployment.loadClass(name); // Parent first, like with a regular parent class loader.
+                } catch (ClassNotFoundException e2) {
+                    // Not found in the deployment, try the per-deployment JARs.
+                }
+            }
             return super.loadClass(name); // Hooks should have different initiating loaders if the context loader differs.
         }
     }
 
+    @Override
+    public URL getResource(String name) {
+        ClassLoader deployment = deploymentClassLoader.get();
+        URL result = deployment != null ? deployment.getResource(name) : null;
+        if (result == null) {
+            result = super.getResource(name);
+        }
+        return result;
+    }
+
     // Called by Byte buddy to load the PromagentAdvice.
     @Override
     public InputStream getResourceAsStream(String name) {
@@ -0,0 +1,64 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClassLoaderCacheTest {
+
+    private final ClassLoaderCache classLoaderCache = new ClassLoaderCache(Collections.emptyList(), Collections.emptyList());
+
+    @Test
+    void testSameContextSameClassLoader() {
+        ClassLoader context1 = new URLClassLoader(new URL[0]);
+        ClassLoader context2 = new URLClassLoader(new URL[0]);
+        ClassLoader result1 = withContextClassLoader(context1, classLoaderCache::currentClassLoader);
+        ClassLoader result2 = withContextClassLoader(context2, classLoaderCache::currentClassLoader);
+        assertNotSame(result1, result2);
+        assertSame(result1, withContextClassLoader(context1, classLoaderCache::currentClassLoader));
+        assertSame(result2, withContextClassLoader(context2, classLoaderCache::currentClassLoader));
+        assertSame(withContextClassLoader(null, classLoaderCache::currentClassLoader), withContextClassLoader(null, classLoaderCache::currentClassLoader));
+        assertEquals(2, classLoaderCache.size());
+    }
+
+    @Test
+    void testUndeployedClassLoadersAreEvicted() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            withContextClassLoader(new URLClassLoader(new URL[0]), classLoaderCache::currentClassLoader);
+        }
+        for (int i = 0; i < 100 && classLoaderCache.size() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(0, classLoaderCache.size());
+    }
+
+    private static <T> T withContextClassLoader(ClassLoader contextClassLoader, Supplier<T> supplier) {
+        ClassLoader original = Thread.currentThread().getContextClassLoader();
+        try {
+            Thread.currentThread().setContextClassLoader(contextClassLoader);
+            return supplier.get();
+        } finally {
+            Thread.currentThread().setContextClassLoader(original);
+        }
+    }
+}
@@ -39,7 +39,56 @@ public @interface Hook {
      * In most cases, you would only be interested in the outer call, so the default is {@code true}.
      * If set to {@code false}, nested calls will also be instrumented.
      * For nested calls, the same Hook instance is re-used.
-     * For outer calls, a new Hook instance is created.
+     * For outer calls, the Hook instance is obtained as defined by {@link #scope()}.
      */
     boolean skipNestedCalls() default true;
+
+    /**
+     * Defines how Hook instances are created for outer calls, see {@link Scope}.
+     * The default is {@link Scope#PER_CALL}.
+     */
+    Scope scope() default Scope.PER_CALL;
+
+    /**
+     * If greater than 1, the Hook is only called for one out of <tt>sampleEvery</tt> outer calls.
+     * For the outer calls that are not sampled, no Hook instance is created and no Hook method is called,
+     * neither for the outer call nor for its nested calls.
+     * The sampling decision is made with a counter per thread, so the outer calls of each thread are sampled
+     * evenly, but calls that follow a regular pattern might always be sampled or never be sampled.
+     * The default is {@code 1}, i.e. all calls are instrumented.
+     */
+    int sampleEvery() default 1;
+
+    /**
+     * If true, the values of counters, summaries, and histograms created by this Hook via the
+     * {@link io.promagent.hookcontext.MetricsStore} are multiplied by the effective sampling rate when they are exposed,
+     * so that they approximate the totals of all calls. Gauges and quantiles are not scaled.
+     * The effective sampling rate is {@link #sampleEvery()} multiplied with the throttle factor of the agent's overhead governor,
+     * which is 1 unless the agent is started with {@code overheadBudget}.
+     * When the throttle factor changes, the values recorded up to then keep the previous factor,
+     * and only what is recorded afterwards is multiplied with the new one, so scaled counters don't jump or decrease.
+     * The default is {@code false}, i.e. the metrics show the values of the sampled calls.
+     */
+    boolean scaleSampledMetrics() default false;
+
+    enum Scope {
+
+        /**
+         * A new Hook instance is created for each outer call.
+         */
+        PER_CALL,
+
+        /**
+         * Each thread has its own Hook instance, which is re-used for all outer calls in that thread.
+         * When an outer call is finished, the Hook's method annotated with {@link Reset} is called (if present),
+         * so the instance can clear its state before it is re-used.
+         * Between outer calls, the instance is only weakly referenced, so if it is garbage collected, a new instance is created.
+         */
+        PER_THREAD,
+
+        /**
+         * A single Hook instance is shared across all threads. The Hook must be thread-safe.
+         */
+        SINGLETON
+    }
 }
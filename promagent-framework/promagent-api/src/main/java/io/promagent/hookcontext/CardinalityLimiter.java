@@ -0,0 +1,81 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.hookcontext;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of label combinations per metric, so that labels with unexpected values, like request paths or SQL queries,
+ * cannot make the registry grow without bounds.
+ * <p/>
+ * The limit is enforced by {@link LabelHandles}: When a metric has reached its limit, new label combinations are mapped to
+ * the child where all labels have the value {@value #OVERFLOW}. Each lookup mapped to that child is counted in
+ * <tt>promagent_label_overflow_lookups_total{metric="..."}</tt>, so the counter shows how much traffic is recorded in the
+ * overflow series, not how many distinct label combinations were dropped. Existing label combinations continue to work.
+ * The limit can be set per metric with {@link MetricDef#MetricDef(String, java.util.function.BiFunction, int)},
+ * otherwise the default limit of this {@link CardinalityLimiter} applies.
+ * <p/>
+ * The Promagent framework registers the {@link CardinalityLimiter} with the registry, so that the overflow counts are exposed.
+ */
+public class CardinalityLimiter extends Collector {
+
+    public static final String OVERFLOW = "__overflow__";
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final int defaultMaxCardinality;
+    private final ConcurrentMap<String, LongAdder> overflows = new ConcurrentHashMap<>();
+
+    /**
+     * @param defaultMaxCardinality Maximum number of label combinations for metrics that don't define their own limit,
+     *                              or {@link #UNLIMITED}.
+     */
+    public CardinalityLimiter(int defaultMaxCardinality) {
+        if (defaultMaxCardinality < 1) {
+            throw new IllegalArgumentException("maxCardinality must be at least 1, but is " + defaultMaxCardinality + ".");
+        }
+        this.defaultMaxCardinality = defaultMaxCardinality;
+    }
+
+    int getMaxCardinality(MetricDef<?> metricDef) {
+        return metricDef.getMaxCardinality() > 0 ? metricDef.getMaxCardinality() : defaultMaxCardinality;
+    }
+
+    int getDefaultMaxCardinality() {
+        return defaultMaxCardinality;
+    }
+
+    LongAdder getOverflowCounter(String metricName) {
+        return overflows.computeIfAbsent(metricName, name -> new LongAdder());
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        CounterMetricFamily overflowTotal = new CounterMetricFamily("promagent_label_overflow_lookups_total",
+                "Number of label lookups mapped to the " + OVERFLOW + " series because the metric reached its cardinality limit.",
+                Collections.singletonList("metric"));
+        for (Map.Entry<String, LongAdder> entry : overflows.entrySet()) {
+            overflowTotal.addMetric(Collections.singletonList(entry.getKey()), entry.getValue().sum());
+        }
+        return Collections.singletonList(overflowTotal);
+    }
+}
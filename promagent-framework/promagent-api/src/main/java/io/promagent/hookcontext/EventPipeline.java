@@ -0,0 +1,256 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.hookcontext;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Counter;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.Summary;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records metrics asynchronously: Hooks publish events to a pre-allocated ring buffer, and a single background thread
+ * applies them to the metrics. That way, the Hook only pays for claiming a slot in the ring buffer, while the metric updates,
+ * like the quantile streams of a {@link Summary}, run in the background thread without contention.
+ * <pre>
+ * EventPipeline eventPipeline = metricsStore.eventPipeline();
+ * ...
+ * eventPipeline.observe(httpRequestsDuration.get(method, path, status), duration);
+ * </pre>
+ * An event is the child of the metric, i.e. the metric and its label values as resolved by {@link LabelHandles},
+ * the operation, and the value. The ring buffer is a bounded multi-producer single-consumer queue: Producers claim a slot
+ * with a CAS on the tail, and publish it with an ordered write of the slot's sequence number. Nothing is allocated per event.
+ * <p/>
+ * When the ring buffer is full, the {@link Backpressure} policy decides whether the event is dropped and counted,
+ * or whether the Hook waits until there is space. The queue depth, the number of processed events, and the number of
+ * dropped events are exposed as metrics.
+ * <p/>
+ * Events are applied with a small delay, so a scrape may not include the most recent events.
+ */
+public class EventPipeline extends Collector {
+
+    public enum Backpressure {
+        /** Drop events when the ring buffer is full, and count them in <tt>promagent_events_dropped_total</tt>. */
+        DROP,
+        /** Wait until there is space in the ring buffer. */
+        BLOCK
+    }
+
+    public static final int MAX_CAPACITY = 1 << 30;
+
+    private static final byte INC = 0;
+    private static final byte OBSERVE_SUMMARY = 1;
+    private static final byte OBSERVE_HISTOGRAM = 2;
+    private static final byte OBSERVE_LOG_LINEAR_HISTOGRAM = 3;
+    private static final int BATCH_SIZE = 1024;
+    private static final long MIN_IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    private final Backpressure backpressure;
+    private final int mask;
+    private final AtomicLongArray sequences; // for position p in the slot p & mask: p means free for the producer, p + 1 means published
+    private final Object[] targets;
+    private final byte[] operations;
+    private final double[] values;
+    private final AtomicLong tail = new AtomicLong(); // next slot to be claimed by a producer
+    private final AtomicLong head = new AtomicLong(); // next slot to be consumed, only written by the consumer
+    private final LongAdder dropped = new LongAdder();
+    private volatile Thread consumer;
+    private volatile boolean idle; // true while the consumer is parked or about to park, only written by the consumer
+
+    /**
+     * @param capacity Number of events in the ring buffer, will be rounded up to the next power of two.
+     */
+    public EventPipeline(int capacity, Backpressure backpressure) {
+        if (capacity < 1 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30, but is " + capacity + ".");
+        }
+        int size = Integer.highestOneBit(capacity * 2 - 1);
+        this.backpressure = backpressure;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.targets = new Object[size];
+        this.operations = new byte[size];
+        this.values = new double[size];
+    }
+
+    /**
+     * Start the background thread applying the events. Calling this more than once has no effect.
+     */
+    public synchronized void start() {
+        if (consumer == null) {
+            consumer = new Thread(this::run, "promagent-event-pipeline");
+            consumer.setDaemon(true);
+            consumer.start();
+        }
+    }
+
+    public void inc(Counter.Child counter) {
+        publish(counter, INC, 1);
+    }
+
+    public void inc(Counter.Child counter, double amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Amount to increment must be non-negative.");
+        }
+        publish(counter, INC, amount);
+    }
+
+    public void observe(Summary.Child summary, double value) {
+        publish(summary, OBSERVE_SUMMARY, value);
+    }
+
+    public void observe(Histogram.Child histogram, double value) {
+        publish(histogram, OBSERVE_HISTOGRAM, value);
+    }
+
+    public void observe(LogLinearHistogram.Child histogram, double value) {
+        publish(histogram, OBSERVE_LOG_LINEAR_HISTOGRAM, value);
+    }
+
+    private void publish(Object target, byte operation, double value) {
+        while (!offer(target, operation, value)) {
+            if (backpressure == Backpressure.DROP) {
+                dropped.increment();
+                return;
+            }
+            LockSupport.unpark(consumer); // don't wait for the consumer's idle timeout
+            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+        }
+        if (idle) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Returns false if the ring buffer is full.
+     */
+    boolean offer(Object target, byte operation, double value) {
+        while (true) {
+            long t = tail.get();
+            int index = (int) t & mask;
+            long available = sequences.get(index) - t;
+            if (available == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    targets[index] = target;
+                    operations[index] = operation;
+                    values[index] = value;
+                    sequences.lazySet(index, t + 1); // publish
+                    return true;
+                }
+            } else if (available < 0) {
+                return false; // the slot still holds an event from the previous round
+            }
+            // otherwise another producer claimed the slot, try again
+        }
+    }
+
+    /**
+     * Apply up to maxEvents events, and return the number of events applied. Only called by the consumer thread.
+     */
+    int drain(int maxEvents) {
+        long h = head.get();
+        int n = 0;
+        while (n < maxEvents) {
+            int index = (int) h & mask;
+            if (sequences.get(index) != h + 1) {
+                break; // not published yet
+            }
+            Object target = targets[index];
+            byte operation = operations[index];
+            double value = values[index];
+            targets[index] = null;
+            sequences.lazySet(index, h + mask + 1); // free for the next round
+            h++;
+            n++;
+            try {
+                apply(target, operation, value);
+            } catch (Throwable t) {
+                // The event is lost, but the pipeline keeps running.
+                System.err.println("Promagent: Failed to apply a metric event: " + t);
+            }
+        }
+        head.lazySet(h);
+        return n;
+    }
+
+    private static void apply(Object target, byte operation, double value) {
+        switch (operation) {
+            case INC:
+                ((Counter.Child) target).inc(value);
+                break;
+            case OBSERVE_SUMMARY:
+                ((Summary.Child) target).observe(value);
+                break;
+            case OBSERVE_HISTOGRAM:
+                ((Histogram.Child) target).observe(value);
+                break;
+            case OBSERVE_LOG_LINEAR_HISTOGRAM:
+                ((LogLinearHistogram.Child) target).observe(value);
+                break;
+            default:
+                throw new IllegalStateException("Unknown operation " + operation + ".");
+        }
+    }
+
+    /**
+     * When there are no events, the consumer parks until a producer unparks it. Producers only unpark the consumer
+     * if they see the idle flag, so the consumer checks for events again after setting the flag. As the publishing write is ordered
+     * but not volatile, a producer may still miss the flag, so the consumer also wakes up after a timeout, which doubles up to
+     * {@link #MAX_IDLE_PARK_NANOS} while there are no events.
+     */
+    private void run() {
+        long idleParkNanos = MIN_IDLE_PARK_NANOS;
+        while (!Thread.currentThread().isInterrupted()) {
+            if (drain(BATCH_SIZE) > 0) {
+                idleParkNanos = MIN_IDLE_PARK_NANOS;
+                continue;
+            }
+            idle = true;
+            if (drain(BATCH_SIZE) == 0) {
+                LockSupport.parkNanos(this, idleParkNanos);
+                idleParkNanos = Math.min(2 * idleParkNanos, MAX_IDLE_PARK_NANOS);
+            }
+            idle = false;
+        }
+    }
+
+    long getDepth() {
+        return Math.max(0, tail.get() - head.get());
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        return Arrays.asList(
+                new GaugeMetricFamily("promagent_event_queue_depth", "Number of metric events waiting to be applied.", getDepth()),
+                new GaugeMetricFamily("promagent_event_queue_capacity", "Size of the ring buffer for metric events.", mask + 1),
+                new CounterMetricFamily("promagent_events_processed_total", "Number of metric events applied.", head.get()),
+                new CounterMetricFamily("promagent_events_dropped_total", "Number of metric events dropped because the ring buffer was full.", dropped.sum())
+        );
+    }
+}
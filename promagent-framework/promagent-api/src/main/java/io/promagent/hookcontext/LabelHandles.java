@@ -0,0 +1,213 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.hookcontext;
+
+import io.prometheus.client.SimpleCollector;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache for the children of a labeled metric, so that hooks don't need to call {@link SimpleCollector#labels(String...)} on each call.
+ * <p/>
+ * {@link SimpleCollector#labels(String...)} allocates a varargs array and a label list, and looks up the child in a
+ * {@link java.util.concurrent.ConcurrentHashMap}. A {@link LabelHandles} keeps the most recently used children in a small per-thread
+ * LRU cache, so for the hot label combinations a child is found by comparing the label values with the cached values,
+ * without any allocation. Use the fixed-arity <tt>get()</tt> methods for up to three labels to avoid the varargs array:
+ * <pre>
+ * LabelHandles&lt;Counter.Child&gt; httpRequestsTotal = metricsStore.labelHandles(counter);
+ * ...
+ * httpRequestsTotal.get(method, path, status).inc();
+ * </pre>
+ * Get instances with {@link MetricsStore#labelHandles(SimpleCollector)}, so that the cache is shared by all hook instances.
+ * Cached children are not updated when children are removed from the metric with {@link SimpleCollector#remove(String...)}
+ * or {@link SimpleCollector#clear()}, so these should not be used with {@link LabelHandles}.
+ * <p/>
+ * New label combinations are only created up to the metric's cardinality limit, after that the {@value CardinalityLimiter#OVERFLOW}
+ * child is returned, see {@link CardinalityLimiter}. Once the limit is reached, new label combinations are mapped to the overflow child
+ * without taking a lock, and the mapping is cached per thread like any other child, so that a flood of unexpected label values
+ * doesn't serialize the calling threads. Each lookup returning the overflow child is counted, whether it is cached or not.
+ * Children created with {@link SimpleCollector#labels(String...)} directly are not limited.
+ */
+public class LabelHandles<Child> {
+
+    static final int CACHE_SIZE = 16; // per thread
+
+    private final SimpleCollector<Child> metric;
+    private final ThreadLocal<Cache<Child>> cache = ThreadLocal.withInitial(Cache::new);
+    private final int maxCardinality;
+    private final LongAdder overflows;
+    private final Map<List<String>, Child> children = new ConcurrentHashMap<>(); // label combinations created by this LabelHandles
+    private volatile Child overflow; // created when the limit is reached for the first time
+
+    LabelHandles(SimpleCollector<Child> metric, int maxCardinality, LongAdder overflows) {
+        this.metric = metric;
+        this.maxCardinality = maxCardinality;
+        this.overflows = overflows;
+    }
+
+    public Child get(String label) {
+        Cache<Child> c = cache.get();
+        for (int i = 0; i < c.size; i++) {
+            String[] labels = c.labels[i];
+            if (labels.length == 1 && labels[0].equals(label)) {
+                return hit(c, i);
+            }
+        }
+        return miss(c, new String[]{label});
+    }
+
+    public Child get(String label1, String label2) {
+        Cache<Child> c = cache.get();
+        for (int i = 0; i < c.size; i++) {
+            String[] labels = c.labels[i];
+            if (labels.length == 2 && labels[0].equals(label1) && labels[1].equals(label2)) {
+                return hit(c, i);
+            }
+        }
+        return miss(c, new String[]{label1, label2});
+    }
+
+    public Child get(String label1, String label2, String label3) {
+        Cache<Child> c = cache.get();
+        for (int i = 0; i < c.size; i++) {
+            String[] labels = c.labels[i];
+            if (labels.length == 3 && labels[0].equals(label1) && labels[1].equals(label2) && labels[2].equals(label3)) {
+                return hit(c, i);
+            }
+        }
+        return miss(c, new String[]{label1, label2, label3});
+    }
+
+    public Child get(String... labelValues) {
+        Cache<Child> c = cache.get();
+        for (int i = 0; i < c.size; i++) {
+            if (equals(c.labels[i], labelValues)) {
+                return hit(c, i);
+            }
+        }
+        return miss(c, labelValues.clone());
+    }
+
+    /**
+     * Look up the child in the shared map, or create it if the limit is not reached yet.
+     * The labelValues array is owned by the caller, so it can be used as a cache key.
+     */
+    private Child miss(Cache<Child> c, String[] labelValues) {
+        Child child = children.get(Arrays.asList(labelValues));
+        if (child == null) {
+            // Checked without the lock first, so that threads looking up new label combinations after the limit
+            // is reached don't wait for each other. create() checks again, so concurrent misses cannot exceed the limit.
+            if (children.size() < maxCardinality) {
+                child = create(labelValues);
+            }
+            if (child == null) {
+                overflows.increment();
+                return c.add(labelValues, getOverflow(labelValues.length), true);
+            }
+        }
+        return c.add(labelValues, child, false);
+    }
+
+    private Child hit(Cache<Child> c, int i) {
+        if (c.overflow[i]) {
+            overflows.increment();
+        }
+        return c.hit(i);
+    }
+
+    /**
+     * Returns null if the limit is reached. Synchronized so that concurrent misses cannot exceed the limit.
+     */
+    private synchronized Child create(String[] labelValues) {
+        List<String> key = Arrays.asList(labelValues);
+        Child child = children.get(key);
+        if (child == null && children.size() < maxCardinality) {
+            child = metric.labels(labelValues);
+            children.put(key, child);
+        }
+        return child;
+    }
+
+    private Child getOverflow(int nLabels) {
+        Child result = overflow;
+        if (result == null) {
+            String[] overflowLabels = new String[nLabels];
+            Arrays.fill(overflowLabels, CardinalityLimiter.OVERFLOW);
+            result = overflow = metric.labels(overflowLabels);
+        }
+        return result;
+    }
+
+    private static boolean equals(String[] cached, String[] labelValues) {
+        if (cached.length != labelValues.length) {
+            return false;
+        }
+        for (int i = 0; i < cached.length; i++) {
+            if (!cached[i].equals(labelValues[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Most recently used first. The label values are never null, because {@link SimpleCollector#labels(String...)} rejects null values.
+     */
+    private static class Cache<Child> {
+
+        private final String[][] labels = new String[CACHE_SIZE][];
+        private final Object[] children = new Object[CACHE_SIZE];
+        private final boolean[] overflow = new boolean[CACHE_SIZE]; // true if the label values are mapped to the overflow child
+        private int size = 0;
+
+        /**
+         * Move the i-th entry to the front and return its child.
+         */
+        @SuppressWarnings("unchecked")
+        private Child hit(int i) {
+            Child child = (Child) children[i];
+            if (i > 0) {
+                String[] hitLabels = labels[i];
+                boolean hitOverflow = overflow[i];
+                System.arraycopy(labels, 0, labels, 1, i);
+                System.arraycopy(children, 0, children, 1, i);
+                System.arraycopy(overflow, 0, overflow, 1, i);
+                labels[0] = hitLabels;
+                children[0] = child;
+                overflow[0] = hitOverflow;
+            }
+            return child;
+        }
+
+        /**
+         * Add a new entry in front, and evict the least recently used entry if the cache is full.
+         */
+        private Child add(String[] labelValues, Child child, boolean isOverflow) {
+            int n = Math.min(size, CACHE_SIZE - 1);
+            System.arraycopy(labels, 0, labels, 1, n);
+            System.arraycopy(children, 0, children, 1, n);
+            System.arraycopy(overflow, 0, overflow, 1, n);
+            labels[0] = labelValues;
+            children[0] = child;
+            overflow[0] = isOverflow;
+            size = n + 1;
+            return child;
+        }
+    }
+}
@@ -0,0 +1,412 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.hookcontext;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.SimpleCollector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.DoubleAdder;
+
+/**
+ * Histogram with log-linear buckets, as an alternative to {@link io.prometheus.client.Summary} for Hooks on hot code paths.
+ * <p/>
+ * Each power of two between the lowest and the highest bound is divided into a fixed number of linear sub-buckets,
+ * like in an HDR histogram. The bucket of an observation is computed from the exponent and the upper mantissa bits of the value,
+ * so observing a value costs a few bit operations and one CAS on an {@link AtomicLongArray}, without locks and without allocation.
+ * To reduce contention, each child starts with a single array of counts and adds more stripes when a CAS fails,
+ * up to the number of processors. Threads are assigned to stripes by their thread id.
+ * <p/>
+ * The histogram is exposed as a standard Prometheus histogram with cumulative <tt>_bucket</tt> samples,
+ * so unlike the quantiles of a {@link io.prometheus.client.Summary}, it can be aggregated across labels and instances.
+ * Create it with {@link MetricsStore#createOrGet(MetricDef)} like any other metric:
+ * <pre>
+ * LogLinearHistogram duration = metricsStore.createOrGet(new MetricDef<>(
+ *         "http_request_duration_seconds",
+ *         (name, registry) -> LogLinearHistogram.build()
+ *                 .name(name)
+ *                 .labelNames("method", "path", "status")
+ *                 .help("Duration of http requests in seconds.")
+ *                 .register(registry)
+ * ));
+ * </pre>
+ * With {@link Builder#perThread()}, each thread records into its own buffer, and the buffers are merged when the histogram is
+ * collected, see {@link ThreadBuffers}. That way, recording is a plain read and an ordered write without CAS, at the cost of one
+ * array of counts per thread and child. As with {@link PerThreadCounter}, this is meant for long-lived threads.
+ * <p/>
+ * By default, the buckets range from 2<sup>-14</sup> (about 61 microseconds) to 2<sup>6</sup> (64 seconds)
+ * with 4 sub-buckets per power of two, i.e. the relative error of a bucket boundary is at most 25%.
+ */
+public class LogLinearHistogram extends SimpleCollector<LogLinearHistogram.Child> implements Collector.Describable {
+
+    private static final int MAX_STRIPES = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1);
+
+    private final Layout layout;
+    private final boolean perThread;
+
+    private LogLinearHistogram(Builder b) {
+        super(b);
+        if (labelNames.contains("le")) {
+            throw new IllegalStateException("Histogram cannot have a label named 'le'.");
+        }
+        layout = new Layout(b.lowestBound, b.highestBound, b.subBucketsPerOctave);
+        perThread = b.perThread;
+        initializeNoLabelsChild();
+    }
+
+    public static Builder build() {
+        return new Builder();
+    }
+
+    /**
+     * Called by the {@link SimpleCollector} constructor before the layout is initialized. Ignore that call,
+     * the constructor of {@link LogLinearHistogram} calls this again when the layout is known.
+     */
+    @Override
+    protected void initializeNoLabelsChild() {
+        if (layout != null) {
+            super.initializeNoLabelsChild();
+        }
+    }
+
+    @Override
+    protected Child newChild() {
+        return new Child(layout, perThread);
+    }
+
+    /**
+     * Observe the value in the histogram without labels.
+     */
+    public void observe(double value) {
+        noLabelsChild.observe(value);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<>();
+        List<String> labelNamesWithLe = new ArrayList<>(labelNames);
+        labelNamesWithLe.add("le");
+        for (Map.Entry<List<String>, Child> entry : children.entrySet()) {
+            Snapshot snapshot = entry.getValue().get();
+            List<String> labelValuesWithLe = new ArrayList<>(entry.getKey());
+            labelValuesWithLe.add(null);
+            long cumulativeCount = 0;
+            for (int i = 0; i < layout.size(); i++) {
+                cumulativeCount += snapshot.counts[i];
+                labelValuesWithLe.set(labelValuesWithLe.size() - 1, layout.le[i]);
+                samples.add(new MetricFamilySamples.Sample(fullname + "_bucket", labelNamesWithLe, new ArrayList<>(labelValuesWithLe), cumulativeCount));
+            }
+            samples.add(new MetricFamilySamples.Sample(fullname + "_count", labelNames, entry.getKey(), cumulativeCount));
+            samples.add(new MetricFamilySamples.Sample(fullname + "_sum", labelNames, entry.getKey(), snapshot.sum));
+        }
+        return familySamplesList(Type.HISTOGRAM, samples);
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return Collections.singletonList(new MetricFamilySamples(fullname, Type.HISTOGRAM, help, Collections.<MetricFamilySamples.Sample>emptyList()));
+    }
+
+    public static class Builder extends SimpleCollector.Builder<Builder, LogLinearHistogram> {
+
+        private double lowestBound = Math.scalb(1.0, -14);
+        private double highestBound = Math.scalb(1.0, 6);
+        private int subBucketsPerOctave = 4;
+        private boolean perThread = false;
+
+        /**
+         * The bounds are rounded to powers of two. Values below the lowest bound are counted in the lowest bucket,
+         * values above the highest bound are counted in the <tt>+Inf</tt> bucket.
+         */
+        public Builder bounds(double lowestBound, double highestBound) {
+            if (!(lowestBound >= Double.MIN_NORMAL) || !(highestBound > lowestBound) || Double.isInfinite(highestBound)) {
+                throw new IllegalArgumentException("Invalid bounds [" + lowestBound + ", " + highestBound + "].");
+            }
+            this.lowestBound = lowestBound;
+            this.highestBound = highestBound;
+            return this;
+        }
+
+        /**
+         * Number of linear buckets per power of two. Must be a power of two, at most 1024.
+         */
+        public Builder subBucketsPerOctave(int subBucketsPerOctave) {
+            if (Integer.bitCount(subBucketsPerOctave) != 1 || subBucketsPerOctave > 1024) {
+                throw new IllegalArgumentException("subBucketsPerOctave must be a power of two, at most 1024, but is " + subBucketsPerOctave + ".");
+            }
+            this.subBucketsPerOctave = subBucketsPerOctave;
+            return this;
+        }
+
+        /**
+         * Record into per-thread buffers rather than into shared stripes.
+         */
+        public Builder perThread() {
+            this.perThread = true;
+            return this;
+        }
+
+        @Override
+        public LogLinearHistogram create() {
+            return new LogLinearHistogram(this);
+        }
+    }
+
+    public static class Child {
+
+        private final Layout layout;
+        private final DoubleAdder sum = new DoubleAdder();
+        private volatile AtomicLongArray[] stripes; // the length is a power of two
+        private final ThreadBuffers<Buffer> buffers; // null unless perThread
+        private final long[] retiredCounts; // counts of terminated threads, guarded by buffers
+        private double retiredSum;
+
+        private Child(Layout layout, boolean perThread) {
+            this.layout = layout;
+            if (perThread) {
+                this.buffers = new ThreadBuffers<>(() -> new Buffer(layout.size()));
+                this.retiredCounts = new long[layout.size()];
+            } else {
+                this.buffers = null;
+                this.retiredCounts = null;
+                this.stripes = new AtomicLongArray[]{new AtomicLongArray(layout.size())};
+            }
+        }
+
+        public void observe(double value) {
+            int bucket = layout.bucketIndex(value);
+            if (buffers != null) {
+                buffers.get().observe(bucket, value);
+                return;
+            }
+            AtomicLongArray[] s = stripes;
+            AtomicLongArray counts = s[(int) Thread.currentThread().getId() & (s.length - 1)];
+            long count = counts.get(bucket);
+            if (!counts.compareAndSet(bucket, count, count + 1)) {
+                counts.incrementAndGet(bucket);
+                grow(s);
+            }
+            sum.add(value);
+        }
+
+        /**
+         * Double the number of stripes after a failed CAS. This is the only place where a lock is taken,
+         * and it happens at most log2(number of processors) times per child.
+         */
+        private void grow(AtomicLongArray[] current) {
+            if (current.length < MAX_STRIPES) {
+                synchronized (this) {
+                    if (stripes == current) {
+                        AtomicLongArray[] grown = Arrays.copyOf(current, current.length * 2);
+                        for (int i = current.length; i < grown.length; i++) {
+                            grown[i] = new AtomicLongArray(layout.size());
+                        }
+                        stripes = grown;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sum up the stripes. Like with {@link io.prometheus.client.Histogram}, observations that happen concurrently
+         * may be included in the counts but not yet in the sum, or vice versa.
+         */
+        public Snapshot get() {
+            long[] counts = new long[layout.size()];
+            if (buffers != null) {
+                double[] bufferSum = new double[1];
+                synchronized (buffers) {
+                    buffers.collect(buffer -> bufferSum[0] += buffer.addTo(counts), buffer -> retiredSum += buffer.addTo(retiredCounts));
+                    for (int i = 0; i < counts.length; i++) {
+                        counts[i] += retiredCounts[i];
+                    }
+                    return new Snapshot(layout, counts, bufferSum[0] + retiredSum);
+                }
+            }
+            for (AtomicLongArray stripe : stripes) {
+                addTo(stripe, counts);
+            }
+            return new Snapshot(layout, counts, sum.sum());
+        }
+
+        private static void addTo(AtomicLongArray stripe, long[] counts) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+    }
+
+    /**
+     * Counts and sum of a single thread, see {@link Builder#perThread()}.
+     */
+    private static class Buffer {
+
+        private static final AtomicLongFieldUpdater<Buffer> SUM_BITS = AtomicLongFieldUpdater.newUpdater(Buffer.class, "sumBits");
+
+        private final AtomicLongArray counts;
+        private volatile long sumBits = Double.doubleToRawLongBits(0.0);
+
+        private Buffer(int size) {
+            counts = new AtomicLongArray(size);
+        }
+
+        /**
+         * Only called by the owner thread.
+         */
+        private void observe(int bucket, double value) {
+            counts.lazySet(bucket, counts.get(bucket) + 1);
+            SUM_BITS.lazySet(this, Double.doubleToRawLongBits(Double.longBitsToDouble(sumBits) + value));
+        }
+
+        /**
+         * Add the counts to the array and return the sum.
+         */
+        private double addTo(long[] result) {
+            Child.addTo(counts, result);
+            return Double.longBitsToDouble(sumBits);
+        }
+    }
+
+    /**
+     * Counts per bucket at a point in time. Snapshots of histograms with the same bounds can be merged,
+     * for example to aggregate the children of a histogram.
+     */
+    public static class Snapshot {
+
+        private final Layout layout;
+        private final long[] counts; // not cumulative
+        private final double sum;
+
+        private Snapshot(Layout layout, long[] counts, double sum) {
+            this.layout = layout;
+            this.counts = counts;
+            this.sum = sum;
+        }
+
+        public Snapshot merge(Snapshot other) {
+            if (!layout.equals(other.layout)) {
+                throw new IllegalArgumentException("Cannot merge snapshots of histograms with different buckets.");
+            }
+            long[] merged = counts.clone();
+            for (int i = 0; i < merged.length; i++) {
+                merged[i] += other.counts[i];
+            }
+            return new Snapshot(layout, merged, sum + other.sum);
+        }
+
+        /**
+         * The upper bounds of the buckets. The last upper bound is {@link Double#POSITIVE_INFINITY}.
+         */
+        public double[] getUpperBounds() {
+            return layout.upperBounds.clone();
+        }
+
+        /**
+         * The number of observations per bucket, not cumulative.
+         */
+        public long[] getCounts() {
+            return counts.clone();
+        }
+
+        public long getCount() {
+            long result = 0;
+            for (long count : counts) {
+                result += count;
+            }
+            return result;
+        }
+
+        public double getSum() {
+            return sum;
+        }
+    }
+
+    /**
+     * Maps values to buckets. Bucket 0 contains all values up to 2^minExponent. For each exponent e from minExponent to maxExponent - 1,
+     * the interval (2^e, 2^(e+1)] is divided into subBuckets linear buckets. The last bucket contains all values above 2^maxExponent.
+     */
+    private static class Layout {
+
+        private static final int MANTISSA_BITS = 52;
+
+        private final int minExponent;
+        private final int maxExponent;
+        private final int subBucketBits;
+        private final long lowMantissaMask;
+        private final double lowestBound;
+        private final double highestBound;
+        private final double[] upperBounds;
+        private final String[] le;
+
+        private Layout(double lowestBound, double highestBound, int subBuckets) {
+            minExponent = Math.getExponent(lowestBound);
+            int exponent = Math.getExponent(highestBound);
+            maxExponent = highestBound == Math.scalb(1.0, exponent) ? exponent : exponent + 1;
+            subBucketBits = Integer.numberOfTrailingZeros(subBuckets);
+            lowMantissaMask = (1L << (MANTISSA_BITS - subBucketBits)) - 1;
+            this.lowestBound = Math.scalb(1.0, minExponent);
+            this.highestBound = Math.scalb(1.0, maxExponent);
+            upperBounds = new double[2 + (maxExponent - minExponent) * subBuckets];
+            le = new String[upperBounds.length];
+            upperBounds[0] = this.lowestBound;
+            for (int i = 1; i < upperBounds.length - 1; i++) {
+                int e = minExponent + (i - 1) / subBuckets;
+                int k = (i - 1) % subBuckets;
+                upperBounds[i] = Math.scalb(1.0 + (double) (k + 1) / subBuckets, e);
+            }
+            upperBounds[upperBounds.length - 1] = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < upperBounds.length; i++) {
+                le[i] = Collector.doubleToGoString(upperBounds[i]);
+            }
+        }
+
+        private int size() {
+            return upperBounds.length;
+        }
+
+        private int bucketIndex(double value) {
+            if (!(value > lowestBound)) {
+                return 0; // includes NaN
+            }
+            if (value > highestBound) {
+                return upperBounds.length - 1;
+            }
+            long bits = Double.doubleToRawLongBits(value);
+            int exponent = (int) (bits >>> MANTISSA_BITS) - Double.MAX_EXPONENT;
+            int subBucket = (int) ((bits & ((1L << MANTISSA_BITS) - 1)) >>> (MANTISSA_BITS - subBucketBits));
+            int index = 1 + ((exponent - minExponent) << subBucketBits) + subBucket;
+            if ((bits & lowMantissaMask) == 0) {
+                index--; // the value is exactly the upper bound of the previous bucket
+            }
+            return index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Layout && Arrays.equals(upperBounds, ((Layout) o).upperBounds);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(upperBounds);
+        }
+    }
+}
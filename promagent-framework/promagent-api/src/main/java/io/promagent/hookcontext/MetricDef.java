@@ -26,6 +26,7 @@ public class MetricDef<T extends Collector> {
 
     private final String metricName;
     private final BiFunction<String, CollectorRegistry, T> producer;
+    private final int maxCardinality; // 0 means the default limit of the CardinalityLimiter
 
     /**
      * See {@link MetricsStore}.
@@ -38,8 +39,20 @@ public class MetricDef<T extends Collector> {
      *                 For an example see JavaDoc for {@link MetricsStore}.
      */
     public MetricDef(String metricName, BiFunction<String, CollectorRegistry, T> producer) {
+        this(metricName, producer, 0);
+    }
+
+    /**
+     * Like {@link #MetricDef(String, BiFunction)}, but with a limit for the number of label combinations of the metric,
+     * which overrides the default limit. See {@link CardinalityLimiter}.
+     */
+    public MetricDef(String metricName, BiFunction<String, CollectorRegistry, T> producer, int maxCardinality) {
+        if (maxCardinality < 0) {
+            throw new IllegalArgumentException("maxCardinality must not be negative, but is " + maxCardinality + ".");
+        }
         this.metricName = metricName;
         this.producer = producer;
+        this.maxCardinality = maxCardinality;
     }
 
     String getMetricName() {
@@ -49,4 +62,8 @@ public class MetricDef<T extends Collector> {
     BiFunction<String, CollectorRegistry, T> getProducer() {
         return producer;
     }
+
+    int getMaxCardinality() {
+        return maxCardinality;
+    }
 }
@@ -16,10 +16,12 @@ package io.promagent.hookcontext;
 
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.SimpleCollector;
 
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 /**
  * Instead of creating Prometheus Metrics directly, Hooks should use the {@link MetricsStore} like this:
@@ -34,14 +36,72 @@ import java.util.function.BiFunction;
  * ));
  * </pre>
  * The Promgent framework will take care that each metric is created only once and re-used across re-deployments in an application server.
+ * <p/>
+ * Besides the Prometheus metric types, the producer may create a {@link LogLinearHistogram} or a {@link PerThreadCounter},
+ * which are cheaper to update on hot code paths.
  */
 public class MetricsStore {
 
     private final CollectorRegistry registry;
-    private final ConcurrentMap<String, Collector> metrics = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Collector> metrics;
+    private final ConcurrentMap<SimpleCollector<?>, LabelHandles<?>> labelHandles;
+    private final CardinalityLimiter cardinalityLimiter;
+    private final LazyEventPipeline eventPipeline; // null if not configured
 
     public MetricsStore(CollectorRegistry registry) {
+        this(registry, new CardinalityLimiter(CardinalityLimiter.UNLIMITED));
+    }
+
+    /**
+     * The cardinalityLimiter limits the number of label combinations for metrics used with {@link #labelHandles(SimpleCollector)}.
+     */
+    public MetricsStore(CollectorRegistry registry, CardinalityLimiter cardinalityLimiter) {
+        this(registry, new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), cardinalityLimiter, null);
+    }
+
+    /**
+     * The eventPipeline is provided to Hooks recording metrics asynchronously, see {@link #eventPipeline()}.
+     */
+    public MetricsStore(CollectorRegistry registry, CardinalityLimiter cardinalityLimiter, EventPipeline eventPipeline) {
+        this(registry, cardinalityLimiter, eventPipeline == null ? null : (Supplier<EventPipeline>) () -> eventPipeline);
+    }
+
+    /**
+     * Like {@link #MetricsStore(CollectorRegistry, CardinalityLimiter, EventPipeline)}, but the {@link EventPipeline} is created
+     * when a Hook calls {@link #eventPipeline()} for the first time, so that the ring buffer is only allocated if it is used.
+     */
+    public MetricsStore(CollectorRegistry registry, CardinalityLimiter cardinalityLimiter, Supplier<EventPipeline> eventPipelineFactory) {
+        this(registry, new ConcurrentHashMap<>(), new ConcurrentHashMap<>(), cardinalityLimiter,
+                eventPipelineFactory == null ? null : new LazyEventPipeline(eventPipelineFactory));
+    }
+
+    private MetricsStore(CollectorRegistry registry, ConcurrentMap<String, Collector> metrics, ConcurrentMap<SimpleCollector<?>, LabelHandles<?>> labelHandles, CardinalityLimiter cardinalityLimiter, LazyEventPipeline eventPipeline) {
         this.registry = registry;
+        this.metrics = metrics;
+        this.labelHandles = labelHandles;
+        this.cardinalityLimiter = cardinalityLimiter;
+        this.eventPipeline = eventPipeline;
+    }
+
+    /**
+     * A view of this {@link MetricsStore} where counters, summaries, and histograms created with
+     * {@link #createOrGet(MetricDef)} are exposed with their counts and sums multiplied by the factor.
+     * This is used by the Promagent framework for Hooks with {@link io.promagent.annotations.Hook#scaleSampledMetrics()}.
+     * Metrics that already exist in this {@link MetricsStore} are returned as they are.
+     */
+    public MetricsStore scaledBy(int factor) {
+        return new MetricsStore(new ScalingCollectorRegistry(registry, factor), metrics, labelHandles, cardinalityLimiter, eventPipeline);
+    }
+
+    /**
+     * Change the factor of a view created with {@link #scaledBy(int)}, like when the Promagent framework throttles a Hook.
+     * Counts and sums recorded up to now keep the previous factor, only what is recorded from now on is multiplied with the new factor.
+     */
+    public void setScaleFactor(int factor) {
+        if (!(registry instanceof ScalingCollectorRegistry)) {
+            throw new IllegalStateException("setScaleFactor() is only supported for MetricsStores created with scaledBy().");
+        }
+        ((ScalingCollectorRegistry) registry).setFactor(factor);
     }
 
     /**
@@ -49,6 +109,65 @@ public class MetricsStore {
      */
     @SuppressWarnings("unchecked")
     public <T extends Collector> T createOrGet(MetricDef<T> metricDef) {
-        return (T) metrics.computeIfAbsent(metricDef.getMetricName(), s -> metricDef.getProducer().apply(metricDef.getMetricName(), registry));
+        return (T) metrics.computeIfAbsent(metricDef.getMetricName(), s -> {
+            T metric = metricDef.getProducer().apply(metricDef.getMetricName(), registry);
+            if (metric instanceof SimpleCollector) {
+                SimpleCollector<?> simpleCollector = (SimpleCollector<?>) metric;
+                labelHandles.put(simpleCollector, newLabelHandles(simpleCollector, metricDef.getMetricName(), cardinalityLimiter.getMaxCardinality(metricDef)));
+            }
+            return metric;
+        });
+    }
+
+    /**
+     * Get the {@link LabelHandles} for a metric created with {@link #createOrGet(MetricDef)}.
+     * There is only one {@link LabelHandles} instance per metric, so hooks can call this in their constructor
+     * and still share the cached children with all other hook instances.
+     * The number of label combinations is limited as defined in the metric's {@link MetricDef}, see {@link CardinalityLimiter}.
+     */
+    @SuppressWarnings("unchecked")
+    public <Child> LabelHandles<Child> labelHandles(SimpleCollector<Child> metric) {
+        return (LabelHandles<Child>) labelHandles.computeIfAbsent(metric, m -> newLabelHandles(metric, metric.collect().get(0).name, cardinalityLimiter.getDefaultMaxCardinality()));
+    }
+
+    /**
+     * Get the {@link EventPipeline} for recording metrics asynchronously in a background thread.
+     * The pipeline is created and its background thread is started when this is called for the first time,
+     * so Hooks should call this in their constructor.
+     */
+    public EventPipeline eventPipeline() {
+        if (eventPipeline == null) {
+            throw new IllegalStateException("No event pipeline configured.");
+        }
+        return eventPipeline.get();
+    }
+
+    private <Child> LabelHandles<Child> newLabelHandles(SimpleCollector<Child> metric, String metricName, int maxCardinality) {
+        return new LabelHandles<>(metric, maxCardinality, cardinalityLimiter.getOverflowCounter(metricName));
+    }
+
+    private static class LazyEventPipeline {
+
+        private final Supplier<EventPipeline> factory;
+        private volatile EventPipeline eventPipeline; // null before the first call to get()
+
+        private LazyEventPipeline(Supplier<EventPipeline> factory) {
+            this.factory = factory;
+        }
+
+        private EventPipeline get() {
+            EventPipeline result = eventPipeline;
+            if (result == null) {
+                synchronized (this) {
+                    result = eventPipeline;
+                    if (result == null) {
+                        result = factory.get();
+                        result.start();
+                        eventPipeline = result;
+                    }
+                }
+            }
+            return result;
+        }
     }
 }
@@ -0,0 +1,148 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.hookcontext;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.SimpleCollector;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Counter where each thread counts in its own buffer, as an alternative to {@link io.prometheus.client.Counter}
+ * for Hooks that are called by many threads concurrently.
+ * <p/>
+ * {@link #inc()} is a plain read and an ordered write of a field that is owned by the current thread, so threads never contend
+ * on a shared cell. The per-thread values are summed up when the counter is collected, and the values of terminated threads are
+ * added to a total, see {@link ThreadBuffers}. The counter is exposed like an {@link io.prometheus.client.Counter},
+ * and created like any other metric with {@link MetricsStore#createOrGet(MetricDef)}:
+ * <pre>
+ * PerThreadCounter httpRequestsTotal = metricsStore.createOrGet(new MetricDef<>(
+ *         "http_requests_total",
+ *         (name, registry) -> PerThreadCounter.build()
+ *                 .name(name)
+ *                 .labelNames("method", "path", "status")
+ *                 .help("Total number of http requests.")
+ *                 .register(registry)
+ * ));
+ * </pre>
+ * Each child allocates a buffer for each thread that uses it, so this is meant for long-lived threads like the threads of a
+ * server's thread pool. If each call runs in a new thread, a buffer is allocated on each call until it is retired on the next scrape.
+ */
+public class PerThreadCounter extends SimpleCollector<PerThreadCounter.Child> implements Collector.Describable {
+
+    private PerThreadCounter(Builder b) {
+        super(b);
+    }
+
+    public static Builder build() {
+        return new Builder();
+    }
+
+    @Override
+    protected Child newChild() {
+        return new Child();
+    }
+
+    /**
+     * Increment the counter without labels by 1.
+     */
+    public void inc() {
+        noLabelsChild.inc();
+    }
+
+    /**
+     * Increment the counter without labels by the amount, which must not be negative.
+     */
+    public void inc(double amount) {
+        noLabelsChild.inc(amount);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<MetricFamilySamples.Sample> samples = new ArrayList<>(children.size());
+        for (Map.Entry<List<String>, Child> entry : children.entrySet()) {
+            samples.add(new MetricFamilySamples.Sample(fullname, labelNames, entry.getKey(), entry.getValue().get()));
+        }
+        return familySamplesList(Type.COUNTER, samples);
+    }
+
+    @Override
+    public List<MetricFamilySamples> describe() {
+        return Collections.singletonList(new MetricFamilySamples(fullname, Type.COUNTER, help, Collections.<MetricFamilySamples.Sample>emptyList()));
+    }
+
+    public static class Builder extends SimpleCollector.Builder<Builder, PerThreadCounter> {
+
+        @Override
+        public PerThreadCounter create() {
+            return new PerThreadCounter(this);
+        }
+    }
+
+    public static class Child {
+
+        private final ThreadBuffers<Cell> cells = new ThreadBuffers<>(Cell::new);
+        private double retired = 0; // sum of the cells of terminated threads, guarded by cells
+
+        private Child() {}
+
+        public void inc() {
+            cells.get().add(1);
+        }
+
+        public void inc(double amount) {
+            if (amount < 0) {
+                throw new IllegalArgumentException("Amount to increment must be non-negative.");
+            }
+            cells.get().add(amount);
+        }
+
+        /**
+         * The sum of all threads' values.
+         */
+        public double get() {
+            double[] result = new double[1];
+            synchronized (cells) {
+                cells.collect(cell -> result[0] += cell.get(), cell -> retired += cell.get());
+                return result[0] + retired;
+            }
+        }
+    }
+
+    /**
+     * The double value is stored as its long bits, so that it can be written with {@link AtomicLongFieldUpdater#lazySet(Object, long)}.
+     */
+    private static class Cell {
+
+        private static final AtomicLongFieldUpdater<Cell> BITS = AtomicLongFieldUpdater.newUpdater(Cell.class, "bits");
+
+        private volatile long bits = Double.doubleToRawLongBits(0.0);
+
+        /**
+         * Only called by the owner thread.
+         */
+        private void add(double amount) {
+            BITS.lazySet(this, Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + amount));
+        }
+
+        private double get() {
+            return Double.longBitsToDouble(bits);
+        }
+    }
+}
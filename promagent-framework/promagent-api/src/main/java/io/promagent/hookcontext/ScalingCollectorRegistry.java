@@ -0,0 +1,156 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.hookcontext;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registers collectors with another registry, and multiplies their counts and sums by a factor when they are collected.
+ * <p/>
+ * This is used for Hooks with {@link io.promagent.annotations.Hook#sampleEvery()} and {@link io.promagent.annotations.Hook#scaleSampledMetrics()},
+ * see {@link MetricsStore#scaledBy(int)}. Only the scaled values are exposed, the metrics themselves keep counting the sampled calls.
+ * <p/>
+ * The factor can change while the metrics are recorded, like when a Hook is throttled, see {@link #setFactor(int)}.
+ * The values recorded up to the change keep the previous factor, so the exposed values stay monotonic.
+ */
+class ScalingCollectorRegistry extends CollectorRegistry {
+
+    private final CollectorRegistry registry;
+    private final ConcurrentMap<Collector, ScalingCollector> collectors = new ConcurrentHashMap<>();
+    private int factor; // guarded by this
+
+    ScalingCollectorRegistry(CollectorRegistry registry, int factor) {
+        this.registry = registry;
+        this.factor = factor;
+    }
+
+    @Override
+    public synchronized void register(Collector collector) {
+        ScalingCollector scalingCollector = new ScalingCollector(collector, factor);
+        registry.register(scalingCollector);
+        collectors.put(collector, scalingCollector);
+    }
+
+    @Override
+    public void unregister(Collector collector) {
+        ScalingCollector scalingCollector = collectors.remove(collector);
+        if (scalingCollector != null) {
+            registry.unregister(scalingCollector);
+        }
+    }
+
+    /**
+     * Multiply what is recorded from now on with the new factor.
+     */
+    synchronized void setFactor(int factor) {
+        for (ScalingCollector scalingCollector : collectors.values()) {
+            scalingCollector.setFactor(factor);
+        }
+        this.factor = factor;
+    }
+
+    private static class ScalingCollector extends Collector implements Collector.Describable {
+
+        private final Collector collector;
+        private int factor; // guarded by this
+        // For each scaled sample, identified by name and label values, the raw value and the exposed value
+        // when the factor last changed. Empty as long as the factor didn't change. Guarded by this.
+        private final Map<List<String>, double[]> bases = new HashMap<>();
+
+        private ScalingCollector(Collector collector, int factor) {
+            this.collector = collector;
+            this.factor = factor;
+        }
+
+        @Override
+        public synchronized List<MetricFamilySamples> collect() {
+            List<MetricFamilySamples> result = new ArrayList<>();
+            for (MetricFamilySamples family : collector.collect()) {
+                result.add(scale(family));
+            }
+            return result;
+        }
+
+        @Override
+        public List<MetricFamilySamples> describe() {
+            return collector instanceof Describable ? ((Describable) collector).describe() : collect();
+        }
+
+        private synchronized void setFactor(int newFactor) {
+            if (newFactor == factor) {
+                return;
+            }
+            for (MetricFamilySamples family : collector.collect()) {
+                for (MetricFamilySamples.Sample sample : family.samples) {
+                    if (isScaled(family, sample)) {
+                        List<String> key = key(sample);
+                        bases.put(key, new double[]{sample.value, scale(key, sample.value)});
+                    }
+                }
+            }
+            factor = newFactor;
+        }
+
+        private MetricFamilySamples scale(MetricFamilySamples family) {
+            if (family.type != Type.COUNTER && family.type != Type.SUMMARY && family.type != Type.HISTOGRAM) {
+                return family;
+            }
+            List<MetricFamilySamples.Sample> samples = new ArrayList<>(family.samples.size());
+            for (MetricFamilySamples.Sample sample : family.samples) {
+                if (isScaled(family, sample)) {
+                    samples.add(new MetricFamilySamples.Sample(sample.name, sample.labelNames, sample.labelValues, scale(key(sample), sample.value), sample.timestampMs));
+                } else {
+                    samples.add(sample);
+                }
+            }
+            return new MetricFamilySamples(family.name, family.type, family.help, samples);
+        }
+
+        /**
+         * Counts and sums are scaled, gauges and quantiles are not.
+         */
+        private static boolean isScaled(MetricFamilySamples family, MetricFamilySamples.Sample sample) {
+            switch (family.type) {
+                case COUNTER:
+                case HISTOGRAM:
+                    return true;
+                case SUMMARY:
+                    return !sample.name.equals(family.name);
+                default:
+                    return false;
+            }
+        }
+
+        private double scale(List<String> key, double value) {
+            double[] base = bases.get(key);
+            return base == null ? value * factor : base[1] + (value - base[0]) * factor;
+        }
+
+        private static List<String> key(MetricFamilySamples.Sample sample) {
+            List<String> key = new ArrayList<>(sample.labelValues.size() + 1);
+            key.add(sample.name);
+            key.addAll(sample.labelValues);
+            return key;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.hookcontext;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * One buffer per thread, for metrics where each thread records into its own buffer and the buffers are merged when the metric is collected.
+ * <p/>
+ * Each buffer is written only by its owner thread, so recording doesn't need atomic read-modify-write operations.
+ * The buffers must publish their values with ordered writes (like {@link java.util.concurrent.atomic.AtomicLong#lazySet(long)}),
+ * so that the values read by the collecting thread are not torn.
+ * <p/>
+ * When a thread terminates, its buffer is retired on the next {@link #collect(Consumer, Consumer)}, i.e. its values are passed
+ * to the retire callback once, so that the metric can add them to its totals, and the buffer is dropped.
+ * The owner threads are only referenced weakly, so the buffers do not prevent threads from being garbage collected.
+ */
+class ThreadBuffers<B> {
+
+    private final Supplier<B> factory;
+    private final Queue<Owned<B>> buffers = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<B> threadLocal = ThreadLocal.withInitial(this::register);
+
+    ThreadBuffers(Supplier<B> factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * The buffer of the current thread.
+     */
+    B get() {
+        return threadLocal.get();
+    }
+
+    /**
+     * Call collect for the buffers of live threads, and retire for the buffers of terminated threads.
+     * Synchronized so that concurrent scrapes don't retire a buffer twice. Callers should update their totals
+     * in the retire callback, and read them in the same synchronized block.
+     */
+    synchronized void collect(Consumer<B> collect, Consumer<B> retire) {
+        for (Iterator<Owned<B>> iterator = buffers.iterator(); iterator.hasNext(); ) {
+            Owned<B> owned = iterator.next();
+            Thread owner = owned.owner.get();
+            if (owner == null || !owner.isAlive()) {
+                // Thread termination happens-before isAlive() returning false, so all writes of the owner are visible.
+                retire.accept(owned.buffer);
+                iterator.remove();
+            } else {
+                collect.accept(owned.buffer);
+            }
+        }
+    }
+
+    private B register() {
+        B buffer = factory.get();
+        buffers.add(new Owned<>(Thread.currentThread(), buffer));
+        return buffer;
+    }
+
+    private static class Owned<B> {
+
+        private final WeakReference<Thread> owner;
+        private final B buffer;
+
+        private Owned(Thread owner, B buffer) {
+            this.owner = new WeakReference<>(owner);
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.hookcontext;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CardinalityLimiterTest {
+
+    private CollectorRegistry registry;
+    private MetricsStore metricsStore;
+
+    @BeforeEach
+    void setUp() {
+        registry = new CollectorRegistry();
+        CardinalityLimiter cardinalityLimiter = new CardinalityLimiter(3);
+        registry.register(cardinalityLimiter);
+        metricsStore = new MetricsStore(registry, cardinalityLimiter);
+    }
+
+    @Test
+    void testDefaultLimit() {
+        LabelHandles<Counter.Child> handles = metricsStore.labelHandles(counter(new MetricDef<>("requests_total", this::newCounter)));
+        for (int run = 0; run < 2; run++) {
+            for (String path : new String[]{"/a", "/b", "/c", "/d", "/e"}) {
+                handles.get("GET", path).inc();
+            }
+        }
+        assertEquals(Double.valueOf(2), registry.getSampleValue("requests_total", new String[]{"method", "path"}, new String[]{"GET", "/c"}));
+        assertNull(registry.getSampleValue("requests_total", new String[]{"method", "path"}, new String[]{"GET", "/d"}));
+        assertEquals(Double.valueOf(4), registry.getSampleValue("requests_total", new String[]{"method", "path"}, new String[]{CardinalityLimiter.OVERFLOW, CardinalityLimiter.OVERFLOW}));
+        assertEquals(Double.valueOf(4), registry.getSampleValue("promagent_label_overflow_lookups_total", new String[]{"metric"}, new String[]{"requests_total"}));
+    }
+
+    @Test
+    void testMetricDefLimit() {
+        LabelHandles<Counter.Child> handles = metricsStore.labelHandles(counter(new MetricDef<>("requests_total", this::newCounter, 1)));
+        handles.get("GET", "/a").inc();
+        handles.get("GET", "/b").inc();
+        handles.get("GET", "/a").inc();
+        assertSame(handles.get("GET", "/b"), handles.get("GET", "/c")); // the overflow child, the first one from the per-thread cache
+        assertEquals(Double.valueOf(2), registry.getSampleValue("requests_total", new String[]{"method", "path"}, new String[]{"GET", "/a"}));
+        assertEquals(Double.valueOf(1), registry.getSampleValue("requests_total", new String[]{"method", "path"}, new String[]{CardinalityLimiter.OVERFLOW, CardinalityLimiter.OVERFLOW}));
+        assertEquals(Double.valueOf(3), registry.getSampleValue("promagent_label_overflow_lookups_total", new String[]{"metric"}, new String[]{"requests_total"}));
+    }
+
+    @Test
+    void testConcurrentMisses() throws InterruptedException {
+        LabelHandles<Counter.Child> handles = metricsStore.labelHandles(counter(new MetricDef<>("requests_total", this::newCounter, 10)));
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    handles.get("GET", "/" + i).inc();
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Counter counter = metricsStore.createOrGet(new MetricDef<>("requests_total", this::newCounter));
+        assertEquals(11, counter.collect().get(0).samples.size()); // 10 label combinations plus overflow
+        assertEquals(Double.valueOf(4 * 90), registry.getSampleValue("promagent_label_overflow_lookups_total", new String[]{"metric"}, new String[]{"requests_total"}));
+    }
+
+    private Counter counter(MetricDef<Counter> metricDef) {
+        return metricsStore.createOrGet(metricDef);
+    }
+
+    private Counter newCounter(String name, CollectorRegistry registry) {
+        return Counter.build()
+                .name(name)
+                .labelNames("method", "path")
+                .help("Total requests.")
+                .register(registry);
+    }
+}
@@ -0,0 +1,133 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.hookcontext;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.Summary;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventPipelineTest {
+
+    private CollectorRegistry registry;
+    private Counter counter;
+
+    @BeforeEach
+    void setUp() {
+        registry = new CollectorRegistry();
+        counter = Counter.build().name("requests_total").help("help").register(registry);
+    }
+
+    @Test
+    void testApplyEvents() {
+        EventPipeline eventPipeline = new EventPipeline(16, EventPipeline.Backpressure.DROP);
+        Summary summary = Summary.build().name("summary").help("help").register(registry);
+        Histogram histogram = Histogram.build().name("histogram").help("help").register(registry);
+        LogLinearHistogram logLinearHistogram = LogLinearHistogram.build().name("log_linear_histogram").help("help").register(registry);
+        eventPipeline.inc(counter.labels());
+        eventPipeline.inc(counter.labels(), 2);
+        eventPipeline.observe(summary.labels(), 0.5);
+        eventPipeline.observe(histogram.labels(), 0.5);
+        eventPipeline.observe(logLinearHistogram.labels(), 0.5);
+        assertThrows(IllegalArgumentException.class, () -> eventPipeline.inc(counter.labels(), -1));
+        assertEquals(Double.valueOf(0), registry.getSampleValue("requests_total"));
+        assertEquals(5, eventPipeline.drain(100));
+        assertEquals(Double.valueOf(3), registry.getSampleValue("requests_total"));
+        assertEquals(Double.valueOf(0.5), registry.getSampleValue("summary_sum"));
+        assertEquals(Double.valueOf(1), registry.getSampleValue("histogram_count"));
+        assertEquals(Double.valueOf(1), registry.getSampleValue("log_linear_histogram_count"));
+        assertEquals(0, eventPipeline.drain(100));
+    }
+
+    @Test
+    void testDrop() {
+        EventPipeline eventPipeline = new EventPipeline(3, EventPipeline.Backpressure.DROP); // rounded up to 4
+        registry.register(eventPipeline);
+        for (int round = 0; round < 3; round++) { // wrap around the ring buffer
+            for (int i = 0; i < 6; i++) {
+                eventPipeline.inc(counter.labels());
+            }
+            assertEquals(Double.valueOf(4), registry.getSampleValue("promagent_event_queue_depth"));
+            assertEquals(4, eventPipeline.drain(100));
+        }
+        assertEquals(Double.valueOf(4), registry.getSampleValue("promagent_event_queue_capacity"));
+        assertEquals(Double.valueOf(0), registry.getSampleValue("promagent_event_queue_depth"));
+        assertEquals(Double.valueOf(12), registry.getSampleValue("promagent_events_processed_total"));
+        assertEquals(Double.valueOf(6), registry.getSampleValue("promagent_events_dropped_total"));
+        assertEquals(Double.valueOf(12), registry.getSampleValue("requests_total"));
+    }
+
+    @Test
+    void testBlock() throws InterruptedException {
+        EventPipeline eventPipeline = new EventPipeline(16, EventPipeline.Backpressure.BLOCK);
+        MetricsStore metricsStore = new MetricsStore(registry, new CardinalityLimiter(CardinalityLimiter.UNLIMITED), eventPipeline);
+        assertSame(eventPipeline, metricsStore.eventPipeline()); // starts the background thread
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    eventPipeline.inc(counter.labels());
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < 1000 && eventPipeline.getDepth() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Double.valueOf(40_000), registry.getSampleValue("requests_total"));
+    }
+
+    @Test
+    void testCreatedOnFirstUse() {
+        int[] created = {0};
+        MetricsStore metricsStore = new MetricsStore(registry, new CardinalityLimiter(CardinalityLimiter.UNLIMITED), () -> {
+            created[0]++;
+            EventPipeline eventPipeline = new EventPipeline(16, EventPipeline.Backpressure.DROP);
+            registry.register(eventPipeline);
+            return eventPipeline;
+        });
+        MetricsStore scaled = metricsStore.scaledBy(2);
+        assertEquals(0, created[0]);
+        assertNull(registry.getSampleValue("promagent_event_queue_capacity"));
+        EventPipeline eventPipeline = scaled.eventPipeline();
+        assertSame(eventPipeline, metricsStore.eventPipeline());
+        assertEquals(1, created[0]);
+        assertEquals(Double.valueOf(16), registry.getSampleValue("promagent_event_queue_capacity"));
+    }
+
+    @Test
+    void testWakeUpIdleConsumer() throws InterruptedException {
+        EventPipeline eventPipeline = new EventPipeline(16, EventPipeline.Backpressure.DROP);
+        eventPipeline.start();
+        Thread.sleep(1500); // the idle consumer backs off to its maximum park time
+        eventPipeline.inc(counter.labels());
+        for (int i = 0; i < 50 && registry.getSampleValue("requests_total") == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(Double.valueOf(1), registry.getSampleValue("requests_total")); // unparked by the producer, not after the timeout
+    }
+
+    @Test
+    void testNotConfigured() {
+        assertThrows(IllegalStateException.class, () -> new MetricsStore(registry).eventPipeline());
+    }
+}
@@ -0,0 +1,75 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.hookcontext;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LabelHandlesTest {
+
+    private MetricsStore metricsStore;
+    private Counter counter;
+
+    @BeforeEach
+    void setUp() {
+        metricsStore = new MetricsStore(new CollectorRegistry());
+        counter = metricsStore.createOrGet(new MetricDef<>(
+                "requests_total",
+                (name, registry) -> Counter.build()
+                        .name(name)
+                        .labelNames("method", "path", "status")
+                        .help("Total requests.")
+                        .register(registry)
+        ));
+    }
+
+    @Test
+    void testSameChildAsLabels() {
+        LabelHandles<Counter.Child> handles = metricsStore.labelHandles(counter);
+        assertSame(handles, metricsStore.labelHandles(counter));
+        // More label combinations than cache entries, so that entries are evicted and re-added.
+        for (int run = 0; run < 3; run++) {
+            for (int i = 0; i < 2 * LabelHandles.CACHE_SIZE; i++) {
+                String status = Integer.toString(200 + i);
+                assertSame(counter.labels("GET", "/", status), handles.get("GET", "/", status));
+                assertSame(counter.labels("GET", "/", status), handles.get(new String[]{"GET", "/", status}));
+            }
+        }
+    }
+
+    @Test
+    void testNoAllocation() {
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        LabelHandles<Counter.Child> handles = metricsStore.labelHandles(counter);
+        String[] statuses = {"200", "404", "500", "503"};
+        int nCalls = 100_000;
+        for (int i = 0; i < nCalls; i++) {
+            handles.get("GET", "/", statuses[i % statuses.length]).inc(); // warm up
+        }
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        for (int i = 0; i < nCalls; i++) {
+            handles.get("GET", "/", statuses[i % statuses.length]).inc();
+        }
+        long allocated = threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+        assertTrue(allocated < nCalls, "Allocated " + allocated + " bytes for " + nCalls + " calls.");
+        assertEquals(Double.valueOf(2 * nCalls / statuses.length), Double.valueOf(counter.labels("GET", "/", "200").get()));
+    }
+}
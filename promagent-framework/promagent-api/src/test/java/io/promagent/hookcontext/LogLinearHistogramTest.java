@@ -0,0 +1,134 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.hookcontext;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogLinearHistogramTest {
+
+    private CollectorRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        registry = new CollectorRegistry();
+    }
+
+    @Test
+    void testUpperBounds() {
+        LogLinearHistogram histogram = LogLinearHistogram.build().name("h").help("help").bounds(1, 4).subBucketsPerOctave(2).register(registry);
+        assertArrayEquals(new double[]{1, 1.5, 2, 3, 4, Double.POSITIVE_INFINITY}, histogram.labels().get().getUpperBounds());
+    }
+
+    @Test
+    void testBoundsRoundedToPowersOfTwo() {
+        LogLinearHistogram histogram = LogLinearHistogram.build().name("h").help("help").bounds(0.7, 3).subBucketsPerOctave(1).register(registry);
+        assertArrayEquals(new double[]{0.5, 1, 2, 4, Double.POSITIVE_INFINITY}, histogram.labels().get().getUpperBounds());
+    }
+
+    @Test
+    void testObserve() {
+        LogLinearHistogram histogram = LogLinearHistogram.build().name("h").help("help").bounds(1, 4).subBucketsPerOctave(2).register(registry);
+        double[] values = {-1, 0, 1, 1.1, 1.5, 1.6, 2, 2.5, 3, 3.0000001, 4, 5, Double.POSITIVE_INFINITY};
+        for (double value : values) {
+            histogram.observe(value);
+        }
+        // upper bounds are inclusive, as in Prometheus
+        assertArrayEquals(new long[]{3, 2, 2, 2, 2, 2}, histogram.labels().get().getCounts());
+        assertBucket(3, "1.0");
+        assertBucket(5, "1.5");
+        assertBucket(7, "2.0");
+        assertBucket(9, "3.0");
+        assertBucket(11, "4.0");
+        assertBucket(13, "+Inf");
+        assertEquals(Double.valueOf(13), registry.getSampleValue("h_count"));
+        assertEquals(Double.valueOf(Double.POSITIVE_INFINITY), registry.getSampleValue("h_sum"));
+    }
+
+    @Test
+    void testLabels() {
+        LogLinearHistogram histogram = LogLinearHistogram.build().name("h").help("help").labelNames("path").register(registry);
+        histogram.labels("/a").observe(0.1);
+        histogram.labels("/a").observe(0.2);
+        histogram.labels("/b").observe(10);
+        assertEquals(Double.valueOf(2), registry.getSampleValue("h_count", new String[]{"path"}, new String[]{"/a"}));
+        assertEquals(Double.valueOf(0.1 + 0.2), registry.getSampleValue("h_sum", new String[]{"path"}, new String[]{"/a"}));
+        assertEquals(Double.valueOf(2), registry.getSampleValue("h_bucket", new String[]{"path", "le"}, new String[]{"/a", "+Inf"}));
+        assertEquals(Double.valueOf(0), registry.getSampleValue("h_bucket", new String[]{"path", "le"}, new String[]{"/b", "8.0"}));
+        assertEquals(Double.valueOf(1), registry.getSampleValue("h_bucket", new String[]{"path", "le"}, new String[]{"/b", "10.0"}));
+        assertThrows(IllegalStateException.class, () -> LogLinearHistogram.build().name("h2").help("help").labelNames("le").create());
+    }
+
+    @Test
+    void testMerge() {
+        LogLinearHistogram histogram = LogLinearHistogram.build().name("h").help("help").labelNames("path").register(registry);
+        histogram.labels("/a").observe(0.1);
+        histogram.labels("/b").observe(0.1);
+        histogram.labels("/b").observe(1);
+        LogLinearHistogram.Snapshot merged = histogram.labels("/a").get().merge(histogram.labels("/b").get());
+        assertEquals(3, merged.getCount());
+        assertEquals(1.2, merged.getSum(), 1e-9);
+        LogLinearHistogram other = LogLinearHistogram.build().name("h2").help("help").subBucketsPerOctave(8).create();
+        assertThrows(IllegalArgumentException.class, () -> merged.merge(other.labels().get()));
+    }
+
+    @Test
+    void testConcurrentObservations() throws InterruptedException {
+        LogLinearHistogram histogram = LogLinearHistogram.build().name("h").help("help").register(registry);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.observe(0.001);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Double.valueOf(threads.length * 100_000), registry.getSampleValue("h_count"));
+    }
+
+    @Test
+    void testPerThread() throws InterruptedException {
+        LogLinearHistogram histogram = LogLinearHistogram.build().name("h").help("help").bounds(1, 4).subBucketsPerOctave(2).perThread().register(registry);
+        histogram.observe(1.1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    histogram.observe(3);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int scrape = 0; scrape < 2; scrape++) { // the first scrape retires the buffers of the terminated threads
+            assertArrayEquals(new long[]{0, 1, 0, 4000, 0, 0}, histogram.labels().get().getCounts());
+            assertEquals(Double.valueOf(4001), registry.getSampleValue("h_count"));
+            assertEquals(Double.valueOf(1.1 + 4 * 3000), registry.getSampleValue("h_sum"));
+        }
+    }
+
+    private void assertBucket(double expected, String le) {
+        assertEquals(Double.valueOf(expected), registry.getSampleValue("h_bucket", new String[]{"le"}, new String[]{le}));
+    }
+}
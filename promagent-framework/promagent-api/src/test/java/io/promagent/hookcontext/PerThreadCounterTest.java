@@ -0,0 +1,103 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.hookcontext;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PerThreadCounterTest {
+
+    private CollectorRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        registry = new CollectorRegistry();
+    }
+
+    @Test
+    void testCounter() throws InterruptedException {
+        PerThreadCounter counter = new MetricsStore(registry).createOrGet(new MetricDef<>(
+                "requests_total",
+                (name, registry) -> PerThreadCounter.build()
+                        .name(name)
+                        .labelNames("path")
+                        .help("Total requests.")
+                        .register(registry)
+        ));
+        counter.labels("/a").inc();
+        counter.labels("/a").inc(2.5);
+        assertThrows(IllegalArgumentException.class, () -> counter.labels("/a").inc(-1));
+        runThreads(8, () -> {
+            for (int i = 0; i < 10_000; i++) {
+                counter.labels("/b").inc();
+            }
+        });
+        assertEquals(Double.valueOf(3.5), registry.getSampleValue("requests_total", new String[]{"path"}, new String[]{"/a"}));
+        assertEquals(Double.valueOf(80_000), registry.getSampleValue("requests_total", new String[]{"path"}, new String[]{"/b"}));
+        // retired values are counted only once
+        assertEquals(Double.valueOf(80_000), registry.getSampleValue("requests_total", new String[]{"path"}, new String[]{"/b"}));
+    }
+
+    @Test
+    void testRetireTerminatedThreads() throws InterruptedException {
+        ThreadBuffers<int[]> buffers = new ThreadBuffers<>(() -> new int[1]);
+        CountDownLatch recorded = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Thread live = new Thread(() -> {
+            buffers.get()[0]++;
+            recorded.countDown();
+            try {
+                done.await();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        live.start();
+        recorded.await();
+        runThreads(3, () -> buffers.get()[0]++);
+        AtomicInteger collected = new AtomicInteger();
+        AtomicInteger retired = new AtomicInteger();
+        buffers.collect(buffer -> collected.addAndGet(buffer[0]), buffer -> retired.addAndGet(buffer[0]));
+        assertEquals(1, collected.get());
+        assertEquals(3, retired.get());
+        done.countDown();
+        live.join();
+        collected.set(0);
+        retired.set(0);
+        buffers.collect(buffer -> collected.addAndGet(buffer[0]), buffer -> retired.addAndGet(buffer[0]));
+        assertEquals(0, collected.get());
+        assertEquals(1, retired.get());
+    }
+
+    private static void runThreads(int nThreads, Runnable runnable) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < nThreads; i++) {
+            threads.add(new Thread(runnable));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.hookcontext;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Summary;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ScalingCollectorRegistryTest {
+
+    private CollectorRegistry registry;
+    private MetricsStore scaled;
+
+    @BeforeEach
+    void setUp() {
+        registry = new CollectorRegistry();
+        scaled = new MetricsStore(registry).scaledBy(10);
+    }
+
+    @Test
+    void testScaling() {
+        Counter counter = scaled.createOrGet(new MetricDef<>("calls_total",
+                (name, registry) -> Counter.build().name(name).help("Calls.").register(registry)));
+        Gauge gauge = scaled.createOrGet(new MetricDef<>("in_flight",
+                (name, registry) -> Gauge.build().name(name).help("In flight.").register(registry)));
+        Summary summary = scaled.createOrGet(new MetricDef<>("duration_seconds",
+                (name, registry) -> Summary.build().name(name).help("Duration.").register(registry)));
+        counter.inc();
+        gauge.set(3);
+        summary.observe(0.5);
+        assertEquals(Double.valueOf(10), registry.getSampleValue("calls_total"));
+        assertEquals(Double.valueOf(3), registry.getSampleValue("in_flight"));
+        assertEquals(Double.valueOf(10), registry.getSampleValue("duration_seconds_count"));
+        assertEquals(Double.valueOf(5), registry.getSampleValue("duration_seconds_sum"));
+    }
+
+    /**
+     * Values recorded before the factor changes keep the previous factor, so the exposed values stay monotonic.
+     */
+    @Test
+    void testSetScaleFactor() {
+        Counter counter = scaled.createOrGet(new MetricDef<>("calls_total",
+                (name, registry) -> Counter.build().name(name).labelNames("path").help("Calls.").register(registry)));
+        counter.labels("/a").inc();
+        scaled.setScaleFactor(20);
+        counter.labels("/a").inc();
+        counter.labels("/b").inc();
+        assertEquals(Double.valueOf(30), registry.getSampleValue("calls_total", new String[]{"path"}, new String[]{"/a"}));
+        assertEquals(Double.valueOf(20), registry.getSampleValue("calls_total", new String[]{"path"}, new String[]{"/b"}));
+        scaled.setScaleFactor(5);
+        counter.labels("/a").inc();
+        assertEquals(Double.valueOf(35), registry.getSampleValue("calls_total", new String[]{"path"}, new String[]{"/a"}));
+        assertEquals(Double.valueOf(20), registry.getSampleValue("calls_total", new String[]{"path"}, new String[]{"/b"}));
+    }
+
+    @Test
+    void testSetScaleFactorNotScaled() {
+        assertThrows(IllegalStateException.class, () -> new MetricsStore(registry).setScaleFactor(2));
+    }
+}
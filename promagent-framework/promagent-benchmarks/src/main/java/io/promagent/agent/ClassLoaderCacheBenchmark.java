@@ -0,0 +1,98 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.agent;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link ClassLoaderCache#currentClassLoader()} with 64 threads in 4 deployments,
+ * compared with the previous implementation, which was a synchronized method on a {@link HashMap}.
+ * <p/>
+ * Example result on a single core VM with JDK 17 (the scores include the time the 64 threads wait for the CPU):
+ * <pre>
+ * Benchmark                                      Mode  Cnt     Score     Error  Units
+ * ClassLoaderCacheBenchmark.lockFree             avgt   10   524.757 ± 149.763  ns/op
+ * ClassLoaderCacheBenchmark.synchronizedHashMap  avgt   10  2266.910 ± 227.816  ns/op
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Threads(64)
+@Fork(1)
+public class ClassLoaderCacheBenchmark {
+
+    private static final int N_DEPLOYMENTS = 4;
+
+    private ClassLoaderCache classLoaderCache;
+    private SynchronizedClassLoaderCache synchronizedClassLoaderCache;
+    private ClassLoader[] deployments;
+    private final AtomicInteger nextDeployment = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class DeploymentThread {
+        @Setup
+        public void setup(ClassLoaderCacheBenchmark benchmark) {
+            int deployment = benchmark.nextDeployment.getAndIncrement() % N_DEPLOYMENTS;
+            Thread.currentThread().setContextClassLoader(benchmark.deployments[deployment]);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        classLoaderCache = new ClassLoaderCache(Collections.emptyList(), Collections.emptyList());
+        synchronizedClassLoaderCache = new SynchronizedClassLoaderCache();
+        deployments = new ClassLoader[N_DEPLOYMENTS];
+        for (int i = 0; i < N_DEPLOYMENTS; i++) {
+            deployments[i] = new URLClassLoader(new URL[0]);
+        }
+    }
+
+    @Benchmark
+    public ClassLoader lockFree(DeploymentThread thread) {
+        return classLoaderCache.currentClassLoader();
+    }
+
+    @Benchmark
+    public ClassLoader synchronizedHashMap(DeploymentThread thread) {
+        return synchronizedClassLoaderCache.currentClassLoader();
+    }
+
+    /**
+     * Previous implementation of {@link ClassLoaderCache#currentClassLoader()}.
+     */
+    private static class SynchronizedClassLoaderCache {
+
+        private final Map<ClassLoader, ClassLoader> cache = new HashMap<>();
+
+        synchronized ClassLoader currentClassLoader() {
+            ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+            if (! cache.containsKey(contextClassLoader)) {
+                cache.put(contextClassLoader, new URLClassLoader(new URL[0], contextClassLoader));
+            }
+            return cache.get(contextClassLoader);
+        }
+    }
+}
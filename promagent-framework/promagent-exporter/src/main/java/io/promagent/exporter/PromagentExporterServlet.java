@@ -14,6 +14,7 @@
 
 package io.promagent.exporter;
 
+import javax.management.MBeanServer;
 import javax.management.ObjectName;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -24,20 +25,56 @@ import java.lang.management.ManagementFactory;
 
 /**
  * This servlet simply calls the ExporterMBean via JMX and provides the result.
+ * The OpenMetrics format is provided if the client's Accept header asks for it, the Prometheus text format otherwise.
+ * The <tt>name[]</tt> and <tt>name_prefix[]</tt> request parameters select a subset of the metric families.
  */
 @WebServlet("/")
 public class PromagentExporterServlet extends HttpServlet {
 
+    private static final String CONTENT_TYPE_004 = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String CONTENT_TYPE_OPENMETRICS = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
     @Override
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
         try {
-            String result = (String) ManagementFactory.getPlatformMBeanServer()
-                    .getAttribute(new ObjectName("io.promagent:type=exporter"), "TextFormat");
-            response.getWriter().println(result);
+            boolean openMetrics = acceptsOpenMetrics(request.getHeader("Accept"));
+            String[] names = request.getParameterValues("name[]");
+            String[] namePrefixes = request.getParameterValues("name_prefix[]");
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName exporter = new ObjectName("io.promagent:type=exporter");
+            String result;
+            if (names == null && namePrefixes == null) {
+                result = (String) mBeanServer.getAttribute(exporter, openMetrics ? "OpenMetricsFormat" : "TextFormat");
+            } else {
+                result = (String) mBeanServer.invoke(exporter, openMetrics ? "filteredOpenMetricsFormat" : "filteredTextFormat",
+                        new Object[]{names, namePrefixes}, new String[]{String[].class.getName(), String[].class.getName()});
+            }
+            response.setContentType(openMetrics ? CONTENT_TYPE_OPENMETRICS : CONTENT_TYPE_004);
+            response.getWriter().print(result); // nothing may follow the "# EOF" line in OpenMetrics
         } catch (Exception e) {
             response.setStatus(500);
             response.getWriter().println("Failed to load Exporter MBean. Are you sure the Prometheus agent is running?");
             e.printStackTrace();
         }
     }
+
+    /**
+     * True if the Accept header lists application/openmetrics-text with a quality greater than 0.
+     */
+    private static boolean acceptsOpenMetrics(String accept) {
+        if (accept != null) {
+            for (String mediaRange : accept.split(",")) {
+                String[] parts = mediaRange.split(";");
+                if ("application/openmetrics-text".equalsIgnoreCase(parts[0].trim())) {
+                    for (int i = 1; i < parts.length; i++) {
+                        if (parts[i].trim().matches("q=0(\\.0*)?")) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 }
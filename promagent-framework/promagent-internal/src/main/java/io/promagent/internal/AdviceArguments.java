@@ -0,0 +1,118 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.promagent.internal.HookMetadata.MethodSignature;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.asm.Advice.OffsetMapping;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
+import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
+import net.bytebuddy.implementation.bytecode.constant.NullConstant;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Custom annotations for the parameters of {@link PromagentAdvice}, which are resolved per instrumented method.
+ * <p/>
+ * Byte Buddy's {@link Advice.AllArguments} and {@link Advice.Return} would create a new argument array
+ * and box primitive return values for each call of an instrumented method, even if no hook uses them.
+ * The annotations in this class are resolved when the instrumented class is transformed:
+ * If a hook method uses the arguments or the return value, the advice gets the same value as with
+ * {@link Advice.AllArguments} or {@link Advice.Return}. Otherwise, the advice gets <tt>null</tt>,
+ * which does not create any garbage.
+ * <p/>
+ * {@link DispatchId} is resolved to the intercepted method's id in {@link InstrumentedMethods}, which is embedded
+ * as an <tt>int</tt> constant in the instrumented code.
+ */
+public class AdviceArguments {
+
+    /**
+     * Like {@link Advice.AllArguments}, but <tt>null</tt> if no hook has a @Before method (for the enter advice)
+     * or an @After method (for the exit advice) for the instrumented method, or if the instrumented method has no parameters.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.PARAMETER)
+    public @interface Arguments {}
+
+    /**
+     * Like {@link Advice.Return} with dynamic typing, but <tt>null</tt> if no hook has an @After method
+     * with a parameter annotated with {@link io.promagent.annotations.Returned} for the instrumented method.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.PARAMETER)
+    public @interface ReturnValue {}
+
+    /**
+     * The intercepted method's dispatch id, see {@link InstrumentedMethods}.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.PARAMETER)
+    public @interface DispatchId {}
+
+    private static final OffsetMapping.Target NULL = new OffsetMapping.Target.ForStackManipulation(NullConstant.INSTANCE);
+
+    private AdviceArguments() {}
+
+    /**
+     * Bind {@link Arguments}, {@link ReturnValue}, and {@link DispatchId} for the instrumentedMethods.
+     */
+    public static Advice.WithCustomMapping withCustomMapping(InstrumentedMethods instrumentedMethods) {
+        OffsetMapping allArguments = new OffsetMapping.ForAllArguments(TypeDescription.Generic.OBJECT, true, Assigner.Typing.DYNAMIC);
+        OffsetMapping returnValue = new OffsetMapping.ForReturnValue(TypeDescription.Generic.OBJECT, true, Assigner.Typing.DYNAMIC);
+        return Advice.withCustomMapping()
+                .bind(Arguments.class, (OffsetMapping) (instrumentedType, instrumentedMethod, assigner, argumentHandler, sort) -> {
+                    MethodSignature signature = signatureOf(instrumentedMethods, instrumentedMethod);
+                    boolean used = sort == OffsetMapping.Sort.ENTER ? signature.hasBefore() : signature.hasAfter();
+                    if (used && !instrumentedMethod.getParameters().isEmpty()) {
+                        return allArguments.resolve(instrumentedType, instrumentedMethod, assigner, argumentHandler, sort);
+                    }
+                    return NULL;
+                })
+                .bind(ReturnValue.class, (OffsetMapping) (instrumentedType, instrumentedMethod, assigner, argumentHandler, sort) -> {
+                    if (signatureOf(instrumentedMethods, instrumentedMethod).hasReturned()) {
+                        return returnValue.resolve(instrumentedType, instrumentedMethod, assigner, argumentHandler, sort);
+                    }
+                    return NULL;
+                })
+                .bind(DispatchId.class, (OffsetMapping) (instrumentedType, instrumentedMethod, assigner, argumentHandler, sort) ->
+                        new OffsetMapping.Target.ForStackManipulation(IntegerConstant.forValue(dispatchIdOf(instrumentedMethods, instrumentedMethod))));
+    }
+
+    private static MethodSignature signatureOf(InstrumentedMethods instrumentedMethods, MethodDescription instrumentedMethod) {
+        return instrumentedMethods.getSignature(dispatchIdOf(instrumentedMethods, instrumentedMethod));
+    }
+
+    private static int dispatchIdOf(InstrumentedMethods instrumentedMethods, MethodDescription instrumentedMethod) {
+        int dispatchId = instrumentedMethods.getDispatchId(signatureOf(instrumentedMethod));
+        if (dispatchId < 0) {
+            throw new IllegalStateException(instrumentedMethod + " is not instrumented by any hook. This is a bug in promagent.");
+        }
+        return dispatchId;
+    }
+
+    private static MethodSignature signatureOf(MethodDescription method) {
+        List<String> parameterTypes = method.getParameters().asTypeList().asErasures().stream()
+                .map(TypeDescription::getActualName)
+                .collect(Collectors.toList());
+        return new MethodSignature(method.getName(), parameterTypes);
+    }
+}
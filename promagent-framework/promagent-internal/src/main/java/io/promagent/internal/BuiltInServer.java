@@ -14,54 +14,196 @@
 
 package io.promagent.internal;
 
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
-import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.common.TextFormat;
+import io.promagent.internal.jmx.PromagentCollectorRegistry;
+import io.prometheus.client.Collector;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Use the Java runtime's built-in {@link HttpServer} to export Prometheus metrics.
+ * <p/>
+ * Scrapers can request a subset of the metrics with <tt>name[]</tt> and <tt>name_prefix[]</tt> query parameters, see {@link MetricFilter}.
+ * <p/>
+ * Requests are handled by a pool of daemon threads, so a slow client doesn't block other scrapes.
+ * The server can be configured with the following command line arguments:
+ * <ul>
+ *     <li><tt>serverThreads</tt>: Number of request threads, default is {@value #DEFAULT_THREADS}. With <tt>serverThreads=virtual</tt>,
+ *         each request runs in a new virtual thread. On JVMs without virtual threads, the default pool is used instead.</li>
+ *     <li><tt>serverBacklog</tt>: Maximum number of pending connections, default is {@value #DEFAULT_BACKLOG}.</li>
+ *     <li><tt>serverTimeoutSeconds</tt>: Time limit for reading a request and for writing a response.
+ *         Default is no time limit. Note that the {@link HttpServer} implementation reads this only once per JVM,
+ *         so it has no effect if the application started an {@link HttpServer} before the agent.</li>
+ * </ul>
  */
 class BuiltInServer {
 
-    static void run(String host, String portString, CollectorRegistry registry) throws Exception {
-        try {
-            int port = Integer.parseInt(portString);
-            InetSocketAddress address = host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
-            HttpServer httpServer = HttpServer.create(address, 10);
-            httpServer.createContext("/", httpExchange -> {
-                if ("/metrics".equals(httpExchange.getRequestURI().getPath())) {
-                    respondMetrics(registry, httpExchange);
+    private static final int DEFAULT_THREADS = 4;
+    private static final int DEFAULT_BACKLOG = 10;
+    private static final String VIRTUAL = "virtual";
+
+    /**
+     * The args are the agent's command line arguments, see {@link BuiltInServer} for the server specific arguments.
+     * If scrapeCache is null, each scrape collects the registry and streams the metrics to the response.
+     */
+    static HttpServer run(Map<String, String> args, PromagentCollectorRegistry registry, ScrapeCache scrapeCache) throws Exception {
+        String host = args.get("host");
+        int port = parse(args.get("port"), "port number");
+        int backlog = args.containsKey("serverBacklog") ? parse(args.get("serverBacklog"), "serverBacklog") : DEFAULT_BACKLOG;
+        Executor executor = createExecutor(args.get("serverThreads"));
+        if (args.containsKey("serverTimeoutSeconds")) {
+            setTimeout(parse(args.get("serverTimeoutSeconds"), "serverTimeoutSeconds"));
+        }
+        InetSocketAddress address = host == null ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+        HttpServer httpServer = HttpServer.create(address, backlog);
+        httpServer.setExecutor(executor);
+        httpServer.createContext("/", httpExchange -> {
+            if ("/metrics".equals(httpExchange.getRequestURI().getPath())) {
+                MetricFilter filter = MetricFilter.fromQuery(httpExchange.getRequestURI().getRawQuery());
+                if (!filter.isEmpty()) {
+                    respondMetrics(registry.metricFamilySamples(filter), httpExchange); // partial scrapes don't use the cache
+                } else if (scrapeCache == null) {
+                    respondMetrics(registry.metricFamilySamples(), httpExchange);
                 } else {
-                    respondRedirect(httpExchange);
+                    respondCachedMetrics(scrapeCache, httpExchange);
                 }
-            });
-            httpServer.start();
+            } else {
+                respondRedirect(httpExchange);
+            }
+        });
+        httpServer.start();
+        return httpServer;
+    }
+
+    /**
+     * threadsString is a number of threads, "virtual", or null for the default number of threads.
+     */
+    static Executor createExecutor(String threadsString) {
+        if (VIRTUAL.equalsIgnoreCase(threadsString)) {
+            try {
+                // Executors.newVirtualThreadPerTaskExecutor() is available as of Java 21. Called via reflection because we compile for Java 8.
+                return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                System.err.println("Promagent: Virtual threads are not available in this JVM, using " + DEFAULT_THREADS + " server threads.");
+                return newThreadPool(DEFAULT_THREADS);
+            }
+        }
+        int nThreads = threadsString == null ? DEFAULT_THREADS : parse(threadsString, "serverThreads");
+        if (nThreads < 1) {
+            throw new RuntimeException("Failed to parse command line arguments: '" + threadsString + "' is not a valid serverThreads.");
+        }
+        return newThreadPool(nThreads);
+    }
+
+    private static Executor newThreadPool(int nThreads) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(nThreads, runnable -> {
+            Thread thread = new Thread(runnable, "promagent-http-server-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The JDK's {@link HttpServer} implementation reads the time limits for requests and responses from system properties
+     * when the first server is created. Properties set explicitly by the user take precedence.
+     */
+    private static void setTimeout(int seconds) {
+        if (seconds < 1) {
+            throw new RuntimeException("Failed to parse command line arguments: '" + seconds + "' is not a valid serverTimeoutSeconds.");
+        }
+        for (String property : new String[]{"sun.net.httpserver.maxReqTime", "sun.net.httpserver.maxRspTime"}) {
+            if (System.getProperty(property) == null) {
+                System.setProperty(property, Integer.toString(seconds));
+            }
+        }
+    }
+
+    private static int parse(String value, String name) {
+        try {
+            return Integer.parseInt(value);
         } catch (NumberFormatException e) {
-            throw new RuntimeException("Failed to parse command line arguments: '" + portString + "' is not a valid port number.");
+            throw new RuntimeException("Failed to parse command line arguments: '" + value + "' is not a valid " + name + ".");
         }
     }
 
-    private static void respondMetrics(CollectorRegistry registry, HttpExchange httpExchange) throws IOException {
-        StringWriter respBodyWriter = new StringWriter();
-        respBodyWriter.write("# Metrics will become visible when they are updated for the first time.\n");
-        TextFormat.write004(respBodyWriter, registry.metricFamilySamples());
-        byte[] respBody = respBodyWriter.toString().getBytes("UTF-8");
-        httpExchange.getResponseHeaders().put("Context-Type", Collections.singletonList("text/plain; charset=UTF-8"));
-        httpExchange.sendResponseHeaders(200, respBody.length);
-        httpExchange.getResponseBody().write(respBody);
-        httpExchange.getResponseBody().close();
+    /**
+     * The metrics are written directly to the response body with chunked transfer encoding,
+     * in the format negotiated with the Accept header, and gzip-compressed if the client accepts it. See {@link ResponseWriter}.
+     */
+    private static void respondMetrics(Enumeration<Collector.MetricFamilySamples> mfs, HttpExchange httpExchange) throws IOException {
+        ExpositionFormat format = ExpositionFormat.negotiate(accept(httpExchange.getRequestHeaders()));
+        boolean gzip = acceptsGzip(httpExchange.getRequestHeaders());
+        setContentHeaders(httpExchange, format, gzip);
+        httpExchange.sendResponseHeaders(200, 0); // 0 means chunked
+        try (ResponseWriter writer = ResponseWriter.acquire().open(httpExchange.getResponseBody(), gzip)) {
+            format.write(writer, mfs);
+        }
+    }
+
+    /**
+     * The metrics are shared with concurrent scrapes, and may be cached, see {@link ScrapeCache}.
+     */
+    private static void respondCachedMetrics(ScrapeCache scrapeCache, HttpExchange httpExchange) throws IOException {
+        ExpositionFormat format = ExpositionFormat.negotiate(accept(httpExchange.getRequestHeaders()));
+        boolean gzip = acceptsGzip(httpExchange.getRequestHeaders());
+        ScrapeCache.Payload payload = scrapeCache.get();
+        setContentHeaders(httpExchange, format, gzip);
+        httpExchange.sendResponseHeaders(200, payload.size(format, gzip));
+        try (OutputStream body = httpExchange.getResponseBody()) {
+            payload.writeTo(body, format, gzip);
+        }
+    }
+
+    private static void setContentHeaders(HttpExchange httpExchange, ExpositionFormat format, boolean gzip) {
+        httpExchange.getResponseHeaders().put("Content-Type", Collections.singletonList(format.getContentType()));
+        httpExchange.getResponseHeaders().put("Vary", Collections.singletonList("Accept, Accept-Encoding"));
+        if (gzip) {
+            httpExchange.getResponseHeaders().put("Content-Encoding", Collections.singletonList("gzip"));
+        }
+    }
+
+    /**
+     * All Accept headers joined with ",", or null if there is no Accept header.
+     */
+    private static String accept(Headers requestHeaders) {
+        List<String> accept = requestHeaders.get("Accept");
+        return accept == null ? null : String.join(",", accept);
+    }
+
+    /**
+     * True if the Accept-Encoding header contains gzip, unless with q=0.
+     */
+    static boolean acceptsGzip(Headers requestHeaders) {
+        List<String> acceptEncoding = requestHeaders.get("Accept-Encoding");
+        if (acceptEncoding != null) {
+            for (String header : acceptEncoding) {
+                for (String encoding : header.split(",")) {
+                    String[] parts = encoding.split(";");
+                    if ("gzip".equalsIgnoreCase(parts[0].trim()) && (parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
     }
 
     private static void respondRedirect(HttpExchange httpExchange) throws IOException {
         byte[] respBody = "Metrics are provided on the /metrics endpoint.".getBytes("UTF-8");
         httpExchange.getResponseHeaders().add("Location", "/metrics");
-        httpExchange.getResponseHeaders().put("Context-Type", Collections.singletonList("text/plain; charset=UTF-8"));
+        httpExchange.getResponseHeaders().put("Content-Type", Collections.singletonList("text/plain; charset=UTF-8"));
         httpExchange.sendResponseHeaders(302, respBody.length);
         httpExchange.getResponseBody().write(respBody);
         httpExchange.getResponseBody().close();
@@ -0,0 +1,153 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Disables hooks that keep failing.
+ * <p/>
+ * The {@link Delegator} reports each exception thrown by a hook with {@link #recordFailure(int, Throwable)}.
+ * If a hook fails {@link #DEFAULT_MAX_FAILURES} times within {@link #DEFAULT_WINDOW_SECONDS}, the circuit is opened,
+ * i.e. the hook is disabled. After {@link #DEFAULT_OPEN_SECONDS}, the hook is tried again.
+ * If it fails again within the next window, the circuit is opened again right away.
+ * <p/>
+ * Failures are logged to stderr, but at most once per hook per window, so that a broken hook does not flood the logs.
+ * The circuit breaker is also a {@link Collector} exporting the number of failures per hook as <tt>promagent_hook_errors_total</tt>.
+ */
+class CircuitBreaker extends Collector {
+
+    static final int DEFAULT_MAX_FAILURES = 10;
+    static final long DEFAULT_WINDOW_SECONDS = 60;
+    static final long DEFAULT_OPEN_SECONDS = 60;
+
+    private final String[] hookNames; // indexed by hook id
+    private final int maxFailures;
+    private final long windowNanos;
+    private final long openNanos;
+    private final LongSupplier clock;
+    private final AtomicLongArray openUntil; // 0 if the circuit is closed
+    private final AtomicLongArray errors;
+    private final long[] windowStart;
+    private final int[] failuresInWindow;
+    private final long[] nextLog;
+    private final int[] suppressed; // number of failures not logged since the last log message
+
+    CircuitBreaker(Collection<HookMetadata> hookMetadata) {
+        this(hookMetadata, DEFAULT_MAX_FAILURES, TimeUnit.SECONDS.toNanos(DEFAULT_WINDOW_SECONDS), TimeUnit.SECONDS.toNanos(DEFAULT_OPEN_SECONDS), System::nanoTime);
+    }
+
+    CircuitBreaker(Collection<HookMetadata> hookMetadata, int maxFailures, long windowNanos, long openNanos, LongSupplier clock) {
+        int nHooks = hookMetadata.size();
+        this.hookNames = new String[nHooks];
+        for (HookMetadata hook : hookMetadata) {
+            hookNames[hook.getId()] = hook.getHookClassName();
+        }
+        this.maxFailures = maxFailures;
+        this.windowNanos = windowNanos;
+        this.openNanos = openNanos;
+        this.clock = clock;
+        this.openUntil = new AtomicLongArray(nHooks);
+        this.errors = new AtomicLongArray(nHooks);
+        this.windowStart = new long[nHooks];
+        this.failuresInWindow = new int[nHooks];
+        this.nextLog = new long[nHooks];
+        this.suppressed = new int[nHooks];
+    }
+
+    /**
+     * False if the hook is disabled. This is called for each outer call, so the closed case is a single volatile read.
+     */
+    boolean isClosed(int hookId) {
+        long until = openUntil.get(hookId);
+        if (until == 0) {
+            return true;
+        }
+        if (clock.getAsLong() - until < 0) {
+            return false;
+        }
+        close(hookId, until);
+        return true;
+    }
+
+    private synchronized void close(int hookId, long until) {
+        if (openUntil.compareAndSet(hookId, until, 0)) {
+            // A single failure in the next window opens the circuit again.
+            windowStart[hookId] = clock.getAsLong();
+            failuresInWindow[hookId] = maxFailures - 1;
+            System.err.println("Promagent: Re-enabling hook " + hookNames[hookId] + ".");
+        }
+    }
+
+    synchronized void recordFailure(int hookId, Throwable failure) {
+        errors.incrementAndGet(hookId);
+        long now = clock.getAsLong();
+        if (now - windowStart[hookId] >= windowNanos) {
+            windowStart[hookId] = now;
+            failuresInWindow[hookId] = 0;
+        }
+        log(hookId, failure, now);
+        if (++failuresInWindow[hookId] >= maxFailures && openUntil.get(hookId) == 0) {
+            openUntil.set(hookId, nonZero(now + openNanos));
+            System.err.println("Promagent: Disabling hook " + hookNames[hookId] + " for " + TimeUnit.NANOSECONDS.toSeconds(openNanos) + " seconds, " +
+                    "because it failed " + failuresInWindow[hookId] + " times within " + TimeUnit.NANOSECONDS.toSeconds(windowNanos) + " seconds.");
+        }
+    }
+
+    private void log(int hookId, Throwable failure, long now) {
+        if (nextLog[hookId] != 0 && now - nextLog[hookId] < 0) {
+            suppressed[hookId]++;
+            return;
+        }
+        nextLog[hookId] = nonZero(now + windowNanos);
+        String suppressedMessage = suppressed[hookId] == 0 ? "" : " (" + suppressed[hookId] + " more failures since the last message)";
+        suppressed[hookId] = 0;
+        System.err.println("Promagent: Error executing hook " + hookNames[hookId] + suppressedMessage + ":");
+        failure.printStackTrace();
+    }
+
+    private static long nonZero(long nanoTime) {
+        return nanoTime == 0 ? 1 : nanoTime;
+    }
+
+    long getErrorCount(int hookId) {
+        return errors.get(hookId);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<String> hookLabel = Collections.singletonList("hook");
+        CounterMetricFamily errorsTotal = new CounterMetricFamily("promagent_hook_errors_total",
+                "Number of exceptions thrown by hooks.", hookLabel);
+        GaugeMetricFamily disabled = new GaugeMetricFamily("promagent_hook_disabled",
+                "1 if the hook is disabled because it failed too often, 0 otherwise.", hookLabel);
+        for (int id = 0; id < hookNames.length; id++) {
+            List<String> hook = Collections.singletonList(hookNames[id]);
+            errorsTotal.addMetric(hook, errors.get(id));
+            disabled.addMetric(hook, openUntil.get(id) == 0 ? 0 : 1);
+        }
+        return Arrays.asList(errorsTotal, disabled);
+    }
+}
@@ -15,147 +15,290 @@
 package io.promagent.internal;
 
 import io.promagent.agent.ClassLoaderCache;
+import io.promagent.agent.Dispatcher;
+import io.promagent.agent.DispatcherBridge;
 import io.promagent.annotations.After;
 import io.promagent.annotations.Before;
-import io.promagent.annotations.Returned;
-import io.promagent.annotations.Thrown;
+import io.promagent.annotations.Hook;
+import io.promagent.annotations.Reset;
 import io.promagent.hookcontext.MetricsStore;
+import io.promagent.internal.HookMetadata.MethodSignature;
 
 import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
- * Delegator is called from the Byte Buddy Advice, and calls the Hook's @Before and @After methods.
+ * Delegator is called from the Byte Buddy Advice via the {@link DispatcherBridge}, and calls the Hook's @Before and @After methods.
  * <p>
- * TODO: This is called often, should be performance optimized, e.g. caching hook method handles, etc.
+ * The intercepted method is identified by the dispatch id that was embedded in the instrumented code when the class was transformed,
+ * see {@link InstrumentedMethods}. Which hooks apply to an intercepted method is found by the {@link HookMatcher},
+ * resolved only once and cached in the {@link DispatchTable},
+ * and the hook methods are bound to method handles when they are resolved, see {@link HookMethod}.
  */
-public class Delegator {
+public class Delegator implements Dispatcher {
 
-    private static Delegator instance; // not thread-safe, but it is set only once in the agent's premain method.
+    private static final Object[] NO_ARGS = new Object[0];
 
-    private final SortedSet<HookMetadata> hookMetadata;
+    private final HookMetadata[] hooksById;
+    private final InstrumentedMethods instrumentedMethods;
+    private final HookMatcher hookMatcher;
     private final MetricsStore metricsStore;
     private final ClassLoaderCache classLoaderCache;
-    private final ThreadLocal<Map<Class<?>, Object>> threadLocal;
+    private final ThreadLocal<ThreadState> threadLocal;
+    private final DispatchTable dispatchTable;
+    private final OverheadGovernor governor; // null if the overhead is not limited
+    private final CircuitBreaker circuitBreaker;
+    private final EnabledHooks enabledHooks;
+    private final ClassValue<HookMethod[]> hookMethods = new ClassValue<HookMethod[]>() {
+        @Override
+        protected HookMethod[] computeValue(Class<?> hookClass) {
+            return bindHookMethods(hookClass);
+        }
+    };
+    private final ClassValue<Object> singletons = new ClassValue<Object>() {
+        @Override
+        protected Object computeValue(Class<?> hookClass) {
+            return newHookInstance(hookClass);
+        }
+    };
+    private final ClassValue<Object> notSampled = new ClassValue<Object>() {
+        @Override
+        protected Object computeValue(Class<?> hookClass) {
+            return new Object();
+        }
+    };
+    private final ClassValue<MetricsStore> hookMetricsStores = new ClassValue<MetricsStore>() {
+        @Override
+        protected MetricsStore computeValue(Class<?> hookClass) {
+            Hook hook = hookClass.getAnnotation(Hook.class);
+            return hook.scaleSampledMetrics() ? newScaledMetricsStore(hookClass) : metricsStore;
+        }
+    };
+    // Scaled MetricsStores by hook class, weak keys like ClassValue so that hook classes can be unloaded. Guarded by itself.
+    private final Map<Class<?>, MetricsStore> scaledMetricsStores = new WeakHashMap<>();
 
-    private Delegator(SortedSet<HookMetadata> hookMetadata, MetricsStore metricsStore, ClassLoaderCache classLoaderCache) {
-        this.hookMetadata = hookMetadata;
+    private Delegator(SortedSet<HookMetadata> hookMetadata, MetricsStore metricsStore, ClassLoaderCache classLoaderCache, OverheadGovernor governor, CircuitBreaker circuitBreaker, EnabledHooks enabledHooks) {
+        this.hooksById = new HookMetadata[hookMetadata.size()];
+        for (HookMetadata hook : hookMetadata) {
+            hooksById[hook.getId()] = hook;
+        }
+        this.instrumentedMethods = new InstrumentedMethods(hookMetadata);
+        this.hookMatcher = new HookMatcher(hookMetadata, instrumentedMethods);
         this.metricsStore = metricsStore;
         this.classLoaderCache = classLoaderCache;
-        this.threadLocal = ThreadLocal.withInitial(HashMap::new);
+        this.threadLocal = ThreadLocal.withInitial(() -> new ThreadState(hookMetadata.size()));
+        this.dispatchTable = new DispatchTable(instrumentedMethods.size(), this::resolveHooks);
+        this.governor = governor;
+        this.circuitBreaker = circuitBreaker;
+        this.enabledHooks = enabledHooks;
+        if (governor != null) {
+            governor.setThrottleListener(this::throttleChanged);
+        }
     }
 
     public static void init(SortedSet<HookMetadata> hookMetadata, MetricsStore metricsStore, ClassLoaderCache classLoaderCache) {
-        instance = new Delegator(hookMetadata, metricsStore, classLoaderCache);
+        init(hookMetadata, metricsStore, classLoaderCache, null, new CircuitBreaker(hookMetadata), new EnabledHooks(hookMetadata, null));
     }
 
     /**
-     * Should be called from the Advice's @OnMethodEnter method. Returns the list of Hooks to be passed on to after()
+     * If governor is not null, the time spent in each hook is reported to the governor, and hooks are throttled as decided by the governor.
+     * Exceptions thrown by hooks are reported to the circuitBreaker, which disables hooks that keep failing.
+     * Hooks disabled in enabledHooks are not called, even if the intercepted class is still instrumented for other hooks.
      */
-    public static List<HookInstance> before(Class<?> interceptedClass, Method interceptedMethod, Object[] args) {
-        return instance.doBefore(interceptedClass, interceptedMethod, args);
-    }
-
-    private List<HookInstance> doBefore(Class<?> interceptedClass, Method interceptedMethod, Object[] args) {
-        List<HookInstance> hookInstances = loadFromThreadLocalOrCreate(interceptedClass, interceptedMethod);
-        for (HookInstance hookInstance : hookInstances) {
-            invokeBefore(hookInstance.getInstance(), interceptedMethod, args);
-        }
-        return hookInstances;
+    static void init(SortedSet<HookMetadata> hookMetadata, MetricsStore metricsStore, ClassLoaderCache classLoaderCache,
+                     OverheadGovernor governor, CircuitBreaker circuitBreaker, EnabledHooks enabledHooks) {
+        DispatcherBridge.register(new Delegator(hookMetadata, metricsStore, classLoaderCache, governor, circuitBreaker, enabledHooks));
     }
 
     /**
-     * Should be called from the Advice's @OnMethodExit method. First parameter is the list of hooks returned by before()
+     * Should be called from the Advice's @OnMethodEnter method. Returns the {@link Frame} to be passed on to after(),
+     * or null if no hook is called.
      */
-    public static void after(List<HookInstance> hookInstances, Method interceptedMethod, Object[] args, Object returned, Throwable thrown) {
-        instance.doAfter(hookInstances, interceptedMethod, args, returned, thrown);
+    @Override
+    public Frame before(Class<?> interceptedClass, int dispatchId, Object[] args) {
+        return doBefore(interceptedClass, dispatchId, args);
     }
 
-    private void doAfter(List<HookInstance> hookInstances, Method interceptedMethod, Object[] args, Object returned, Throwable thrown) {
-        if (hookInstances != null) {
-            for (HookInstance hookInstance : hookInstances) {
-                invokeAfter(hookInstance.getInstance(), interceptedMethod, args, returned, thrown);
-                if (!hookInstance.isRecursiveCall()) {
-                    threadLocal.get().remove(hookInstance.getInstance().getClass());
+    private Frame doBefore(Class<?> interceptedClass, int dispatchId, Object[] args) {
+        HookDispatch[] hooks = dispatchTable.get(interceptedClass, dispatchId, classLoaderCache.currentClassLoader());
+        if (hooks.length == 0) {
+            return null;
+        }
+        ThreadState threadState = threadLocal.get();
+        Frame frame = threadState.push();
+        try {
+            for (HookDispatch hook : hooks) {
+                if (!shouldBeSkipped(hook, threadState)) {
+                    long start = governor == null ? 0 : System.nanoTime();
+                    try {
+                        frame.add(hook, loadFromTheadLocalOrCreate(hook, threadState));
+                    } catch (RuntimeException e) {
+                        circuitBreaker.recordFailure(hook.getId(), e);
+                    }
+                    record(hook, start);
+                }
+            }
+            if (frame.size == 0) {
+                threadState.pop(frame);
+                return null;
+            }
+            for (int i = 0; i < frame.size; i++) {
+                if (frame.instances[i] != frame.hooks[i].getNotSampled()) {
+                    long start = governor == null ? 0 : System.nanoTime();
+                    try {
+                        invokeBefore(frame.hooks[i], frame.instances[i], args);
+                    } catch (RuntimeException e) {
+                        circuitBreaker.recordFailure(frame.hooks[i].getId(), e);
+                        // Don't call @After on a hook instance that failed in @Before.
+                        release(frame, i, threadState);
+                    }
+                    record(frame.hooks[i], start);
+                }
+            }
+            return frame;
+        } catch (Throwable t) {
+            // This is a bug in promagent. Clean up so that the next calls in this thread are not treated as nested calls.
+            for (int i = 0; i < frame.size; i++) {
+                if (frame.instances[i] != null) {
+                    threadState.release(frame.hooks[i], frame.instances[i]);
                 }
             }
+            threadState.pop(frame);
+            throw t;
         }
     }
 
-    private List<HookInstance> loadFromThreadLocalOrCreate(Class<?> interceptedClass, Method interceptedMethod) {
-        return hookMetadata.stream()
-                .filter(hook -> classOrInterfaceMatches(interceptedClass, hook))
-                .filter(hook -> methodNameAndNumArgsMatch(interceptedMethod, hook))
-                .map(hook -> loadHookClass(hook))
-                .filter(hookClass -> argumentTypesMatch(hookClass, interceptedMethod))
-                .filter(hookClass -> ! shouldBeSkipped(hookClass))
-                .map(hookClass -> loadFromTheadLocalOrCreate(hookClass))
-                .collect(Collectors.toList());
+    /**
+     * Should be called from the Advice's @OnMethodExit method. First parameter is the {@link Frame} returned by before()
+     */
+    @Override
+    public void after(Object frame, Object[] args, Object returned, Throwable thrown) {
+        doAfter((Frame) frame, args, returned, thrown);
     }
 
-    private static boolean classOrInterfaceMatches(Class<?> classToBeInstrumented, HookMetadata hook) {
-        Set<String> classesAndInterfaces = getAllSuperClassesAndInterfaces(classToBeInstrumented);
-        return hook.getInstruments().stream().anyMatch(classesAndInterfaces::contains);
+    private void doAfter(Frame frame, Object[] args, Object returned, Throwable thrown) {
+        if (frame != null) {
+            ThreadState threadState = threadLocal.get();
+            try {
+                for (int i = 0; i < frame.size; i++) {
+                    if (frame.instances[i] == null) {
+                        continue; // released in before()
+                    }
+                    boolean sampled = frame.instances[i] != frame.hooks[i].getNotSampled();
+                    long start = governor == null || !sampled ? 0 : System.nanoTime();
+                    if (sampled) {
+                        try {
+                            invokeAfter(frame.hooks[i], frame.instances[i], args, returned, thrown);
+                        } catch (RuntimeException e) {
+                            circuitBreaker.recordFailure(frame.hooks[i].getId(), e);
+                        }
+                    }
+                    release(frame, i, threadState);
+                    if (sampled) {
+                        record(frame.hooks[i], start);
+                    }
+                }
+            } finally {
+                threadState.pop(frame);
+            }
+        }
     }
 
-    private static Set<String> getAllSuperClassesAndInterfaces(Class<?> clazz) {
-        Set<String> result = new HashSet<>();
-        addAllSuperClassesAndInterfaces(clazz, result);
-        return result;
+    /**
+     * Release the i-th hook instance in the frame, and call its @Reset method if this was the end of the outer call.
+     * The instance is removed from the frame.
+     */
+    private void release(Frame frame, int i, ThreadState threadState) {
+        HookDispatch hook = frame.hooks[i];
+        Object instance = frame.instances[i];
+        frame.instances[i] = null;
+        if (threadState.release(hook, instance) && instance != hook.getNotSampled()) {
+            try {
+                invokeReset(hook, instance);
+            } catch (RuntimeException e) {
+                circuitBreaker.recordFailure(hook.getId(), e);
+            }
+        }
     }
 
-    private static void addAllSuperClassesAndInterfaces(Class<?> clazz, Set<String> result) {
-        if (clazz == null) {
-            return;
-        }
-        if (result.contains(clazz.getName())) {
-            return;
-        }
-        result.add(clazz.getName());
-        for (Class<?> ifc : clazz.getInterfaces()) {
-            addAllSuperClassesAndInterfaces(ifc, result);
+    /**
+     * Report the time since start to the governor, if any.
+     */
+    private void record(HookDispatch hook, long start) {
+        if (governor != null) {
+            governor.record(hook.getId(), System.nanoTime() - start);
         }
-        addAllSuperClassesAndInterfaces(clazz.getSuperclass(), result);
     }
 
-    private static boolean methodNameAndNumArgsMatch(Method interceptedMethod, HookMetadata hook) {
-        return hook.getMethods().stream()
-                .anyMatch(instrumentedMethod -> methodNameAndNumArgsMatch(interceptedMethod, instrumentedMethod));
+    /**
+     * Called by the {@link DispatchTable} the first time an intercepted method is called with a new hook class loader.
+     */
+    private HookDispatch[] resolveHooks(Class<?> interceptedClass, int dispatchId, ClassLoader hookClassLoader) {
+        MethodSignature interceptedMethod = instrumentedMethods.getSignature(dispatchId);
+        List<HookDispatch> result = new ArrayList<>();
+        BitSet hookIds = hookMatcher.getHookIds(interceptedClass, dispatchId);
+        for (int id = hookIds.nextSetBit(0); id >= 0; id = hookIds.nextSetBit(id + 1)) {
+            try {
+                HookDispatch hook = newHookDispatch(hooksById[id], loadHookClass(hooksById[id], hookClassLoader), interceptedMethod);
+                if (hook.getBeforeMethods().length > 0 || hook.getAfterMethods().length > 0) {
+                    result.add(hook);
+                }
+            } catch (RuntimeException e) {
+                // The hook class is invalid, so it is left out for this method and class loader.
+                circuitBreaker.recordFailure(id, e);
+            }
+        }
+        return result.toArray(new HookDispatch[0]);
     }
 
-    private static boolean methodNameAndNumArgsMatch(Method interceptedMethod, HookMetadata.MethodSignature instrumentedMethod) {
-        if (!interceptedMethod.getName().equals(instrumentedMethod.getMethodName())) {
-            return false;
-        }
-        if (interceptedMethod.getParameterCount() != instrumentedMethod.getParameterTypes().size()) {
-            return false;
-        }
-        return true;
+    private HookDispatch newHookDispatch(HookMetadata hook, Class<?> hookClass, MethodSignature interceptedMethod) {
+        return new HookDispatch(hook.getId(), hookClass,
+                findHookMethods(Before.class, hookClass, interceptedMethod),
+                findHookMethods(After.class, hookClass, interceptedMethod),
+                findResetMethod(hookClass),
+                notSampled.get(hookClass));
     }
 
-    private Class<?> loadHookClass(HookMetadata hook) {
+    private static Class<?> loadHookClass(HookMetadata hook, ClassLoader hookClassLoader) {
         try {
-            return classLoaderCache.currentClassLoader().loadClass(hook.getHookClassName());
+            return hookClassLoader.loadClass(hook.getHookClassName());
         } catch (ClassNotFoundException e) {
             throw new HookException("Failed to load Hook class " + hook.getHookClassName() + ": " + e.getMessage(), e);
         }
     }
 
-    private static boolean argumentTypesMatch(Class<?> hookClass, Method interceptedMethod) {
-        List<Method> before = findHookMethods(Before.class, hookClass, interceptedMethod);
-        List<Method> after = findHookMethods(After.class, hookClass, interceptedMethod);
-        return ! (before.isEmpty() && after.isEmpty());
+    private List<HookMethod> findHookMethods(Class<? extends Annotation> annotation, Class<?> hookClass, MethodSignature interceptedMethod) throws HookException {
+        return Stream.of(hookMethods.get(hookClass))
+                .filter(hookMethod -> hookMethod.getMethod().isAnnotationPresent(annotation))
+                .filter(hookMethod -> getMethodNames(hookMethod.getMethod().getAnnotation(annotation)).contains(interceptedMethod.getMethodName()))
+                .filter(hookMethod -> hookMethod.parameterTypesMatch(interceptedMethod))
+                .collect(Collectors.toList());
     }
 
-    private static List<Method> findHookMethods(Class<? extends Annotation> annotation, Class<?> hookClass, Method interceptedMethod) throws HookException {
+    /**
+     * All methods of the hook class annotated with @Before or @After, bound to method handles.
+     */
+    private static HookMethod[] bindHookMethods(Class<?> hookClass) throws HookException {
         return Stream.of(hookClass.getDeclaredMethods())
-                .filter(method -> method.isAnnotationPresent(annotation))
-                .filter(method -> getMethodNames(method.getAnnotation(annotation)).contains(interceptedMethod.getName()))
-                .filter(method -> parameterTypesMatch(method, interceptedMethod))
-                .collect(Collectors.toList());
+                .filter(method -> method.isAnnotationPresent(Before.class) || method.isAnnotationPresent(After.class))
+                .map(HookMethod::of)
+                .toArray(HookMethod[]::new);
+    }
+
+    private static HookMethod findResetMethod(Class<?> hookClass) throws HookException {
+        for (Method method : hookClass.getDeclaredMethods()) {
+            if (method.isAnnotationPresent(Reset.class)) {
+                if (method.getParameterCount() != 0) {
+                    throw new HookException(hookClass.getSimpleName() + "." + method.getName() + "(): Methods annotated with @Reset must not have parameters.");
+                }
+                return HookMethod.of(method);
+            }
+        }
+        return null;
     }
 
     private static List<String> getMethodNames(Annotation annotation) throws HookException {
@@ -168,109 +311,283 @@ public class Delegator {
         }
     }
 
-    // TODO: We could extend this to find the "closest" match, like in Java method calls.
-    private static boolean parameterTypesMatch(Method hookMethod, Method interceptedMethod) {
-        List<Class<?>> hookParameterTypes = stripReturnedAndThrown(hookMethod);
-        if (hookParameterTypes.size() != interceptedMethod.getParameterCount()) {
-            return false;
+    private boolean shouldBeSkipped(HookDispatch hook, ThreadState threadState) {
+        return hook.isSkipNestedCalls() && threadState.getActiveInstance(hook) != null;
+    }
+
+    private Object loadFromTheadLocalOrCreate(HookDispatch hook, ThreadState threadState) {
+        Object existingHookInstance = threadState.getActiveInstance(hook);
+        if (existingHookInstance != null) {
+            threadState.enterNested(hook);
+            return existingHookInstance;
+        } else {
+            Object hookInstance = threadState.isSampled(hook, getThrottle(hook)) ? getOrCreateHookInstance(hook, threadState) : hook.getNotSampled();
+            threadState.enterOuter(hook, hookInstance);
+            return hookInstance;
         }
-        for (int i = 0; i < hookParameterTypes.size(); i++) {
-            Class<?> hookParam = hookParameterTypes.get(i);
-            Class<?> interceptedParam = interceptedMethod.getParameterTypes()[i];
-            if (!hookParam.equals(interceptedParam)) {
-                return false;
+    }
+
+    /**
+     * Factor to be multiplied with the hook's sampleEvery, see {@link OverheadGovernor}, or 0 if the hook is disabled in {@link EnabledHooks} or by the {@link CircuitBreaker}.
+     */
+    private int getThrottle(HookDispatch hook) {
+        if (!enabledHooks.isEnabled(hook.getId()) || !circuitBreaker.isClosed(hook.getId())) {
+            return 0;
+        }
+        return governor == null ? 1 : governor.getThrottle(hook.getId());
+    }
+
+    /**
+     * Hooks with {@link Hook#scaleSampledMetrics()} are scaled by the effective sampling rate, i.e. sampleEvery multiplied with
+     * the governor's throttle factor, so that their metrics still estimate the total number of calls while the hook is throttled.
+     */
+    private MetricsStore newScaledMetricsStore(Class<?> hookClass) {
+        synchronized (scaledMetricsStores) {
+            int throttle = governor == null ? 1 : getGovernorThrottle(hookClass.getName());
+            MetricsStore scaled = metricsStore.scaledBy(scaleFactor(hookClass, throttle));
+            scaledMetricsStores.put(hookClass, scaled);
+            return scaled;
+        }
+    }
+
+    /**
+     * Called by the {@link OverheadGovernor}. A disabled hook (throttle 0) records nothing, so the factor is kept until it is enabled again.
+     */
+    private void throttleChanged(int hookId, int throttle) {
+        if (throttle == 0) {
+            return;
+        }
+        String hookClassName = hooksById[hookId].getHookClassName();
+        synchronized (scaledMetricsStores) {
+            for (Map.Entry<Class<?>, MetricsStore> entry : scaledMetricsStores.entrySet()) {
+                if (entry.getKey().getName().equals(hookClassName)) {
+                    entry.getValue().setScaleFactor(scaleFactor(entry.getKey(), throttle));
+                }
             }
         }
-        return true;
     }
 
-    private static List<Class<?>> stripReturnedAndThrown(Method hookMethod) {
-        Class<?>[] allTypes = hookMethod.getParameterTypes();
-        Annotation[][] annotations = hookMethod.getParameterAnnotations();
-        if (allTypes.length != annotations.length) {
-            throw new HookException("Method.getParameterAnnotations() returned an unexpected value. This is a bug in promagent.");
-        }
-        List<Class<?>> result = new ArrayList<>();
-        for (int i=0; i<allTypes.length; i++) {
-            if (Arrays.stream(annotations[i])
-                    .map(Annotation::annotationType)
-                    .noneMatch(a -> Returned.class.equals(a) || Thrown.class.equals(a))) {
-                result.add(allTypes[i]);
+    private int getGovernorThrottle(String hookClassName) {
+        for (HookMetadata hook : hooksById) {
+            if (hook.getHookClassName().equals(hookClassName)) {
+                return governor.getThrottle(hook.getId());
             }
         }
-        return result;
+        return 1;
     }
 
-    private boolean shouldBeSkipped(Class<?> hookClass) {
-        return hookClass.getAnnotation(io.promagent.annotations.Hook.class).skipNestedCalls()
-                && threadLocal.get().containsKey(hookClass);
+    private static int scaleFactor(Class<?> hookClass, int throttle) {
+        long factor = (long) hookClass.getAnnotation(Hook.class).sampleEvery() * Math.max(throttle, 1);
+        return (int) Math.min(factor, Integer.MAX_VALUE);
     }
 
-    private HookInstance loadFromTheadLocalOrCreate(Class<?> hookClass) {
-        Object existingHookInstance = threadLocal.get().get(hookClass);
-        if (existingHookInstance != null) {
-            return new HookInstance(existingHookInstance, true);
-        } else {
-            String errMsg = "Failed to create new instance of hook " + hookClass.getSimpleName() + ": ";
-            try {
-                Object newHookInstance = hookClass.getConstructor(MetricsStore.class).newInstance(metricsStore);
-                threadLocal.get().put(hookClass, newHookInstance);
-                return new HookInstance(newHookInstance, false);
-            } catch (NoSuchMethodException e) {
-                throw new HookException(errMsg + "Hook classes must have a public constructor with a single parameter of type " + MetricsStore.class.getSimpleName(), e);
-            } catch (Exception e) {
-                throw new HookException(errMsg + e.getMessage(), e);
-            }
+    /**
+     * Get the Hook instance for an outer call as defined by {@link Hook#scope()}.
+     */
+    private Object getOrCreateHookInstance(HookDispatch hook, ThreadState threadState) {
+        switch (hook.getScope()) {
+            case SINGLETON:
+                return singletons.get(hook.getHookClass());
+            case PER_THREAD:
+                Object recycledHookInstance = threadState.getRecycledInstance(hook);
+                if (recycledHookInstance == null) {
+                    recycledHookInstance = newHookInstance(hook.getHookClass());
+                    threadState.recycle(hook, recycledHookInstance);
+                }
+                return recycledHookInstance;
+            default:
+                return newHookInstance(hook.getHookClass());
+        }
+    }
+
+    private Object newHookInstance(Class<?> hookClass) throws HookException {
+        String errMsg = "Failed to create new instance of hook " + hookClass.getSimpleName() + ": ";
+        try {
+            return hookClass.getConstructor(MetricsStore.class).newInstance(hookMetricsStores.get(hookClass));
+        } catch (NoSuchMethodException e) {
+            throw new HookException(errMsg + "Hook classes must have a public constructor with a single parameter of type " + MetricsStore.class.getSimpleName(), e);
+        } catch (Exception e) {
+            throw new HookException(errMsg + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Invoke the Hook method annotated with @Reset when an outer call of a {@link Hook.Scope#PER_THREAD} hook is finished.
+     */
+    private static void invokeReset(HookDispatch hook, Object hookInstance) throws HookException {
+        if (hook.getScope() == Hook.Scope.PER_THREAD && hook.getResetMethod() != null) {
+            hook.getResetMethod().invoke(hookInstance, NO_ARGS, null, null);
         }
     }
 
     /**
      * Invoke the matching Hook methods annotated with @Before
      */
-    private static void invokeBefore(Object hookInstance, Method interceptedMethod, Object[] args) throws HookException {
-        invoke(Before.class, hookInstance, interceptedMethod, args, null, null);
+    private static void invokeBefore(HookDispatch hook, Object hookInstance, Object[] args) throws HookException {
+        invoke(hook.getBeforeMethods(), hookInstance, args, null, null);
     }
 
     /**
      * Invoke the matching Hook methods annotated with @After
      */
-    private static void invokeAfter(Object hookInstance, Method interceptedMethod, Object[] args, Object returned, Throwable thrown) throws HookException {
-        invoke(After.class, hookInstance, interceptedMethod, args, returned, thrown);
+    private static void invokeAfter(HookDispatch hook, Object hookInstance, Object[] args, Object returned, Throwable thrown) throws HookException {
+        invoke(hook.getAfterMethods(), hookInstance, args, returned, thrown);
     }
 
-    private static void invoke(Class<? extends Annotation> annotation, Object hookInstance, Method interceptedMethod, Object[] args, Object returned, Throwable thrown) throws HookException {
-        if (args.length != interceptedMethod.getParameterCount()) {
-            throw new IllegalArgumentException("Number of provided arguments is " + args.length + ", but interceptedMethod expects " + interceptedMethod.getParameterCount() + " argument(s).");
+    private static void invoke(HookMethod[] hookMethods, Object hookInstance, Object[] args, Object returned, Throwable thrown) throws HookException {
+        int nArgs = args == null ? 0 : args.length; // args is null if not used by any hook, see AdviceArguments
+        for (HookMethod method : hookMethods) {
+            if (nArgs != method.getArgumentCount()) {
+                throw new IllegalArgumentException("Number of provided arguments is " + nArgs + ", but " + method.getMethod().getName() + "() expects " + method.getArgumentCount() + " argument(s).");
+            }
+            method.invoke(hookInstance, args, returned, thrown);
         }
-        for (Method method : findHookMethods(annotation, hookInstance.getClass(), interceptedMethod)) {
-            try {
-                if (!method.isAccessible()) {
-                    method.setAccessible(true);
-                }
-                method.invoke(hookInstance, addReturnedAndThrownArgs(method, args, returned, thrown));
-            } catch (Exception e) {
-                throw new HookException("Failed to call " + method.getName() + "() on " + hookInstance.getClass().getSimpleName() + ": " + e.getMessage(), e);
+    }
+
+    /**
+     * Per-thread hook instances, indexed by {@link HookMetadata#getId()}, with nesting depth counters.
+     * <p/>
+     * The instance of an outer call is stored in its slot and re-used for nested calls.
+     * The slot is cleared when the depth counter drops back to zero, i.e. when the outer call returns.
+     * <p/>
+     * Instances of {@link Hook.Scope#PER_THREAD} hooks are additionally kept in the recycled slots for the next outer call.
+     * These are weak references, because the thread may be a pool thread of the application server, and a strong reference
+     * would keep the hook class and its class loader alive after the deployment is undeployed.
+     * <p/>
+     * If an outer call is not sampled (see {@link Hook#sampleEvery()}), the slot contains {@link HookDispatch#getNotSampled()}
+     * instead of a hook instance, so that the nested calls are not sampled either.
+     * <p/>
+     * The {@link Frame}s are a stack with one frame for each nested intercepted call. Frames are re-used,
+     * so that intercepted calls do not allocate any memory once the stack has reached its maximum depth.
+     */
+    private static class ThreadState {
+
+        private final Object[] instances;
+        private final int[] depth;
+        private final WeakReference<?>[] recycled;
+        private final int[] sampleCountdown; // number of outer calls to be skipped before the next sampled call
+        private Frame[] frames = new Frame[8];
+        private int nFrames = 0;
+
+        private ThreadState(int nHooks) {
+            instances = new Object[nHooks];
+            depth = new int[nHooks];
+            recycled = new WeakReference<?>[nHooks];
+            sampleCountdown = new int[nHooks];
+        }
+
+        /**
+         * Returns the instance of the outer call, or {@link HookDispatch#getNotSampled()} if the outer call is not sampled,
+         * or null if this is an outer call.
+         */
+        private Object getActiveInstance(HookDispatch hook) {
+            Object instance = instances[hook.getId()];
+            // The slot might be occupied by the same hook loaded from another deployment, which is not a nested call.
+            return instance != null && (instance.getClass() == hook.getHookClass() || instance == hook.getNotSampled()) ? instance : null;
+        }
+
+        /**
+         * Sampling decision for an outer call, see {@link Hook#sampleEvery()}.
+         * The first outer call in each thread is sampled.
+         * The throttle is the factor from the {@link OverheadGovernor}, and 0 means that the hook is disabled.
+         */
+        private boolean isSampled(HookDispatch hook, int throttle) {
+            int id = hook.getId();
+            if (throttle == 0) {
+                return false;
+            }
+            if (sampleCountdown[id] <= 0) {
+                sampleCountdown[id] = (int) Math.min(Integer.MAX_VALUE, (long) hook.getSampleEvery() * throttle) - 1;
+                return true;
+            }
+            sampleCountdown[id]--;
+            return false;
+        }
+
+        private void enterOuter(HookDispatch hook, Object instance) {
+            if (instances[hook.getId()] == null) {
+                instances[hook.getId()] = instance;
+                depth[hook.getId()] = 1;
+            }
+            // else: The slot is occupied by the same hook from another deployment. The new instance is used for this call only.
+        }
+
+        private void enterNested(HookDispatch hook) {
+            depth[hook.getId()]++;
+        }
+
+        /**
+         * Returns true if this was the end of the outer call.
+         */
+        private boolean release(HookDispatch hook, Object instance) {
+            int id = hook.getId();
+            if (instances[id] == instance && --depth[id] == 0) {
+                instances[id] = null;
+                return true;
+            }
+            return false;
+        }
+
+        private Object getRecycledInstance(HookDispatch hook) {
+            WeakReference<?> ref = recycled[hook.getId()];
+            Object instance = ref == null ? null : ref.get();
+            return instance != null && instance.getClass() == hook.getHookClass() ? instance : null;
+        }
+
+        private void recycle(HookDispatch hook, Object instance) {
+            recycled[hook.getId()] = new WeakReference<>(instance);
+        }
+
+        private Frame push() {
+            if (nFrames == frames.length) {
+                frames = Arrays.copyOf(frames, 2 * frames.length);
+            }
+            if (frames[nFrames] == null) {
+                frames[nFrames] = new Frame(nFrames);
+            }
+            return frames[nFrames++];
+        }
+
+        /**
+         * Pop the frame and all frames above it. Frames above it are only left if an intercepted call failed to call after().
+         */
+        private void pop(Frame frame) {
+            for (int i = nFrames - 1; i >= frame.level; i--) {
+                frames[i].clear();
             }
+            nFrames = frame.level;
         }
     }
 
-    private static Object[] addReturnedAndThrownArgs(Method hookMethod, Object[] args, Object returned, Throwable thrown) {
-        Annotation[][] annotations = hookMethod.getParameterAnnotations();
-        List<Object> result = new ArrayList<>();
-        int arg = 0;
-        for (Annotation[] annotation : annotations) {
-            if (Arrays.stream(annotation)
-                    .map(Annotation::annotationType)
-                    .anyMatch(Returned.class::equals)) {
-                result.add(returned);
-            } else if (Arrays.stream(annotation)
-                    .map(Annotation::annotationType)
-                    .anyMatch(Thrown.class::equals)) {
-                result.add(thrown);
-            } else {
-                result.add(args[arg++]);
+    /**
+     * The hooks and hook instances of an intercepted call, returned by {@link #before(Class, int, Object[])}
+     * and passed on to {@link #after(Object, Object[], Object, Throwable)}.
+     */
+    static class Frame {
+
+        private final int level; // index in the ThreadState's frame stack
+        private HookDispatch[] hooks = new HookDispatch[2];
+        private Object[] instances = new Object[2];
+        private int size = 0;
+
+        private Frame(int level) {
+            this.level = level;
+        }
+
+        private void add(HookDispatch hook, Object instance) {
+            if (size == hooks.length) {
+                hooks = Arrays.copyOf(hooks, 2 * size);
+                instances = Arrays.copyOf(instances, 2 * size);
             }
+            hooks[size] = hook;
+            instances[size] = instance;
+            size++;
+        }
+
+        private void clear() {
+            Arrays.fill(hooks, 0, size, null);
+            Arrays.fill(instances, 0, size, null); // don't keep PER_CALL hook instances alive
+            size = 0;
         }
-        return result.toArray();
     }
 }
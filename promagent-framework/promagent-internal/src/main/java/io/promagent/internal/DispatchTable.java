@@ -0,0 +1,134 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import java.lang.ref.WeakReference;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Cache of resolved {@link HookDispatch} arrays per intercepted class and dispatch id.
+ * <p/>
+ * Resolving which hooks apply to an intercepted method is expensive (walking the type hierarchy, loading hook classes,
+ * scanning hook methods), so it is done once on the first call and the result is re-used for all subsequent calls.
+ * The intercepted method is identified by its dispatch id, see {@link InstrumentedMethods}, so each intercepted class
+ * has an array of entries indexed by the dispatch id.
+ * <p/>
+ * Hook classes are loaded through the per-deployment class loader, so the same intercepted method may be resolved
+ * to different hook classes when it is called from different deployments. Therefore, each array element is a
+ * short linked list of entries, one for each hook class loader. In most cases this list has a single element.
+ * <p/>
+ * The table is stored in a {@link ClassValue} of the intercepted class, which may be loaded by the application server
+ * and outlive the deployments. Therefore, the entries reference the hook class loader and the resolved hooks only weakly.
+ * The resolved hooks are kept alive by their hook class instead, so they live as long as the hook class loader.
+ * Entries of garbage collected hook class loaders are removed when a new entry is added for the same intercepted method.
+ * <p/>
+ * Lookups are lock-free. Only the first call for a new intercepted method and hook class loader updates the array.
+ */
+class DispatchTable {
+
+    interface Resolver {
+        HookDispatch[] resolve(Class<?> interceptedClass, int dispatchId, ClassLoader hookClassLoader);
+    }
+
+    private static final HookDispatch[] NO_HOOKS = new HookDispatch[0]; // shared, so that the weak reference to it is never cleared
+
+    private final Resolver resolver;
+    private final ClassValue<AtomicReferenceArray<Entry>> table;
+    private final ClassValue<Queue<HookDispatch[]>> retained = new ClassValue<Queue<HookDispatch[]>>() {
+        @Override
+        protected Queue<HookDispatch[]> computeValue(Class<?> hookClass) {
+            return new ConcurrentLinkedQueue<>();
+        }
+    };
+
+    DispatchTable(int nDispatchIds, Resolver resolver) {
+        this.resolver = resolver;
+        this.table = new ClassValue<AtomicReferenceArray<Entry>>() {
+            @Override
+            protected AtomicReferenceArray<Entry> computeValue(Class<?> type) {
+                return new AtomicReferenceArray<>(nDispatchIds);
+            }
+        };
+    }
+
+    HookDispatch[] get(Class<?> interceptedClass, int dispatchId, ClassLoader hookClassLoader) {
+        AtomicReferenceArray<Entry> entries = table.get(interceptedClass);
+        HookDispatch[] hooks = find(entries.get(dispatchId), hookClassLoader);
+        if (hooks != null) {
+            return hooks;
+        }
+        // Resolve before linking the new entry, because resolving loads hook classes and may take a while.
+        hooks = resolver.resolve(interceptedClass, dispatchId, hookClassLoader);
+        if (hooks.length == 0) {
+            hooks = NO_HOOKS;
+        }
+        while (true) {
+            Entry head = entries.get(dispatchId);
+            HookDispatch[] existing = find(head, hookClassLoader);
+            if (existing != null) {
+                return existing; // resolved concurrently by another thread
+            }
+            if (entries.compareAndSet(dispatchId, head, new Entry(new WeakReference<>(hookClassLoader), new WeakReference<>(hooks), withoutStaleEntries(head)))) {
+                if (hooks.length > 0) {
+                    // All hooks are loaded through the same hook class loader, so the first hook class lives as long as the others.
+                    retained.get(hooks[0].getHookClass()).add(hooks);
+                }
+                return hooks;
+            }
+        }
+    }
+
+    /**
+     * Returns null if there is no entry for the hook class loader, or if its hooks were garbage collected.
+     * The latter happens if the hook class was loaded from a deployment that was undeployed in the meantime.
+     */
+    private static HookDispatch[] find(Entry head, ClassLoader hookClassLoader) {
+        for (Entry entry = head; entry != null; entry = entry.next) {
+            if (entry.hookClassLoader.get() == hookClassLoader) {
+                return entry.hooks.get();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copy of the list without the entries whose hook class loader or hooks were garbage collected.
+     * Entries are immutable, so the tail after the last stale entry is shared.
+     */
+    private static Entry withoutStaleEntries(Entry head) {
+        if (head == null) {
+            return null;
+        }
+        Entry next = withoutStaleEntries(head.next);
+        if (head.hookClassLoader.get() == null || head.hooks.get() == null) {
+            return next;
+        }
+        return next == head.next ? head : new Entry(head.hookClassLoader, head.hooks, next);
+    }
+
+    private static class Entry {
+        final WeakReference<ClassLoader> hookClassLoader;
+        final WeakReference<HookDispatch[]> hooks;
+        final Entry next;
+
+        private Entry(WeakReference<ClassLoader> hookClassLoader, WeakReference<HookDispatch[]> hooks, Entry next) {
+            this.hookClassLoader = hookClassLoader;
+            this.hooks = hooks;
+            this.next = next;
+        }
+    }
+}
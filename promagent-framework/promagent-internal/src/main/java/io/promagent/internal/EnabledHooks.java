@@ -0,0 +1,109 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.*;
+
+/**
+ * Enable or disable hooks at runtime, see {@link io.promagent.internal.jmx.HookManagerMBean}.
+ * <p/>
+ * When a hook is disabled, the {@link Delegator} stops calling it immediately. Then all loaded classes instrumented by that hook
+ * are retransformed. The transformer in {@link Promagent} only applies the advice for methods of enabled hooks,
+ * so if a class is not instrumented by any other enabled hook, the advice is removed from its bytecode entirely.
+ * When the hook is enabled again, the classes are retransformed again to add the advice back.
+ */
+public class EnabledHooks {
+
+    private final Map<String, HookMetadata> hooksByName = new TreeMap<>();
+    private final Instrumentation instrumentation; // null if classes should not be retransformed
+    private volatile BitSet disabled = new BitSet(); // copy on write, indexed by hook id
+
+    EnabledHooks(Collection<HookMetadata> hookMetadata, Instrumentation instrumentation) {
+        for (HookMetadata hook : hookMetadata) {
+            hooksByName.put(hook.getHookClassName(), hook);
+        }
+        this.instrumentation = instrumentation;
+    }
+
+    boolean isEnabled(int hookId) {
+        return !disabled.get(hookId);
+    }
+
+    public SortedSet<String> getHookClassNames() {
+        return new TreeSet<>(hooksByName.keySet());
+    }
+
+    public boolean isEnabled(String hookClassName) {
+        return isEnabled(getHook(hookClassName).getId());
+    }
+
+    /**
+     * Enable or disable the hook, and retransform the loaded classes instrumented by the hook.
+     * Does nothing if the hook is already enabled or disabled.
+     */
+    public synchronized void setEnabled(String hookClassName, boolean enabled) {
+        HookMetadata hook = getHook(hookClassName);
+        if (isEnabled(hook.getId()) == enabled) {
+            return;
+        }
+        BitSet newDisabled = (BitSet) disabled.clone();
+        newDisabled.set(hook.getId(), !enabled);
+        disabled = newDisabled;
+        if (instrumentation != null) {
+            retransform(hook);
+        }
+    }
+
+    private HookMetadata getHook(String hookClassName) {
+        HookMetadata hook = hooksByName.get(hookClassName);
+        if (hook == null) {
+            throw new IllegalArgumentException(hookClassName + ": Unknown hook. Known hooks are " + String.join(", ", hooksByName.keySet()) + ".");
+        }
+        return hook;
+    }
+
+    private void retransform(HookMetadata hook) {
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> loadedClass : instrumentation.getAllLoadedClasses()) {
+            if (instrumentation.isModifiableClass(loadedClass) && isSubtypeOfAny(loadedClass, hook.getInstruments())) {
+                classes.add(loadedClass);
+            }
+        }
+        if (!classes.isEmpty()) {
+            try {
+                instrumentation.retransformClasses(classes.toArray(new Class<?>[0]));
+            } catch (UnmodifiableClassException e) {
+                throw new HookException("Failed to retransform classes instrumented by " + hook.getHookClassName() + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static boolean isSubtypeOfAny(Class<?> clazz, Set<String> typeNames) {
+        if (clazz == null) {
+            return false;
+        }
+        if (typeNames.contains(clazz.getName())) {
+            return true;
+        }
+        for (Class<?> ifc : clazz.getInterfaces()) {
+            if (isSubtypeOfAny(ifc, typeNames)) {
+                return true;
+            }
+        }
+        return isSubtypeOfAny(clazz.getSuperclass(), typeNames);
+    }
+}
@@ -0,0 +1,139 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.exporter.common.TextFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+
+/**
+ * The formats for exposing metrics, and the content negotiation based on the scraper's Accept header.
+ * <p/>
+ * All formats are written with a {@link ResponseWriter}, so they are streamed through fixed-size buffers
+ * without rendering the response as a String first.
+ */
+public enum ExpositionFormat {
+
+    /**
+     * Prometheus text format version 0.0.4, used if the scraper doesn't ask for another format.
+     * Starts with a comment for users looking at the metrics in the browser, whether the metrics are streamed or cached.
+     */
+    TEXT(TextFormat.CONTENT_TYPE_004) {
+        @Override
+        void write(ResponseWriter writer, Enumeration<MetricFamilySamples> mfs) throws IOException {
+            writer.write("# Metrics will become visible when they are updated for the first time.\n");
+            TextFormat.write004(writer, mfs);
+        }
+    },
+
+    /**
+     * OpenMetrics text format version 1.0.0, see {@link OpenMetricsFormat}.
+     */
+    OPENMETRICS("application/openmetrics-text; version=1.0.0; charset=utf-8") {
+        @Override
+        void write(ResponseWriter writer, Enumeration<MetricFamilySamples> mfs) throws IOException {
+            OpenMetricsFormat.write(writer, mfs);
+        }
+    },
+
+    /**
+     * Length-delimited io.prometheus.client.MetricFamily protobuf messages, see {@link ProtobufFormat}.
+     */
+    PROTOBUF("application/vnd.google.protobuf; proto=io.prometheus.client.MetricFamily; encoding=delimited") {
+        @Override
+        void write(ResponseWriter writer, Enumeration<MetricFamilySamples> mfs) throws IOException {
+            ProtobufFormat.write(writer, mfs);
+        }
+    };
+
+    private final String contentType;
+
+    ExpositionFormat(String contentType) {
+        this.contentType = contentType;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    abstract void write(ResponseWriter writer, Enumeration<MetricFamilySamples> mfs) throws IOException;
+
+    /**
+     * The metrics as a String, only useful for the text based formats.
+     */
+    public String toText(Enumeration<MetricFamilySamples> mfs) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(ResponseWriter.BUFFER_SIZE);
+        try (ResponseWriter writer = ResponseWriter.acquire().open(out, false)) {
+            write(writer, mfs);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The supported format with the highest quality in the Accept header, the first one if several have the same quality.
+     * {@link #TEXT} if the header is null or doesn't accept any other format, so scrapers that don't negotiate get what they always got.
+     */
+    public static ExpositionFormat negotiate(String accept) {
+        ExpositionFormat result = TEXT;
+        double resultQuality = 0;
+        if (accept != null) {
+            for (String mediaRange : accept.split(",")) {
+                String[] parts = mediaRange.split(";");
+                ExpositionFormat format = null;
+                double quality = 1;
+                boolean protobufMetricFamily = false;
+                boolean protobufDelimited = false;
+                for (int i = 1; i < parts.length; i++) {
+                    String[] param = parts[i].split("=", 2);
+                    String name = param[0].trim().toLowerCase();
+                    String value = param.length == 2 ? param[1].trim() : "";
+                    if ("q".equals(name)) {
+                        try {
+                            quality = Double.parseDouble(value);
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    } else if ("proto".equals(name)) {
+                        protobufMetricFamily = "io.prometheus.client.MetricFamily".equals(value);
+                    } else if ("encoding".equals(name)) {
+                        protobufDelimited = "delimited".equals(value);
+                    }
+                }
+                switch (parts[0].trim().toLowerCase()) {
+                    case "application/openmetrics-text":
+                        format = OPENMETRICS;
+                        break;
+                    case "application/vnd.google.protobuf":
+                        format = protobufMetricFamily && protobufDelimited ? PROTOBUF : null;
+                        break;
+                    case "text/plain":
+                    case "text/*":
+                    case "*/*":
+                        format = TEXT;
+                        break;
+                }
+                if (format != null && quality > resultQuality) {
+                    result = format;
+                    resultQuality = quality;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,90 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.promagent.annotations.Hook;
+
+import java.util.List;
+
+/**
+ * A Hook class resolved for a specific intercepted method, i.e. the loaded hook class
+ * together with the @Before and @After methods that should be called for that intercepted method.
+ * The hook methods are already bound to {@link java.lang.invoke.MethodHandle}s, see {@link HookMethod}.
+ * <p/>
+ * Instances are immutable and created once by the {@link DispatchTable}.
+ */
+class HookDispatch {
+
+    private final int id; // see HookMetadata.getId()
+    private final Class<?> hookClass;
+    private final boolean skipNestedCalls;
+    private final Hook.Scope scope;
+    private final int sampleEvery;
+    private final Object notSampled; // placeholder for the hook instance of calls that are not sampled, shared by all dispatches of the hook class
+    private final HookMethod[] beforeMethods; // arrays rather than lists, so that iterating doesn't allocate an Iterator
+    private final HookMethod[] afterMethods;
+    private final HookMethod resetMethod; // null if the hook has no @Reset method
+
+    HookDispatch(int id, Class<?> hookClass, List<HookMethod> beforeMethods, List<HookMethod> afterMethods, HookMethod resetMethod, Object notSampled) throws HookException {
+        this.id = id;
+        this.hookClass = hookClass;
+        this.skipNestedCalls = hookClass.getAnnotation(Hook.class).skipNestedCalls();
+        this.scope = hookClass.getAnnotation(Hook.class).scope();
+        this.sampleEvery = hookClass.getAnnotation(Hook.class).sampleEvery();
+        if (sampleEvery < 1) {
+            throw new HookException(hookClass.getSimpleName() + ": sampleEvery must be at least 1, but is " + sampleEvery + ".");
+        }
+        this.notSampled = notSampled;
+        this.beforeMethods = beforeMethods.toArray(new HookMethod[0]);
+        this.afterMethods = afterMethods.toArray(new HookMethod[0]);
+        this.resetMethod = resetMethod;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    Class<?> getHookClass() {
+        return hookClass;
+    }
+
+    boolean isSkipNestedCalls() {
+        return skipNestedCalls;
+    }
+
+    Hook.Scope getScope() {
+        return scope;
+    }
+
+    int getSampleEvery() {
+        return sampleEvery;
+    }
+
+    Object getNotSampled() {
+        return notSampled;
+    }
+
+    HookMethod[] getBeforeMethods() {
+        return beforeMethods;
+    }
+
+    HookMethod[] getAfterMethods() {
+        return afterMethods;
+    }
+
+    HookMethod getResetMethod() {
+        return resetMethod;
+    }
+}
@@ -0,0 +1,81 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Finds the hooks applicable to an intercepted method, i.e. the hooks that instrument the intercepted class
+ * or one of its superclasses or interfaces, and that instrument the intercepted method's signature.
+ * <p/>
+ * Hooks are represented by their ids, see {@link HookMetadata#getId()}.
+ * The set of hook ids for a class is computed once per {@link Class} from the sets of its direct superclass and interfaces,
+ * so each type in a hierarchy is visited only once, no matter how many classes and methods share it.
+ * As the sets are computed lazily in a {@link ClassValue}, this works for classes loaded at any time,
+ * and does not prevent classes from being unloaded.
+ */
+class HookMatcher {
+
+    private final Map<String, BitSet> hookIdsByInstrumentedType = new HashMap<>();
+    private final BitSet[] hookIdsByDispatchId;
+    private final ClassValue<BitSet> hookIdsByClass = new ClassValue<BitSet>() {
+        @Override
+        protected BitSet computeValue(Class<?> type) {
+            return collectHookIds(type);
+        }
+    };
+
+    HookMatcher(Collection<HookMetadata> hookMetadata, InstrumentedMethods instrumentedMethods) {
+        hookIdsByDispatchId = new BitSet[instrumentedMethods.size()];
+        for (int dispatchId = 0; dispatchId < hookIdsByDispatchId.length; dispatchId++) {
+            hookIdsByDispatchId[dispatchId] = new BitSet();
+        }
+        for (HookMetadata hook : hookMetadata) {
+            for (String instrumentedType : hook.getInstruments()) {
+                hookIdsByInstrumentedType.computeIfAbsent(instrumentedType, name -> new BitSet()).set(hook.getId());
+            }
+            for (HookMetadata.MethodSignature method : hook.getMethods()) {
+                hookIdsByDispatchId[instrumentedMethods.getDispatchId(method)].set(hook.getId());
+            }
+        }
+    }
+
+    /**
+     * Ids of the hooks applicable to the method with the dispatchId intercepted in the interceptedClass.
+     */
+    BitSet getHookIds(Class<?> interceptedClass, int dispatchId) {
+        BitSet result = (BitSet) hookIdsByClass.get(interceptedClass).clone();
+        result.and(hookIdsByDispatchId[dispatchId]);
+        return result;
+    }
+
+    private BitSet collectHookIds(Class<?> type) {
+        BitSet result = new BitSet();
+        BitSet own = hookIdsByInstrumentedType.get(type.getName());
+        if (own != null) {
+            result.or(own);
+        }
+        if (type.getSuperclass() != null) {
+            result.or(hookIdsByClass.get(type.getSuperclass()));
+        }
+        for (Class<?> ifc : type.getInterfaces()) {
+            result.or(hookIdsByClass.get(ifc));
+        }
+        return result;
+    }
+}
@@ -22,6 +22,7 @@ import java.util.stream.Collectors;
  */
 public class HookMetadata implements Comparable<HookMetadata> {
 
+    private final int id; // dense index 0..n-1 assigned by the HookMetadataParser, not part of equals() and compareTo()
     private final String hookClassName;
     private final SortedSet<String> instruments;
     private final SortedSet<MethodSignature> methods;
@@ -30,10 +31,38 @@ public class HookMetadata implements Comparable<HookMetadata> {
 
         private final String methodName;
         private final List<String> parameterTypes;
+        // Which hook methods use this signature. This is not part of equals() and compareTo().
+        private final boolean before; // a @Before method
+        private final boolean after; // an @After method
+        private final boolean returned; // an @After method with a @Returned parameter
 
         public MethodSignature(String methodName, List<String> parameterTypes) {
+            this(methodName, parameterTypes, true, true, true);
+        }
+
+        public MethodSignature(String methodName, List<String> parameterTypes, boolean before, boolean after, boolean returned) {
             this.methodName = methodName;
             this.parameterTypes = Collections.unmodifiableList(new ArrayList<>(parameterTypes));
+            this.before = before;
+            this.after = after;
+            this.returned = returned;
+        }
+
+        /**
+         * Add methodSignature to methodSignatures.
+         * If an equal signature is already present, it is replaced with a signature used by the hook methods of both.
+         */
+        static void addOrMerge(SortedSet<MethodSignature> methodSignatures, MethodSignature methodSignature) {
+            SortedSet<MethodSignature> tail = methodSignatures.tailSet(methodSignature);
+            if (!tail.isEmpty() && tail.first().equals(methodSignature)) {
+                MethodSignature existing = tail.first();
+                methodSignatures.remove(existing);
+                methodSignature = new MethodSignature(existing.methodName, existing.parameterTypes,
+                        existing.before || methodSignature.before,
+                        existing.after || methodSignature.after,
+                        existing.returned || methodSignature.returned);
+            }
+            methodSignatures.add(methodSignature);
         }
 
         public String getMethodName() {
@@ -44,6 +73,27 @@ public class HookMetadata implements Comparable<HookMetadata> {
             return parameterTypes;
         }
 
+        /**
+         * True if a hook has a @Before method with this signature.
+         */
+        public boolean hasBefore() {
+            return before;
+        }
+
+        /**
+         * True if a hook has an @After method with this signature.
+         */
+        public boolean hasAfter() {
+            return after;
+        }
+
+        /**
+         * True if a hook has an @After method with this signature and a parameter annotated with @Returned.
+         */
+        public boolean hasReturned() {
+            return returned;
+        }
+
         @Override
         public String toString() {
             return methodName + "(" + String.join(", ", parameterTypes) + ")";
@@ -68,10 +118,22 @@ public class HookMetadata implements Comparable<HookMetadata> {
         }
     }
 
-    public HookMetadata(String hookClassName, Collection<String> instruments, Collection<MethodSignature> methods) {
+    public HookMetadata(int id, String hookClassName, Collection<String> instruments, Collection<MethodSignature> methods) {
+        this.id = id;
         this.hookClassName = hookClassName;
         this.instruments = Collections.unmodifiableSortedSet(new TreeSet<>(instruments));
-        this.methods = Collections.unmodifiableSortedSet(new TreeSet<>(methods));
+        SortedSet<MethodSignature> methodSignatures = new TreeSet<>();
+        for (MethodSignature method : methods) {
+            MethodSignature.addOrMerge(methodSignatures, method);
+        }
+        this.methods = Collections.unmodifiableSortedSet(methodSignatures);
+    }
+
+    /**
+     * Dense id in the range 0..n-1 where n is the number of hooks, used as an array index for per-thread hook state.
+     */
+    public int getId() {
+        return id;
     }
 
     public String getHookClassName() {
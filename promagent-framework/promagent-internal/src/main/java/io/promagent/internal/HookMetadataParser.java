@@ -115,11 +115,20 @@ public class HookMetadataParser {
                             if (visible && typeEquals(desc, Returned.class, Thrown.class)) {
                                 builder.markReturnedOrThrown(parameter);
                             }
+                            if (visible && typeEquals(desc, Returned.class)) {
+                                builder.markReturned();
+                            }
                             return super.visitParameterAnnotation(parameter, desc, visible);
                         }
 
                         @Override
                         public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                            if (visible && typeEquals(desc, Before.class)) {
+                                builder.markBefore();
+                            }
+                            if (visible && typeEquals(desc, After.class)) {
+                                builder.markAfter();
+                            }
                             if (visible && typeEquals(desc, Before.class, After.class)) {
                                 return new AnnotationValueCollector("method", builder::addMethodName, Opcodes.ASM5, super.visitAnnotation(desc, visible));
                             } else {
@@ -131,7 +140,8 @@ public class HookMetadataParser {
 
             }, ClassReader.SKIP_CODE);
             if (hookMetadata.isComplete()) {
-                result.add(hookMetadata.build());
+                // Class names are sorted, so the ids are assigned in the same order as the resulting SortedSet.
+                result.add(hookMetadata.build(result.size()));
             }
         }
         return result;
@@ -203,12 +213,14 @@ public class HookMetadataParser {
             return builder;
         }
 
-        private HookMetadata build() {
+        private HookMetadata build(int id) {
             SortedSet<MethodSignature> methodSignatures = new TreeSet<>();
             for (MethodSignatureBuilder builder : methods) {
-                methodSignatures.addAll(builder.build());
+                for (MethodSignature methodSignature : builder.build()) {
+                    MethodSignature.addOrMerge(methodSignatures, methodSignature);
+                }
             }
-            return new HookMetadata(hookClassName, instruments, methodSignatures);
+            return new HookMetadata(id, hookClassName, instruments, methodSignatures);
         }
 
         private boolean isComplete() {
@@ -239,6 +251,9 @@ public class HookMetadataParser {
 
         SortedSet<String> methodNames = new TreeSet<>();
         List<ParameterType> parameterTypes = new ArrayList<>();
+        boolean before = false; // annotated with @Before
+        boolean after = false; // annotated with @After
+        boolean returned = false; // has a parameter annotated with @Returned
 
         private void addMethodName(String methodName) {
             methodNames.add(methodName);
@@ -255,7 +270,7 @@ public class HookMetadataParser {
                     .collect(Collectors.toList());
             SortedSet<MethodSignature> result = new TreeSet<>();
             for (String methodName : methodNames) {
-                result.add(new MethodSignature(methodName, strippedParameterTypes));
+                result.add(new MethodSignature(methodName, strippedParameterTypes, before, after, returned));
             }
             return result;
         }
@@ -264,6 +279,18 @@ public class HookMetadataParser {
             // We know that parameter is a valid index in parameterTypes.
             parameterTypes.get(parameter).isReturnedOrThrown = true;
         }
+
+        private void markBefore() {
+            before = true;
+        }
+
+        private void markAfter() {
+            after = true;
+        }
+
+        private void markReturned() {
+            returned = true;
+        }
     }
 
     /**
@@ -0,0 +1,172 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.promagent.annotations.Returned;
+import io.promagent.annotations.Thrown;
+import io.promagent.internal.HookMetadata.MethodSignature;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A Hook method annotated with @Before or @After, bound once to a {@link MethodHandle}.
+ * <p/>
+ * The handle is adapted to the uniform type <tt>(Object hook, Object returned, Throwable thrown, Object[] args)void</tt>,
+ * i.e. the intercepted method's arguments are spread from the <tt>args</tt> array,
+ * and <tt>returned</tt> and <tt>thrown</tt> are moved to the positions of the parameters annotated with
+ * {@link Returned} and {@link Thrown}. This way, calling the hook method is a single
+ * {@link MethodHandle#invokeExact(Object...)} without any reflection at call time.
+ * <p/>
+ * The mapping of hook method parameters to argument slots is computed once as an <tt>int[]</tt> layout,
+ * see {@link #layoutOf(Method)}. It is used both for matching the hook method against intercepted methods
+ * and for adapting the handle.
+ */
+class HookMethod {
+
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(void.class, Object.class, Object.class, Throwable.class, Object[].class);
+
+    static final int RETURNED = -1;
+    static final int THROWN = -2;
+
+    private final Method method;
+    private final Class<?>[] argumentTypes; // hook method parameter types without @Returned and @Thrown
+    private final MethodHandle handle;
+
+    private HookMethod(Method method, int[] layout, MethodHandle handle) {
+        this.method = method;
+        this.argumentTypes = argumentTypes(method.getParameterTypes(), layout);
+        this.handle = handle;
+    }
+
+    static HookMethod of(Method method) throws HookException {
+        try {
+            method.setAccessible(true);
+            int[] layout = layoutOf(method);
+            MethodHandle handle = MethodHandles.lookup().unreflect(method).asFixedArity();
+            return new HookMethod(method, layout, adapt(handle, layout));
+        } catch (IllegalAccessException e) {
+            throw new HookException("Failed to access " + method.getName() + "() on " + method.getDeclaringClass().getSimpleName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * For each hook method parameter: the index in the intercepted method's arguments, or {@link #RETURNED}, or {@link #THROWN}.
+     * <p/>
+     * Example: For <tt>after(String sql, @Returned int result, int n, @Thrown Throwable t)</tt>
+     * the layout is <tt>[0, RETURNED, 1, THROWN]</tt>.
+     */
+    static int[] layoutOf(Method method) {
+        Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+        if (method.getParameterCount() != parameterAnnotations.length) {
+            throw new HookException("Method.getParameterAnnotations() returned an unexpected value. This is a bug in promagent.");
+        }
+        int[] layout = new int[parameterAnnotations.length];
+        int nArgs = 0;
+        for (int i = 0; i < layout.length; i++) {
+            if (isAnnotatedWith(parameterAnnotations[i], Returned.class)) {
+                layout[i] = RETURNED;
+            } else if (isAnnotatedWith(parameterAnnotations[i], Thrown.class)) {
+                layout[i] = THROWN;
+            } else {
+                layout[i] = nArgs++;
+            }
+        }
+        return layout;
+    }
+
+    private static Class<?>[] argumentTypes(Class<?>[] parameterTypes, int[] layout) {
+        Class<?>[] result = new Class<?>[(int) Arrays.stream(layout).filter(slot -> slot >= 0).count()];
+        for (int i = 0; i < layout.length; i++) {
+            if (layout[i] >= 0) {
+                result[layout[i]] = parameterTypes[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adapt <tt>(Hook hook, P1 p1, ..., Pn pn)R</tt> to {@link #INVOKER_TYPE}.
+     */
+    private static MethodHandle adapt(MethodHandle handle, int[] layout) {
+        int[] reorder = new int[layout.length + 1];
+        int nArgs = 0;
+        reorder[0] = 0; // hook instance
+        for (int i = 0; i < layout.length; i++) {
+            if (layout[i] == RETURNED) {
+                reorder[i + 1] = 1;
+            } else if (layout[i] == THROWN) {
+                reorder[i + 1] = 2;
+            } else {
+                reorder[i + 1] = 3 + layout[i];
+                nArgs++;
+            }
+        }
+        // (Object hook, Object p1, ..., Object pn)void
+        MethodHandle generic = handle.asType(MethodType.genericMethodType(layout.length + 1).changeReturnType(void.class));
+        // (Object hook, Object returned, Object thrown, Object arg1, ..., Object argN)void
+        MethodType permutedType = MethodType.genericMethodType(3 + nArgs).changeReturnType(void.class);
+        MethodHandle permuted = MethodHandles.permuteArguments(generic, permutedType, reorder);
+        // (Object hook, Object returned, Throwable thrown, Object[] args)void
+        return permuted.asSpreader(Object[].class, nArgs).asType(INVOKER_TYPE);
+    }
+
+    private static boolean isAnnotatedWith(Annotation[] annotations, Class<? extends Annotation> annotationType) {
+        for (Annotation annotation : annotations) {
+            if (annotationType.equals(annotation.annotationType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // TODO: We could extend this to find the "closest" match, like in Java method calls.
+    boolean parameterTypesMatch(MethodSignature interceptedMethod) {
+        List<String> parameterTypes = interceptedMethod.getParameterTypes();
+        if (parameterTypes.size() != argumentTypes.length) {
+            return false;
+        }
+        for (int i = 0; i < argumentTypes.length; i++) {
+            if (!argumentTypes[i].getTypeName().equals(parameterTypes.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Number of arguments expected in the <tt>args</tt> array, i.e. the number of parameters without @Returned and @Thrown.
+     */
+    int getArgumentCount() {
+        return argumentTypes.length;
+    }
+
+    Method getMethod() {
+        return method;
+    }
+
+    void invoke(Object hookInstance, Object[] args, Object returned, Throwable thrown) throws HookException {
+        try {
+            handle.invokeExact(hookInstance, returned, thrown, args);
+        } catch (Throwable t) {
+            throw new HookException("Failed to call " + method.getName() + "() on " + hookInstance.getClass().getSimpleName() + ": " + t.getMessage(), t);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.promagent.internal.HookMetadata.MethodSignature;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * All method signatures instrumented by any hook, with a dense dispatch id for each signature.
+ * <p/>
+ * The dispatch id is embedded as a constant in the instrumented code when a class is transformed, see {@link AdviceArguments},
+ * and passed to the {@link Delegator} on each call. The ids are derived from the sorted set of signatures,
+ * so the transformer and the {@link Delegator} get the same ids when they are created from the same {@link HookMetadata}.
+ * <p/>
+ * The {@link MethodSignature}s in this table are merged across all hooks, i.e. {@link MethodSignature#hasBefore()} is true
+ * if any hook has a @Before method for that signature, etc.
+ */
+public class InstrumentedMethods {
+
+    private final MethodSignature[] signatures; // index is the dispatch id
+    private final Map<MethodSignature, Integer> dispatchIds = new HashMap<>();
+
+    public InstrumentedMethods(Collection<HookMetadata> hookMetadata) {
+        SortedSet<MethodSignature> allSignatures = new TreeSet<>();
+        for (HookMetadata hook : hookMetadata) {
+            for (MethodSignature method : hook.getMethods()) {
+                MethodSignature.addOrMerge(allSignatures, method);
+            }
+        }
+        signatures = allSignatures.toArray(new MethodSignature[0]);
+        for (int i = 0; i < signatures.length; i++) {
+            dispatchIds.put(signatures[i], i);
+        }
+    }
+
+    /**
+     * Returns the dispatch id, or -1 if the signature is not instrumented by any hook.
+     */
+    int getDispatchId(MethodSignature signature) {
+        return dispatchIds.getOrDefault(signature, -1);
+    }
+
+    MethodSignature getSignature(int dispatchId) {
+        return signatures[dispatchId];
+    }
+
+    int size() {
+        return signatures.length;
+    }
+}
@@ -0,0 +1,100 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Selects metric families for partial scrapes, like <tt>/metrics?name[]=http_requests_total&name_prefix[]=jvm_</tt>.
+ * <p/>
+ * A family is selected if its name or one of its sample names, like <tt>http_request_duration_seconds_bucket</tt>,
+ * is listed in <tt>name[]</tt>, or if its name starts with one of the <tt>name_prefix[]</tt> values.
+ * An empty filter selects all families. See {@link io.promagent.internal.jmx.PromagentCollectorRegistry#metricFamilySamples(MetricFilter)}
+ * for how the filter is applied before the collectors are called.
+ */
+public class MetricFilter {
+
+    public static final MetricFilter ALL = new MetricFilter(Collections.emptySet(), Collections.emptyList());
+
+    private static final String[] SAMPLE_SUFFIXES = {"_total", "_count", "_sum", "_bucket", "_created"};
+
+    private final Set<String> names;
+    private final List<String> prefixes;
+
+    public MetricFilter(Collection<String> names, Collection<String> prefixes) {
+        this.names = new HashSet<>(names);
+        this.prefixes = new ArrayList<>(prefixes);
+    }
+
+    /**
+     * Parse the <tt>name[]</tt> and <tt>name_prefix[]</tt> parameters of a raw (URL encoded) query string. The query may be null.
+     */
+    public static MetricFilter fromQuery(String rawQuery) {
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return ALL;
+        }
+        List<String> names = new ArrayList<>();
+        List<String> prefixes = new ArrayList<>();
+        for (String param : rawQuery.split("&")) {
+            String[] keyValue = param.split("=", 2);
+            if (keyValue.length != 2 || keyValue[1].isEmpty()) {
+                continue;
+            }
+            String key = decode(keyValue[0]);
+            if ("name[]".equals(key)) {
+                names.add(decode(keyValue[1]));
+            } else if ("name_prefix[]".equals(key)) {
+                prefixes.add(decode(keyValue[1]));
+            }
+        }
+        return names.isEmpty() && prefixes.isEmpty() ? ALL : new MetricFilter(names, prefixes);
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return s; // UTF-8 is always supported, IllegalArgumentException means a malformed escape like "%x"
+        }
+    }
+
+    public boolean isEmpty() {
+        return names.isEmpty() && prefixes.isEmpty();
+    }
+
+    public boolean matches(String familyName) {
+        if (isEmpty() || names.contains(familyName)) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (familyName.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (String suffix : SAMPLE_SUFFIXES) {
+            if (names.contains(familyName + suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,136 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Enumeration;
+
+/**
+ * Writes metrics in the OpenMetrics text format version 1.0.0.
+ * <p/>
+ * The differences to the Prometheus text format are: Counter families are named without the <tt>_total</tt> suffix,
+ * while their samples always have it, untyped metrics are <tt>unknown</tt>, timestamps are in seconds,
+ * and the exposition ends with <tt># EOF</tt>.
+ * <p/>
+ * Samples named <tt>_created</tt> are written as they are. Note that the simpleclient version used here records neither
+ * exemplars nor creation timestamps, so these are only present if a custom collector provides <tt>_created</tt> samples.
+ */
+class OpenMetricsFormat {
+
+    static void write(Writer writer, Enumeration<MetricFamilySamples> mfs) throws IOException {
+        while (mfs.hasMoreElements()) {
+            MetricFamilySamples metricFamilySamples = mfs.nextElement();
+            String name = metricFamilySamples.name;
+            boolean counter = metricFamilySamples.type == Collector.Type.COUNTER;
+            if (counter && name.endsWith("_total")) {
+                name = name.substring(0, name.length() - "_total".length());
+            }
+            writer.write("# HELP ");
+            writer.write(name);
+            writer.write(' ');
+            writeEscaped(writer, metricFamilySamples.help);
+            writer.write('\n');
+            writer.write("# TYPE ");
+            writer.write(name);
+            writer.write(' ');
+            writer.write(typeString(metricFamilySamples.type));
+            writer.write('\n');
+            for (MetricFamilySamples.Sample sample : metricFamilySamples.samples) {
+                writer.write(sample.name);
+                if (counter && !sample.name.endsWith("_total") && !sample.name.endsWith("_created")) {
+                    writer.write("_total");
+                }
+                if (!sample.labelNames.isEmpty()) {
+                    writer.write('{');
+                    for (int i = 0; i < sample.labelNames.size(); i++) {
+                        if (i > 0) {
+                            writer.write(',');
+                        }
+                        writer.write(sample.labelNames.get(i));
+                        writer.write("=\"");
+                        writeEscaped(writer, sample.labelValues.get(i));
+                        writer.write('"');
+                    }
+                    writer.write('}');
+                }
+                writer.write(' ');
+                writer.write(Collector.doubleToGoString(sample.value));
+                if (sample.timestampMs != null) {
+                    writer.write(' ');
+                    writeTimestamp(writer, sample.timestampMs);
+                }
+                writer.write('\n');
+            }
+        }
+        writer.write("# EOF\n");
+    }
+
+    private static String typeString(Collector.Type type) {
+        switch (type) {
+            case COUNTER:
+                return "counter";
+            case GAUGE:
+                return "gauge";
+            case SUMMARY:
+                return "summary";
+            case HISTOGRAM:
+                return "histogram";
+            default:
+                return "unknown";
+        }
+    }
+
+    /**
+     * Milliseconds as seconds with three decimal places, like 1520879607.789
+     */
+    private static void writeTimestamp(Writer writer, long timestampMs) throws IOException {
+        if (timestampMs < 0) {
+            writer.write('-');
+            timestampMs = -timestampMs;
+        }
+        writer.write(Long.toString(timestampMs / 1000));
+        writer.write('.');
+        long millis = timestampMs % 1000;
+        writer.write((char) ('0' + millis / 100));
+        writer.write((char) ('0' + millis / 10 % 10));
+        writer.write((char) ('0' + millis % 10));
+    }
+
+    /**
+     * Unlike the Prometheus text format, OpenMetrics escapes double quotes in HELP as well as in label values.
+     */
+    private static void writeEscaped(Writer writer, String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                default:
+                    writer.write(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the overhead of each hook to a share of the available CPU time.
+ * <p/>
+ * The {@link Delegator} reports the time spent in each hook with {@link #record(int, long)}.
+ * Once per interval, the governor compares each hook's time with the budget,
+ * which is a share of the interval's wall time multiplied by the number of available processors:
+ * <ul>
+ * <li>If a hook is above the budget, its throttle factor is doubled. The throttle factor is multiplied with
+ *     the hook's {@link io.promagent.annotations.Hook#sampleEvery()}, so the hook is called for fewer outer calls.
+ *     If the throttle factor is already at {@link #MAX_THROTTLE}, the hook is disabled, i.e. the throttle factor is 0.
+ * <li>If a hook is below half of the budget, its throttle factor is halved until it is back at 1.
+ * <li>A disabled hook is re-enabled with {@link #MAX_THROTTLE} after {@link #DISABLED_INTERVALS} intervals.
+ * </ul>
+ * The governor is also a {@link Collector} exporting its measurements and decisions as self-metrics.
+ */
+class OverheadGovernor extends Collector {
+
+    static final int MAX_THROTTLE = 1024;
+    static final int DISABLED_INTERVALS = 60;
+
+    enum Decision {THROTTLE, DISABLE, ENABLE, RECOVER}
+
+    /**
+     * Notified from the governor's thread when a hook's throttle factor changes.
+     */
+    interface ThrottleListener {
+        void throttleChanged(int hookId, int throttle);
+    }
+
+    private final String[] hookNames; // indexed by hook id
+    private final double budget; // share of the available CPU time, like 0.05 for 5%
+    private final int nProcessors;
+    private final LongAdder[] nanos; // time spent in each hook since the last interval
+    private final AtomicLongArray totalNanos;
+    private final AtomicIntegerArray throttle;
+    private final int[] disabledIntervals;
+    private final double[] overhead; // share of the available CPU time in the last interval
+    private final AtomicLongArray decisions; // [hook id * number of decisions + decision ordinal]
+    private long lastEvaluation = System.nanoTime();
+    private volatile ThrottleListener throttleListener; // null if not set
+
+    OverheadGovernor(Collection<HookMetadata> hookMetadata, double budget, int nProcessors) {
+        int nHooks = hookMetadata.size();
+        this.hookNames = new String[nHooks];
+        for (HookMetadata hook : hookMetadata) {
+            hookNames[hook.getId()] = hook.getHookClassName();
+        }
+        this.budget = budget;
+        this.nProcessors = nProcessors;
+        this.nanos = new LongAdder[nHooks];
+        for (int i = 0; i < nHooks; i++) {
+            nanos[i] = new LongAdder();
+        }
+        this.totalNanos = new AtomicLongArray(nHooks);
+        this.throttle = new AtomicIntegerArray(nHooks);
+        for (int i = 0; i < nHooks; i++) {
+            throttle.set(i, 1);
+        }
+        this.disabledIntervals = new int[nHooks];
+        this.overhead = new double[nHooks];
+        this.decisions = new AtomicLongArray(nHooks * Decision.values().length);
+    }
+
+    /**
+     * Run {@link #evaluate()} in a daemon thread once per interval.
+     */
+    void start(long interval, TimeUnit unit) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "promagent-overhead-governor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::evaluate, interval, interval, unit);
+    }
+
+    /**
+     * Factor to be multiplied with the hook's sampleEvery, or 0 if the hook is disabled.
+     */
+    int getThrottle(int hookId) {
+        return throttle.get(hookId);
+    }
+
+    void setThrottleListener(ThrottleListener throttleListener) {
+        this.throttleListener = throttleListener;
+    }
+
+    void record(int hookId, long nanos) {
+        this.nanos[hookId].add(nanos);
+    }
+
+    void evaluate() {
+        long now = System.nanoTime();
+        evaluate(now - lastEvaluation);
+        lastEvaluation = now;
+    }
+
+    synchronized void evaluate(long elapsedNanos) {
+        double available = (double) elapsedNanos * nProcessors;
+        for (int id = 0; id < hookNames.length; id++) {
+            long spent = nanos[id].sumThenReset();
+            totalNanos.addAndGet(id, spent);
+            overhead[id] = available > 0 ? spent / available : 0;
+            int current = throttle.get(id);
+            if (current == 0) {
+                if (++disabledIntervals[id] >= DISABLED_INTERVALS) {
+                    decide(id, MAX_THROTTLE, Decision.ENABLE);
+                }
+            } else if (overhead[id] > budget) {
+                if (current >= MAX_THROTTLE) {
+                    disabledIntervals[id] = 0;
+                    decide(id, 0, Decision.DISABLE);
+                } else {
+                    decide(id, 2 * current, Decision.THROTTLE);
+                }
+            } else if (overhead[id] < budget / 2 && current > 1) {
+                decide(id, current / 2, Decision.RECOVER);
+            }
+        }
+    }
+
+    private void decide(int hookId, int newThrottle, Decision decision) {
+        throttle.set(hookId, newThrottle);
+        decisions.incrementAndGet(hookId * Decision.values().length + decision.ordinal());
+        ThrottleListener listener = throttleListener;
+        if (listener != null) {
+            listener.throttleChanged(hookId, newThrottle);
+        }
+    }
+
+    long getDecisionCount(int hookId, Decision decision) {
+        return decisions.get(hookId * Decision.values().length + decision.ordinal());
+    }
+
+    @Override
+    public synchronized List<MetricFamilySamples> collect() {
+        List<String> hookLabel = Collections.singletonList("hook");
+        CounterMetricFamily seconds = new CounterMetricFamily("promagent_hook_overhead_seconds_total",
+                "Time spent in hook code, including hook instantiation.", hookLabel);
+        GaugeMetricFamily ratio = new GaugeMetricFamily("promagent_hook_overhead_ratio",
+                "Time spent in hook code in the last interval as a share of the available CPU time.", hookLabel);
+        GaugeMetricFamily throttleFactor = new GaugeMetricFamily("promagent_hook_throttle_factor",
+                "Factor multiplied with the hook's sampleEvery by the overhead governor, 0 if the hook is disabled.", hookLabel);
+        CounterMetricFamily decisionsTotal = new CounterMetricFamily("promagent_hook_governor_decisions_total",
+                "Number of throttling decisions made by the overhead governor.", Arrays.asList("hook", "decision"));
+        for (int id = 0; id < hookNames.length; id++) {
+            List<String> hook = Collections.singletonList(hookNames[id]);
+            seconds.addMetric(hook, totalNanos.get(id) / 1e9);
+            ratio.addMetric(hook, overhead[id]);
+            throttleFactor.addMetric(hook, throttle.get(id));
+            for (Decision decision : Decision.values()) {
+                decisionsTotal.addMetric(Arrays.asList(hookNames[id], decision.name().toLowerCase()), getDecisionCount(id, decision));
+            }
+        }
+        return Arrays.asList(seconds, ratio, throttleFactor, decisionsTotal);
+    }
+}
@@ -25,48 +25,59 @@ import java.lang.instrument.Instrumentation;
 import java.lang.management.ManagementFactory;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 import io.promagent.agent.ClassLoaderCache;
+import io.promagent.hookcontext.CardinalityLimiter;
+import io.promagent.hookcontext.EventPipeline;
 import io.promagent.hookcontext.MetricsStore;
 import io.promagent.internal.HookMetadata.MethodSignature;
 import io.promagent.internal.jmx.Exporter;
+import io.promagent.internal.jmx.HookManager;
 import io.promagent.internal.jmx.PromagentCollectorRegistry;
 import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import net.bytebuddy.asm.Advice;
 import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
 import net.bytebuddy.matcher.ElementMatcher;
 import net.bytebuddy.matcher.ElementMatchers;
 
 public class Promagent {
 
+    private static final int DEFAULT_MAX_CARDINALITY = 10_000; // label combinations per metric
+    private static final int DEFAULT_EVENT_QUEUE_SIZE = 65_536;
+
     public static void premain(String agentArgs, Instrumentation inst) {
         try {
             PromagentCollectorRegistry registry = new PromagentCollectorRegistry();
-            ManagementFactory.getPlatformMBeanServer().registerMBean(new Exporter(registry), new ObjectName("io.promagent:type=exporter"));
             Map<String, String> args = parseCmdline(agentArgs);
+            ScrapeCache scrapeCache = createScrapeCache(args.get("scrapeCacheMillis"), registry);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Exporter(registry, scrapeCache), new ObjectName("io.promagent:type=exporter"));
             if (args.containsKey("port")) {
-                BuiltInServer.run(args.get("host"), args.get("port"), registry);
+                BuiltInServer.run(args, registry, scrapeCache);
             }
             ClassLoaderCache classLoaderCache = ClassLoaderCache.getInstance();
             List<Path> hookJars = classLoaderCache.getPerDeploymentJars();
             SortedSet<HookMetadata> hookMetadata = new HookMetadataParser(hookJars).parse();
-            MetricsStore metricsStore = new MetricsStore(registry);
-            Delegator.init(hookMetadata, metricsStore, classLoaderCache);
+            MetricsStore metricsStore = new MetricsStore(registry, createCardinalityLimiter(args.get("maxCardinality"), registry),
+                    createEventPipeline(args.get("eventQueueSize"), args.get("eventQueueBackpressure"), registry));
+            CircuitBreaker circuitBreaker = new CircuitBreaker(hookMetadata);
+            registry.registerNoJmx(circuitBreaker);
+            EnabledHooks enabledHooks = new EnabledHooks(hookMetadata, inst);
+            Delegator.init(hookMetadata, metricsStore, classLoaderCache, createOverheadGovernor(args.get("overheadBudget"), hookMetadata, registry), circuitBreaker, enabledHooks);
             printHookMetadata(hookMetadata);
 
-            AgentBuilder agentBuilder = new AgentBuilder.Default();
-            agentBuilder = applyHooks(agentBuilder, hookMetadata, classLoaderCache);
-            agentBuilder
-                    .disableClassFormatChanges()
-                    // .with(AgentBuilder.Listener.StreamWriting.toSystemError()) // use this to see exceptions thrown in instrumented code
-                    .with(AgentBuilder.RedefinitionStrategy.REDEFINITION)
-                    .with(AgentBuilder.TypeStrategy.Default.REDEFINE)
-                    .installOn(inst);
+            installHooks(hookMetadata, enabledHooks, inst);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new HookManager(enabledHooks), new ObjectName("io.promagent:type=hooks"));
 
             // TODO -- the following is an experiment supporting collectors directly (in addition to hooks)
             // io.prometheus.client.Collector jmxCollector = (io.prometheus.client.Collector) classLoaderCache.currentClassLoader().loadClass("io.promagent.collectors.JmxCollector").newInstance();
@@ -76,22 +87,56 @@ public class Promagent {
         }
     }
 
+    /**
+     * Install the transformer applying the hooks, see {@link #applyHooks(AgentBuilder, SortedSet, EnabledHooks)}.
+     */
+    static ResettableClassFileTransformer installHooks(SortedSet<HookMetadata> hookMetadata, EnabledHooks enabledHooks, Instrumentation inst) {
+        AgentBuilder agentBuilder = new AgentBuilder.Default();
+        agentBuilder = applyHooks(agentBuilder, hookMetadata, enabledHooks);
+        return agentBuilder
+                .disableClassFormatChanges()
+                // .with(AgentBuilder.Listener.StreamWriting.toSystemError()) // use this to see exceptions thrown in instrumented code
+                // Retransformation rather than redefinition, so that the advice can be removed when a hook is disabled, see EnabledHooks.
+                .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+                .with(AgentBuilder.TypeStrategy.Default.REDEFINE)
+                .installOn(inst);
+    }
+
     /**
      * Add {@link ElementMatcher} for the hooks.
+     * <p/>
+     * There is a single transformer for all hooks, so that the advice is applied only once, even if a class is matched
+     * by more than one hook. When a class is transformed, each instrumented method gets its dispatch id, see {@link InstrumentedMethods}.
+     * <p/>
+     * The transformer matches the types of all hooks, but only applies the advice for methods of enabled hooks.
+     * That way, classes are restored to their original bytecode when they are retransformed after their hooks were disabled.
      */
-    private static AgentBuilder applyHooks(AgentBuilder agentBuilder, SortedSet<HookMetadata> hookMetadata, ClassLoaderCache classLoaderCache) {
-        Map<String, SortedSet<MethodSignature>> instruments = getInstruments(hookMetadata);
-        for (Map.Entry<String, SortedSet<MethodSignature>> entry : instruments.entrySet()) {
-            String instrumentedClassName = entry.getKey();
-            Set<MethodSignature> instrumentedMethods = entry.getValue();
-            agentBuilder = agentBuilder
-                    .type(ElementMatchers.hasSuperType(named(instrumentedClassName)))
-                    .transform(new AgentBuilder.Transformer.ForAdvice()
-                            .include(classLoaderCache.currentClassLoader()) // must be able to load PromagentAdvice
-                            .advice(matchAnyMethodIn(instrumentedMethods), PromagentAdvice.class.getName())
-                    );
+    private static AgentBuilder applyHooks(AgentBuilder agentBuilder, SortedSet<HookMetadata> hookMetadata, EnabledHooks enabledHooks) {
+        Map<HookMetadata, ElementMatcher<TypeDescription>> typeMatchers = new LinkedHashMap<>();
+        ElementMatcher.Junction<TypeDescription> anyInstrumentedType = ElementMatchers.none();
+        for (HookMetadata hook : hookMetadata) {
+            ElementMatcher.Junction<TypeDescription> typeMatcher = ElementMatchers.none();
+            for (String instruments : hook.getInstruments()) {
+                typeMatcher = typeMatcher.or(ElementMatchers.hasSuperType(named(instruments)));
+            }
+            typeMatchers.put(hook, typeMatcher);
+            anyInstrumentedType = anyInstrumentedType.or(typeMatcher);
         }
-        return agentBuilder;
+        Advice advice = AdviceArguments.withCustomMapping(new InstrumentedMethods(hookMetadata)).to(PromagentAdvice.class);
+        return agentBuilder
+                .type(anyInstrumentedType)
+                .transform((builder, typeDescription, classLoader, module) -> {
+                    Set<MethodSignature> instrumentedMethods = new TreeSet<>();
+                    for (Map.Entry<HookMetadata, ElementMatcher<TypeDescription>> entry : typeMatchers.entrySet()) {
+                        if (enabledHooks.isEnabled(entry.getKey().getId()) && entry.getValue().matches(typeDescription)) {
+                            instrumentedMethods.addAll(entry.getKey().getMethods());
+                        }
+                    }
+                    if (instrumentedMethods.isEmpty()) {
+                        return builder;
+                    }
+                    return builder.visit(advice.on(matchAnyMethodIn(instrumentedMethods)));
+                });
     }
 
     /**
@@ -104,7 +149,9 @@ public class Promagent {
                 if (!result.containsKey(instruments)) {
                     result.put(instruments, new TreeSet<>());
                 }
-                result.get(instruments).addAll(hookMetadata.getMethods());
+                for (MethodSignature method : hookMetadata.getMethods()) {
+                    MethodSignature.addOrMerge(result.get(instruments), method);
+                }
             }
         }
         return result;
@@ -128,6 +175,75 @@ public class Promagent {
         return methodMatcher;
     }
 
+    /**
+     * Returns null if no overhead budget is configured.
+     * The budget is the percentage of the available CPU time that each hook may use, like "overheadBudget=5".
+     */
+    private static OverheadGovernor createOverheadGovernor(String budgetString, SortedSet<HookMetadata> hookMetadata, PromagentCollectorRegistry registry) {
+        if (budgetString == null) {
+            return null;
+        }
+        try {
+            OverheadGovernor governor = new OverheadGovernor(hookMetadata, Double.parseDouble(budgetString) / 100, Runtime.getRuntime().availableProcessors());
+            registry.registerNoJmx(governor);
+            governor.start(1, TimeUnit.SECONDS);
+            return governor;
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Failed to parse command line arguments: '" + budgetString + "' is not a valid overhead budget.");
+        }
+    }
+
+    /**
+     * Returns null if no scrape cache is configured. The value is the maximum age of the cached metrics in milliseconds,
+     * like "scrapeCacheMillis=1000". With "scrapeCacheMillis=0", only concurrent scrapes share the collected metrics.
+     */
+    private static ScrapeCache createScrapeCache(String maxAgeString, PromagentCollectorRegistry registry) {
+        if (maxAgeString == null) {
+            return null;
+        }
+        try {
+            return new ScrapeCache(registry, Long.parseLong(maxAgeString), TimeUnit.MILLISECONDS);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Failed to parse command line arguments: '" + maxAgeString + "' is not a valid scrapeCacheMillis.");
+        }
+    }
+
+    /**
+     * The maximum number of label combinations per metric, like "maxCardinality=1000". Metrics may override this in their MetricDef.
+     */
+    private static CardinalityLimiter createCardinalityLimiter(String maxCardinalityString, PromagentCollectorRegistry registry) {
+        try {
+            CardinalityLimiter cardinalityLimiter = new CardinalityLimiter(maxCardinalityString == null ? DEFAULT_MAX_CARDINALITY : Integer.parseInt(maxCardinalityString));
+            registry.registerNoJmx(cardinalityLimiter);
+            return cardinalityLimiter;
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Failed to parse command line arguments: '" + maxCardinalityString + "' is not a valid maxCardinality.");
+        }
+    }
+
+    /**
+     * The ring buffer for Hooks recording metrics asynchronously, like "eventQueueSize=65536,eventQueueBackpressure=block".
+     * The backpressure is "drop" or "block", default is "drop". The arguments are parsed here, but the ring buffer is only allocated
+     * and its metrics are only registered when the first Hook uses the pipeline, so agents without asynchronous Hooks don't pay for it.
+     */
+    private static Supplier<EventPipeline> createEventPipeline(String sizeString, String backpressureString, PromagentCollectorRegistry registry) {
+        try {
+            int size = sizeString == null ? DEFAULT_EVENT_QUEUE_SIZE : Integer.parseInt(sizeString);
+            EventPipeline.Backpressure backpressure = backpressureString == null ? EventPipeline.Backpressure.DROP : EventPipeline.Backpressure.valueOf(backpressureString.toUpperCase());
+            if (size < 1 || size > EventPipeline.MAX_CAPACITY) {
+                throw new IllegalArgumentException();
+            }
+            return () -> {
+                EventPipeline eventPipeline = new EventPipeline(size, backpressure);
+                registry.registerNoJmx(eventPipeline);
+                return eventPipeline;
+            };
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("Failed to parse command line arguments: '" + sizeString + "' is not a valid eventQueueSize, " +
+                    "or '" + backpressureString + "' is not a valid eventQueueBackpressure.");
+        }
+    }
+
     /**
      * Parse a comma-separated list of key/value pairs. Example: "host=localhost,port=9300"
      */
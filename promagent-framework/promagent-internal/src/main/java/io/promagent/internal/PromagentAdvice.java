@@ -14,11 +14,10 @@
 
 package io.promagent.internal;
 
-import io.promagent.agent.ClassLoaderCache;
-import net.bytebuddy.implementation.bytecode.assign.Assigner;
-
-import java.lang.reflect.Method;
-import java.util.List;
+import io.promagent.agent.DispatcherBridge;
+import io.promagent.internal.AdviceArguments.Arguments;
+import io.promagent.internal.AdviceArguments.DispatchId;
+import io.promagent.internal.AdviceArguments.ReturnValue;
 
 import static net.bytebuddy.asm.Advice.*;
 
@@ -29,50 +28,27 @@ public class PromagentAdvice {
     // to make clear that it cannot reference other classes from promagent-internal?
 
     @OnMethodEnter
-    @SuppressWarnings("unchecked")
-    public static List<Object> before(
+    public static Object before(
             @This(optional = true) Object that,
-            @Origin Method method,
-            @AllArguments Object[] args
+            @Origin Class<?> type,
+            @DispatchId int dispatchId, // constant, see InstrumentedMethods
+            @Arguments Object[] args // null if not used by any hook, see AdviceArguments
     ) {
         // that is null when instrumenting static methods.
-        Class<?> clazz = that != null ? that.getClass() : method.getDeclaringClass();
-        try {
-            // The following code is equivalent to:
-            //     return Delegator.before(that, method, args);
-            // However, the Delegator class will not be available in the context of the instrumented method,
-            // so we must use our agent class loader to load the Delegator class and do the call via reflection.
-            Class<?> delegator = ClassLoaderCache.getInstance().currentClassLoader().loadClass("io.promagent.internal.Delegator");
-            Method beforeMethod = delegator.getMethod("before", Class.class, Method.class, Object[].class);
-            return (List<Object>) beforeMethod.invoke(null, clazz, method, args);
-        } catch (Exception e) {
-            System.err.println("Error executing Prometheus hook on " + clazz.getSimpleName());
-            e.printStackTrace();
-            return null;
-        }
+        Class<?> clazz = that != null ? that.getClass() : type;
+        // The Delegator class will not be available in the context of the instrumented method,
+        // so we call it through the DispatcherBridge, which is loaded from the system class loader.
+        // The DispatcherBridge does not throw exceptions, so there is no try/catch here.
+        return DispatcherBridge.before(clazz, dispatchId, args);
     }
 
     @OnMethodExit(onThrowable = Throwable.class)
     public static void after(
-            @Enter List<Object> hooks,
-            @This(optional = true) Object that,
-            @Origin Method method,
-            @AllArguments Object[] args,
-            @Return(typing = Assigner.Typing.DYNAMIC) Object returned, // support void == null and int == Integer
+            @Enter Object hooks,
+            @Arguments Object[] args, // null if not used by any hook, see AdviceArguments
+            @ReturnValue Object returned, // support void == null and int == Integer, null if not used by any hook
             @Thrown Throwable thrown
     ) {
-        try {
-            // The following code is equivalent to:
-            //     Delegator.after(hooks, method, args);
-            // However, the Delegator class will not be available in the context of the instrumented method,
-            // so we must use our agent class loader to load the Delegator class and do the call via reflection.
-            Class<?> delegator = ClassLoaderCache.getInstance().currentClassLoader().loadClass("io.promagent.internal.Delegator");
-            Method afterMethod = delegator.getMethod("after", List.class, Method.class, Object[].class, Object.class, Throwable.class);
-            afterMethod.invoke(null, hooks, method, args, returned, thrown);
-        } catch (Exception e) {
-            Class<?> clazz = that != null ? that.getClass() : method.getDeclaringClass();
-            System.err.println("Error executing Prometheus hook on " + clazz.getSimpleName());
-            e.printStackTrace();
-        }
+        DispatcherBridge.after(hooks, args, returned, thrown);
     }
 }
@@ -0,0 +1,274 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.Collector.MetricFamilySamples;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes metrics as length-delimited <tt>io.prometheus.client.MetricFamily</tt> messages, as defined in Prometheus'
+ * <a href="https://github.com/prometheus/client_model/blob/master/metrics.proto">metrics.proto</a>.
+ * <p/>
+ * The messages are encoded by hand, so the agent doesn't need a protobuf runtime. Each metric family is encoded
+ * into a re-used byte array and then written to the {@link ResponseWriter}, so memory is proportional to the largest
+ * metric family rather than to the response. Length prefixes of nested messages are not known before the message is encoded,
+ * so the message is encoded first, and then moved right by the size of its length prefix.
+ */
+class ProtobufFormat {
+
+    // MetricType enum values in metrics.proto
+    private static final int COUNTER = 0;
+    private static final int GAUGE = 1;
+    private static final int SUMMARY = 2;
+    private static final int UNTYPED = 3;
+    private static final int HISTOGRAM = 4;
+
+    private static final int VARINT = 0;
+    private static final int FIXED64 = 1;
+    private static final int LENGTH_DELIMITED = 2;
+
+    private byte[] buf = new byte[ResponseWriter.BUFFER_SIZE];
+    private int pos;
+
+    static void write(ResponseWriter writer, Enumeration<MetricFamilySamples> mfs) throws IOException {
+        ProtobufFormat format = new ProtobufFormat();
+        while (mfs.hasMoreElements()) {
+            format.pos = 0;
+            format.writeMetricFamily(mfs.nextElement());
+            writer.writeBinary(format.buf, 0, format.pos);
+        }
+    }
+
+    private void writeMetricFamily(MetricFamilySamples metricFamilySamples) {
+        int metricFamily = pos; // delimited, i.e. length prefix without field tag
+        writeString(1, metricFamilySamples.name);
+        writeString(2, metricFamilySamples.help);
+        writeVarint(3, type(metricFamilySamples.type));
+        for (List<MetricFamilySamples.Sample> samples : groupByLabels(metricFamilySamples).values()) {
+            writeMetric(metricFamilySamples, samples);
+        }
+        end(metricFamily);
+    }
+
+    /**
+     * In the text format, a summary or histogram is a set of samples with the same labels (apart from quantile or le).
+     * In the protobuf format, it is a single Metric message.
+     */
+    private static Map<List<String>, List<MetricFamilySamples.Sample>> groupByLabels(MetricFamilySamples metricFamilySamples) {
+        Map<List<String>, List<MetricFamilySamples.Sample>> result = new LinkedHashMap<>();
+        for (MetricFamilySamples.Sample sample : metricFamilySamples.samples) {
+            List<String> key = new ArrayList<>(sample.labelValues.size());
+            for (int i = 0; i < sample.labelNames.size(); i++) {
+                if (!isBucketOrQuantileLabel(metricFamilySamples.type, sample.labelNames.get(i))) {
+                    key.add(sample.labelValues.get(i));
+                }
+            }
+            result.computeIfAbsent(key, k -> new ArrayList<>()).add(sample);
+        }
+        return result;
+    }
+
+    private static boolean isBucketOrQuantileLabel(Collector.Type type, String labelName) {
+        return type == Collector.Type.SUMMARY && "quantile".equals(labelName) || type == Collector.Type.HISTOGRAM && "le".equals(labelName);
+    }
+
+    private void writeMetric(MetricFamilySamples metricFamilySamples, List<MetricFamilySamples.Sample> samples) {
+        String name = metricFamilySamples.name;
+        MetricFamilySamples.Sample first = samples.get(0);
+        int metric = begin(4);
+        for (int i = 0; i < first.labelNames.size(); i++) {
+            if (!isBucketOrQuantileLabel(metricFamilySamples.type, first.labelNames.get(i))) {
+                int labelPair = begin(1);
+                writeString(1, first.labelNames.get(i));
+                writeString(2, first.labelValues.get(i));
+                end(labelPair);
+            }
+        }
+        switch (metricFamilySamples.type) {
+            case COUNTER:
+            case GAUGE:
+            case UNTYPED:
+                int value = begin(metricFamilySamples.type == Collector.Type.COUNTER ? 3 : metricFamilySamples.type == Collector.Type.GAUGE ? 2 : 5);
+                for (MetricFamilySamples.Sample sample : samples) {
+                    if (sample.name.equals(name) || sample.name.equals(name + "_total")) {
+                        writeDouble(1, sample.value);
+                    }
+                }
+                end(value);
+                break;
+            case SUMMARY:
+                int summary = begin(4);
+                for (MetricFamilySamples.Sample sample : samples) {
+                    if (sample.name.equals(name + "_count")) {
+                        writeVarint(1, (long) sample.value);
+                    } else if (sample.name.equals(name + "_sum")) {
+                        writeDouble(2, sample.value);
+                    } else if (sample.name.equals(name)) {
+                        int quantile = begin(3);
+                        writeDouble(1, labelValue(sample, "quantile"));
+                        writeDouble(2, sample.value);
+                        end(quantile);
+                    }
+                }
+                end(summary);
+                break;
+            case HISTOGRAM:
+                int histogram = begin(7);
+                for (MetricFamilySamples.Sample sample : samples) {
+                    if (sample.name.equals(name + "_count")) {
+                        writeVarint(1, (long) sample.value);
+                    } else if (sample.name.equals(name + "_sum")) {
+                        writeDouble(2, sample.value);
+                    } else if (sample.name.equals(name + "_bucket")) {
+                        int bucket = begin(3);
+                        writeVarint(1, (long) sample.value);
+                        writeDouble(2, labelValue(sample, "le"));
+                        end(bucket);
+                    }
+                }
+                end(histogram);
+                break;
+        }
+        if (first.timestampMs != null) {
+            writeVarint(6, first.timestampMs);
+        }
+        end(metric);
+    }
+
+    /**
+     * The value of the quantile or le label, formatted with {@link Collector#doubleToGoString(double)}.
+     */
+    private static double labelValue(MetricFamilySamples.Sample sample, String labelName) {
+        String value = sample.labelValues.get(sample.labelNames.indexOf(labelName));
+        switch (value) {
+            case "+Inf":
+                return Double.POSITIVE_INFINITY;
+            case "-Inf":
+                return Double.NEGATIVE_INFINITY;
+            default:
+                return Double.parseDouble(value); // also parses "NaN"
+        }
+    }
+
+    private static int type(Collector.Type type) {
+        switch (type) {
+            case COUNTER:
+                return COUNTER;
+            case GAUGE:
+                return GAUGE;
+            case SUMMARY:
+                return SUMMARY;
+            case HISTOGRAM:
+                return HISTOGRAM;
+            default:
+                return UNTYPED;
+        }
+    }
+
+    /**
+     * Start a length-delimited field, and return the start position for {@link #end(int)}.
+     */
+    private int begin(int field) {
+        writeRawVarint(field << 3 | LENGTH_DELIMITED);
+        return pos;
+    }
+
+    /**
+     * Insert the length prefix in front of the field's content.
+     */
+    private void end(int start) {
+        int length = pos - start;
+        int prefixSize = varintSize(length);
+        ensureCapacity(prefixSize);
+        System.arraycopy(buf, start, buf, start + prefixSize, length);
+        pos = start;
+        writeRawVarint(length);
+        pos = start + prefixSize + length;
+    }
+
+    private void writeString(int field, String s) {
+        int start = begin(field);
+        ensureCapacity(3 * s.length()); // a char is at most 3 bytes in UTF-8, a surrogate pair is 4 bytes for 2 chars
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | c >> 6);
+                buf[pos++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xf0 | codePoint >> 18);
+                buf[pos++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                buf[pos++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                buf[pos++] = (byte) (0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                buf[pos++] = '?'; // unpaired surrogate, like String.getBytes(UTF_8)
+            } else {
+                buf[pos++] = (byte) (0xe0 | c >> 12);
+                buf[pos++] = (byte) (0x80 | c >> 6 & 0x3f);
+                buf[pos++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        end(start);
+    }
+
+    private void writeDouble(int field, double value) {
+        writeRawVarint(field << 3 | FIXED64);
+        ensureCapacity(8);
+        long bits = Double.doubleToRawLongBits(value);
+        for (int i = 0; i < 8; i++) {
+            buf[pos++] = (byte) (bits >> 8 * i);
+        }
+    }
+
+    private void writeVarint(int field, long value) {
+        writeRawVarint(field << 3 | VARINT);
+        writeRawVarint(value);
+    }
+
+    private void writeRawVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7fL) != 0) {
+            buf[pos++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private void ensureCapacity(int n) {
+        if (pos + n > buf.length) {
+            byte[] newBuf = new byte[Math.max(buf.length * 2, pos + n)];
+            System.arraycopy(buf, 0, newBuf, 0, pos);
+            buf = newBuf;
+        }
+    }
+}
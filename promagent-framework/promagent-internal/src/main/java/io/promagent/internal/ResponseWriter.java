@@ -0,0 +1,241 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes text as UTF-8 to an {@link OutputStream}, optionally gzip-compressed, through fixed-size buffers.
+ * Binary data can be written with {@link #writeBinary(byte[], int, int)}.
+ * <p/>
+ * The buffers and the {@link Deflater} are re-used for all responses written with the same {@link ResponseWriter},
+ * so writing a response doesn't allocate memory proportional to the response size, and doesn't create a new {@link Deflater}
+ * with its native memory for each response. A {@link ResponseWriter} is not thread safe. Writers are taken from a small pool
+ * with {@link #acquire()}, rather than kept per thread, because the server may run each request in a new (virtual) thread.
+ * <p/>
+ * Usage: Call {@link #open(OutputStream, boolean)}, write the text, and {@link #close()} the writer, which also closes the stream
+ * and returns an acquired writer to the pool.
+ */
+class ResponseWriter extends Writer {
+
+    static final int BUFFER_SIZE = 8192;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final int MAX_IDLE = 16;
+    private static final BlockingQueue<ResponseWriter> idle = new ArrayBlockingQueue<>(MAX_IDLE);
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true); // raw deflate, the gzip header and trailer are written here
+    private final byte[] deflated = new byte[BUFFER_SIZE];
+    private final CRC32 crc = new CRC32();
+    private OutputStream out; // null if not open
+    private boolean gzip;
+    private boolean acquired; // true if the writer must be returned to the pool when closed
+
+    /**
+     * Take an idle writer from the pool, or create a new one if all writers are in use.
+     */
+    static ResponseWriter acquire() {
+        ResponseWriter writer = idle.poll();
+        if (writer == null) {
+            writer = new ResponseWriter();
+        }
+        writer.acquired = true;
+        return writer;
+    }
+
+    /**
+     * Start writing a new response to out. If the previous response was not closed, because writing failed, its state is discarded.
+     * If opening fails, an acquired writer is returned to the pool, as the caller doesn't get a writer to close.
+     */
+    ResponseWriter open(OutputStream out, boolean gzip) throws IOException {
+        this.out = out;
+        this.gzip = gzip;
+        encoder.reset();
+        chars.clear();
+        bytes.clear();
+        if (gzip) {
+            deflater.reset();
+            crc.reset();
+            try {
+                out.write(GZIP_HEADER);
+            } catch (IOException | RuntimeException e) {
+                this.out = null;
+                release();
+                throw e;
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+        if (!chars.hasRemaining()) {
+            encode(false);
+        }
+        chars.put((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+            int n = Math.min(len, chars.remaining());
+            chars.put(cbuf, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!chars.hasRemaining()) {
+                encode(false);
+            }
+            int n = Math.min(len, chars.remaining());
+            str.getChars(off, off + n, chars.array(), chars.position());
+            chars.position(chars.position() + n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Encode the buffered chars, leaving an incomplete surrogate pair in the buffer unless endOfInput is true.
+     */
+    private void encode(boolean endOfInput) throws IOException {
+        chars.flip();
+        while (true) {
+            CoderResult result = encoder.encode(chars, bytes, endOfInput);
+            if (result.isOverflow()) {
+                writeBytes();
+            } else {
+                break;
+            }
+        }
+        chars.compact();
+        if (endOfInput) {
+            while (encoder.flush(bytes).isOverflow()) {
+                writeBytes();
+            }
+        }
+    }
+
+    private void writeBytes() throws IOException {
+        bytes.flip();
+        output(bytes.array(), 0, bytes.limit());
+        bytes.clear();
+    }
+
+    /**
+     * Write binary data, like the protobuf exposition format. Text written before is encoded and written first.
+     */
+    void writeBinary(byte[] b, int off, int len) throws IOException {
+        encode(false);
+        writeBytes();
+        output(b, off, len);
+    }
+
+    private void output(byte[] b, int off, int len) throws IOException {
+        if (gzip) {
+            crc.update(b, off, len);
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        } else {
+            out.write(b, off, len);
+        }
+    }
+
+    private void deflate() throws IOException {
+        int n = deflater.deflate(deflated);
+        if (n > 0) {
+            out.write(deflated, 0, n);
+        }
+    }
+
+    /**
+     * Writes the buffered text to the stream. Note that compressed output may remain in the {@link Deflater} until {@link #close()}.
+     */
+    @Override
+    public void flush() throws IOException {
+        encode(false);
+        writeBytes();
+        out.flush();
+    }
+
+    /**
+     * Write the remaining text and the gzip trailer, and close the stream. The writer can be re-used with {@link #open(OutputStream, boolean)},
+     * unless it was taken from the pool with {@link #acquire()}, in which case it is returned to the pool.
+     */
+    @Override
+    public void close() throws IOException {
+        if (out == null) {
+            release();
+            return;
+        }
+        try {
+            encode(true);
+            writeBytes();
+            if (gzip) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate();
+                }
+                writeIntLE(crc.getValue());
+                writeIntLE(deflater.getBytesRead());
+            }
+            out.close();
+        } finally {
+            out = null;
+            release();
+        }
+    }
+
+    private void release() {
+        if (acquired) {
+            acquired = false;
+            if (!idle.offer(this)) {
+                deflater.end(); // pool is full, free the native memory now rather than when the writer is garbage collected
+            }
+        }
+    }
+
+    private void writeIntLE(long value) throws IOException {
+        out.write((int) value & 0xff);
+        out.write((int) (value >> 8) & 0xff);
+        out.write((int) (value >> 16) & 0xff);
+        out.write((int) (value >> 24) & 0xff);
+    }
+}
@@ -0,0 +1,207 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.prometheus.client.Collector.MetricFamilySamples;
+import io.prometheus.client.CollectorRegistry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Shares the collected and rendered metrics among scrapes, so that the cost of collecting the registry doesn't grow
+ * with the number of scrapers, like several Prometheus replicas scraping the same JVM.
+ * <p/>
+ * Scrapes arriving while the registry is being collected wait for that collection and get its result.
+ * Scrapes arriving within maxAge after a collection get the cached result, so the registry is collected
+ * at most once per maxAge. With maxAge 0, only concurrent scrapes are coalesced.
+ * <p/>
+ * The result is rendered once per {@link ExpositionFormat}, and gzip-compressed once when the first scraper asks for gzip.
+ */
+public class ScrapeCache {
+
+    private final CollectorRegistry registry;
+    private final long maxAgeNanos;
+    private final LongSupplier nanoTime;
+    private volatile Payload cached; // null before the first collection
+    private CompletableFuture<Payload> inFlight; // guarded by this, null if no collection is running
+
+    public ScrapeCache(CollectorRegistry registry, long maxAge, TimeUnit unit) {
+        this(registry, unit.toNanos(maxAge), System::nanoTime);
+    }
+
+    ScrapeCache(CollectorRegistry registry, long maxAgeNanos, LongSupplier nanoTime) {
+        this.registry = registry;
+        this.maxAgeNanos = maxAgeNanos;
+        this.nanoTime = nanoTime;
+    }
+
+    public Payload get() throws IOException {
+        Payload result = cached;
+        if (isFresh(result)) {
+            return result;
+        }
+        CompletableFuture<Payload> future;
+        boolean collect = false;
+        synchronized (this) {
+            result = cached;
+            if (isFresh(result)) {
+                return result;
+            }
+            if (inFlight == null) {
+                inFlight = new CompletableFuture<>();
+                collect = true;
+            }
+            future = inFlight;
+        }
+        if (collect) {
+            try {
+                Payload payload = new Payload(nanoTime.getAsLong(), registry);
+                cached = payload;
+                future.complete(payload);
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                synchronized (this) {
+                    inFlight = null;
+                }
+            }
+        }
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            // All scrapes waiting for a failed collection get the exception of that collection.
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private boolean isFresh(Payload payload) {
+        return payload != null && nanoTime.getAsLong() - payload.createdNanos < maxAgeNanos;
+    }
+
+    /**
+     * The collected metrics, rendered on demand in each {@link ExpositionFormat} requested by a scraper.
+     */
+    public static class Payload {
+
+        private final long createdNanos;
+        private final List<MetricFamilySamples> metricFamilySamples;
+        private final Map<ExpositionFormat, Rendering> renderings = new EnumMap<>(ExpositionFormat.class); // guarded by this
+
+        private Payload(long createdNanos, CollectorRegistry registry) {
+            this.createdNanos = createdNanos;
+            this.metricFamilySamples = Collections.list(registry.metricFamilySamples());
+        }
+
+        public int size(ExpositionFormat format, boolean gzip) {
+            return getRendering(format).get(gzip).size();
+        }
+
+        public void writeTo(OutputStream out, ExpositionFormat format, boolean gzip) throws IOException {
+            getRendering(format).get(gzip).writeTo(out);
+        }
+
+        /**
+         * The metrics as a String, only useful for the text based formats.
+         */
+        public String getText(ExpositionFormat format) {
+            return getRendering(format).getText();
+        }
+
+        private synchronized Rendering getRendering(ExpositionFormat format) {
+            Rendering rendering = renderings.get(format);
+            if (rendering == null) {
+                rendering = new Rendering(format, metricFamilySamples);
+                renderings.put(format, rendering);
+            }
+            return rendering;
+        }
+    }
+
+    private static class Rendering {
+
+        private final Buffer plain = new Buffer();
+        private Buffer gzipped; // guarded by this, created on demand
+        private String text; // guarded by this, created on demand
+
+        private Rendering(ExpositionFormat format, List<MetricFamilySamples> metricFamilySamples) {
+            try (ResponseWriter writer = ResponseWriter.acquire().open(plain, false)) {
+                format.write(writer, Collections.enumeration(metricFamilySamples));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // not thrown when writing to memory
+            }
+        }
+
+        private synchronized Buffer get(boolean gzip) {
+            if (!gzip) {
+                return plain;
+            }
+            if (gzipped == null) {
+                try {
+                    Buffer buffer = new Buffer();
+                    try (OutputStream out = new GZIPOutputStream(buffer, ResponseWriter.BUFFER_SIZE)) {
+                        plain.writeTo(out);
+                    }
+                    gzipped = buffer;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e); // not thrown when writing to memory
+                }
+            }
+            return gzipped;
+        }
+
+        private synchronized String getText() {
+            if (text == null) {
+                text = plain.decode(StandardCharsets.UTF_8);
+            }
+            return text;
+        }
+    }
+
+    /**
+     * {@link ByteArrayOutputStream#writeTo(OutputStream)} writes the internal array without copying it,
+     * and {@link #decode(Charset)} decodes it without an intermediate copy.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+
+        private Buffer() {
+            super(ResponseWriter.BUFFER_SIZE);
+        }
+
+        private String decode(Charset charset) {
+            return new String(buf, 0, count, charset);
+        }
+    }
+}
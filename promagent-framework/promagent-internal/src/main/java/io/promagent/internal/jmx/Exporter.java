@@ -14,26 +14,68 @@
 
 package io.promagent.internal.jmx;
 
-import io.prometheus.client.CollectorRegistry;
-import io.prometheus.client.exporter.common.TextFormat;
+import io.promagent.internal.ExpositionFormat;
+import io.promagent.internal.MetricFilter;
+import io.promagent.internal.ScrapeCache;
 
 import java.io.IOException;
-import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
 
 public class Exporter implements ExporterMBean {
 
-    private final CollectorRegistry registry;
+    private final PromagentCollectorRegistry registry;
+    private final ScrapeCache scrapeCache;
 
-    public Exporter(CollectorRegistry registry) {
+    /**
+     * If scrapeCache is null, each call collects the registry. Concurrent calls still share a collection.
+     */
+    public Exporter(PromagentCollectorRegistry registry, ScrapeCache scrapeCache) {
         this.registry = registry;
+        this.scrapeCache = scrapeCache != null ? scrapeCache : new ScrapeCache(registry, 0, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public String getTextFormat() {
+        return getText(ExpositionFormat.TEXT);
+    }
+
+    @Override
+    public String getOpenMetricsFormat() {
+        return getText(ExpositionFormat.OPENMETRICS);
+    }
+
+    /**
+     * Partial scrapes don't use the {@link ScrapeCache}, they only call the collectors selected by the filter.
+     */
+    @Override
+    public String filteredTextFormat(String[] names, String[] namePrefixes) {
+        return getText(ExpositionFormat.TEXT, names, namePrefixes);
+    }
+
+    @Override
+    public String filteredOpenMetricsFormat(String[] names, String[] namePrefixes) {
+        return getText(ExpositionFormat.OPENMETRICS, names, namePrefixes);
+    }
+
+    private String getText(ExpositionFormat format, String[] names, String[] namePrefixes) {
+        MetricFilter filter = new MetricFilter(
+                names == null ? Collections.emptyList() : Arrays.asList(names),
+                namePrefixes == null ? Collections.emptyList() : Arrays.asList(namePrefixes));
+        if (filter.isEmpty()) {
+            return getText(format);
+        }
+        try {
+            return format.toText(registry.metricFamilySamples(filter));
+        } catch (IOException e) {
+            throw new RuntimeException("Unexpected error when writing metrics to a String: " + e.getMessage(), e);
+        }
+    }
+
+    private String getText(ExpositionFormat format) {
         try {
-            StringWriter result = new StringWriter();
-            TextFormat.write004(result, registry.metricFamilySamples());
-            return result.toString();
+            return scrapeCache.get().getText(format);
         } catch (IOException e) {
             throw new RuntimeException("Unexpected error when writing metrics to a String: " + e.getMessage(), e);
         }
@@ -16,4 +16,16 @@ package io.promagent.internal.jmx;
 
 public interface ExporterMBean {
     String getTextFormat();
+
+    String getOpenMetricsFormat();
+
+    /**
+     * Only the metric families with the given names or name prefixes, see {@link io.promagent.internal.MetricFilter}.
+     */
+    String filteredTextFormat(String[] names, String[] namePrefixes);
+
+    /**
+     * Only the metric families with the given names or name prefixes, see {@link io.promagent.internal.MetricFilter}.
+     */
+    String filteredOpenMetricsFormat(String[] names, String[] namePrefixes);
 }
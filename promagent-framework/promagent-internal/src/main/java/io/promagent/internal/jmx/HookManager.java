@@ -0,0 +1,52 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal.jmx;
+
+import io.promagent.internal.EnabledHooks;
+
+/**
+ * Disable hooks at runtime, for example to turn off expensive instrumentation during peak load, and enable them again.
+ * Disabling a hook removes its advice from the instrumented classes, see {@link EnabledHooks}.
+ */
+public class HookManager implements HookManagerMBean {
+
+    private final EnabledHooks enabledHooks;
+
+    public HookManager(EnabledHooks enabledHooks) {
+        this.enabledHooks = enabledHooks;
+    }
+
+    @Override
+    public String[] getHooks() {
+        return enabledHooks.getHookClassNames().toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getDisabledHooks() {
+        return enabledHooks.getHookClassNames().stream()
+                .filter(hookClassName -> !enabledHooks.isEnabled(hookClassName))
+                .toArray(String[]::new);
+    }
+
+    @Override
+    public void enable(String hookClassName) {
+        enabledHooks.setEnabled(hookClassName, true);
+    }
+
+    @Override
+    public void disable(String hookClassName) {
+        enabledHooks.setEnabled(hookClassName, false);
+    }
+}
@@ -14,6 +14,7 @@
 
 package io.promagent.internal.jmx;
 
+import io.promagent.internal.MetricFilter;
 import io.prometheus.client.Collector;
 import io.prometheus.client.CollectorRegistry;
 import io.prometheus.client.SimpleCollector;
@@ -22,25 +23,48 @@ import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
 import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This is like the regular {@link CollectorRegistry}, except that when you {@link #register(Collector)} a metric,
  * the metric will also be registered as an MBean in the JMX platform server.
+ * <p/>
+ * In addition, it supports partial scrapes with {@link #metricFamilySamples(MetricFilter)}.
  */
 public class PromagentCollectorRegistry extends CollectorRegistry {
 
+    // For each collector the names of the metric families it describes, null if it isn't Describable or describes nothing. Guarded by itself.
+    private final Map<Collector, List<String>> familyNames = new LinkedHashMap<>();
+
     @Override
     public void register(Collector metric) {
         super.register(metric);
+        addFamilyNames(metric);
         try {
-            ManagementFactory.getPlatformMBeanServer().registerMBean(new Metric(metric), makeObjectName((SimpleCollector) metric));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Metric(metric), makeObjectName(metric));
         } catch (Exception e) {
             throw new RuntimeException("Failed to register Prometheus metric: " + e.getMessage(), e);
         }
     }
 
-    private static ObjectName makeObjectName(SimpleCollector metric) throws MalformedObjectNameException {
-        return makeObjectName(getFullName(metric));
+    /**
+     * Metrics are usually {@link SimpleCollector}s. Other collectors, like the wrappers registered by
+     * {@link io.promagent.hookcontext.MetricsStore#scaledBy(int)}, are named after the first metric family they describe.
+     */
+    private static ObjectName makeObjectName(Collector metric) throws MalformedObjectNameException {
+        if (metric instanceof SimpleCollector) {
+            return makeObjectName(getFullName((SimpleCollector) metric));
+        }
+        List<Collector.MetricFamilySamples> description = metric instanceof Collector.Describable ? ((Collector.Describable) metric).describe() : metric.collect();
+        if (description.isEmpty()) {
+            throw new IllegalArgumentException(metric.getClass().getName() + " does not provide a metric name.");
+        }
+        return makeObjectName(description.get(0).name);
     }
 
     private static ObjectName makeObjectName(String fullname) throws MalformedObjectNameException {
@@ -62,5 +86,72 @@ public class PromagentCollectorRegistry extends CollectorRegistry {
 
     public void registerNoJmx(Collector collector) {
         super.register(collector);
+        addFamilyNames(collector);
+    }
+
+    @Override
+    public void unregister(Collector collector) {
+        super.unregister(collector);
+        synchronized (familyNames) {
+            familyNames.remove(collector);
+        }
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        synchronized (familyNames) {
+            familyNames.clear();
+        }
+    }
+
+    private void addFamilyNames(Collector collector) {
+        List<String> names = null;
+        if (collector instanceof Collector.Describable) {
+            names = new ArrayList<>();
+            for (Collector.MetricFamilySamples family : ((Collector.Describable) collector).describe()) {
+                names.add(family.name);
+            }
+            if (names.isEmpty()) {
+                names = null; // like the JmxCollector, the metric families are only known when collected
+            }
+        }
+        synchronized (familyNames) {
+            familyNames.put(collector, names);
+        }
+    }
+
+    /**
+     * Like {@link #metricFamilySamples()}, but only the families selected by the filter.
+     * <p/>
+     * The filter is applied before collecting: Collectors that describe their metric families, like all metrics created with the
+     * Prometheus client library, are not called at all if none of their families is selected. Collectors that aren't
+     * {@link Collector.Describable}, or describe an empty list because their families are only known when collected,
+     * are called, and the families they return are filtered afterwards.
+     * <p/>
+     * Unlike {@link #filteredMetricFamilySamples(java.util.Set)}, this selects whole metric families rather than individual samples,
+     * supports prefixes, and includes collectors that aren't {@link Collector.Describable}.
+     */
+    public Enumeration<Collector.MetricFamilySamples> metricFamilySamples(MetricFilter filter) {
+        List<Map.Entry<Collector, List<String>>> collectors;
+        synchronized (familyNames) {
+            collectors = new ArrayList<>(familyNames.entrySet());
+        }
+        Iterator<Collector.MetricFamilySamples> result = collectors.stream()
+                .filter(entry -> entry.getValue() == null || entry.getValue().stream().anyMatch(filter::matches))
+                .flatMap(entry -> entry.getKey().collect().stream())
+                .filter(family -> filter.matches(family.name))
+                .iterator();
+        return new Enumeration<Collector.MetricFamilySamples>() {
+            @Override
+            public boolean hasMoreElements() {
+                return result.hasNext();
+            }
+
+            @Override
+            public Collector.MetricFamilySamples nextElement() {
+                return result.next();
+            }
+        };
     }
 }
@@ -0,0 +1,138 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import com.sun.net.httpserver.HttpServer;
+import io.promagent.internal.jmx.PromagentCollectorRegistry;
+import io.prometheus.client.Counter;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BuiltInServerTest {
+
+    @Test
+    void testSlowClientDoesNotBlockScrapes() throws Exception {
+        HttpServer server = startServer();
+        int port = server.getAddress().getPort();
+        try (Socket slowClient = new Socket("127.0.0.1", port)) {
+            OutputStream out = slowClient.getOutputStream();
+            out.write("GET /metrics HTTP/1.1\r\nHost: localhost\r\n".getBytes(StandardCharsets.US_ASCII)); // incomplete request
+            out.flush();
+            assertTrue(scrape(port, "/metrics").contains("test_total 1.0"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testPartialScrape() throws Exception {
+        HttpServer server = startServer();
+        try {
+            String result = scrape(server.getAddress().getPort(), "/metrics?name%5B%5D=other_total");
+            assertTrue(result.contains("other_total 2.0"), result);
+            assertFalse(result.contains("test_total"), result);
+            result = scrape(server.getAddress().getPort(), "/metrics?name_prefix[]=test_");
+            assertTrue(result.contains("test_total 1.0"), result);
+            assertFalse(result.contains("other_total"), result);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testCachedAndUncachedBodiesMatch() throws Exception {
+        PromagentCollectorRegistry registry = newRegistry();
+        HttpServer uncached = startServer(registry, null);
+        HttpServer cached = startServer(registry, new ScrapeCache(registry, 1, TimeUnit.SECONDS));
+        try {
+            String uncachedBody = scrape(uncached.getAddress().getPort(), "/metrics");
+            String cachedBody = scrape(cached.getAddress().getPort(), "/metrics");
+            assertTrue(uncachedBody.startsWith("# Metrics will become visible when they are updated for the first time.\n"), uncachedBody);
+            assertEquals(uncachedBody, cachedBody);
+        } finally {
+            uncached.stop(0);
+            cached.stop(0);
+        }
+    }
+
+    private static HttpServer startServer() throws Exception {
+        return startServer(newRegistry(), null);
+    }
+
+    private static HttpServer startServer(PromagentCollectorRegistry registry, ScrapeCache scrapeCache) throws Exception {
+        Map<String, String> args = new HashMap<>();
+        args.put("host", "127.0.0.1");
+        args.put("port", "0");
+        return BuiltInServer.run(args, registry, scrapeCache);
+    }
+
+    private static PromagentCollectorRegistry newRegistry() {
+        PromagentCollectorRegistry registry = new PromagentCollectorRegistry();
+        Counter test = Counter.build("test_total", "test").create();
+        Counter other = Counter.build("other_total", "other").create();
+        registry.registerNoJmx(test);
+        registry.registerNoJmx(other);
+        test.inc();
+        other.inc(2);
+        return registry;
+    }
+
+    private static String scrape(int port, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(5000);
+        assertEquals(200, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream(); Scanner scanner = new Scanner(in, "UTF-8")) {
+            return scanner.useDelimiter("\\A").next();
+        }
+    }
+
+    @Test
+    void testCreateExecutor() {
+        assertEquals(4, ((ThreadPoolExecutor) BuiltInServer.createExecutor(null)).getMaximumPoolSize());
+        assertEquals(2, ((ThreadPoolExecutor) BuiltInServer.createExecutor("2")).getMaximumPoolSize());
+        assertThrows(RuntimeException.class, () -> BuiltInServer.createExecutor("0"));
+        assertThrows(RuntimeException.class, () -> BuiltInServer.createExecutor("many"));
+    }
+
+    @Test
+    void testVirtualThreads() throws Exception {
+        // Falls back to the default thread pool on JVMs without virtual threads.
+        Executor executor = BuiltInServer.createExecutor("virtual");
+        Thread[] thread = new Thread[1];
+        Runnable task = () -> thread[0] = Thread.currentThread();
+        executor.execute(task);
+        for (int i = 0; i < 100 && thread[0] == null; i++) {
+            Thread.sleep(10);
+        }
+        assertNotNull(thread[0]);
+        assertTrue(thread[0].isDaemon());
+    }
+}
@@ -0,0 +1,81 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+
+    private static final int MAX_FAILURES = 3;
+    private static final long WINDOW = 1000;
+    private static final long OPEN = 5000;
+
+    private long now = 0;
+    private CircuitBreaker circuitBreaker;
+
+    @BeforeEach
+    void setUp() {
+        circuitBreaker = new CircuitBreaker(Collections.singletonList(
+                new HookMetadata(0, "io.promagent.hooks.FailingHook", Collections.singletonList("java.sql.Statement"), Collections.emptyList())
+        ), MAX_FAILURES, WINDOW, OPEN, () -> now);
+    }
+
+    @Test
+    void testOpenAndRetry() {
+        assertTrue(circuitBreaker.isClosed(0));
+        circuitBreaker.recordFailure(0, new RuntimeException("expected exception 1"));
+        circuitBreaker.recordFailure(0, new RuntimeException("expected exception 2"));
+        assertTrue(circuitBreaker.isClosed(0));
+        now += WINDOW; // new window, the failures above are forgotten
+        circuitBreaker.recordFailure(0, new RuntimeException("expected exception 3"));
+        circuitBreaker.recordFailure(0, new RuntimeException("expected exception 4"));
+        assertTrue(circuitBreaker.isClosed(0));
+        circuitBreaker.recordFailure(0, new RuntimeException("expected exception 5"));
+        assertFalse(circuitBreaker.isClosed(0));
+
+        now += OPEN - 1;
+        assertFalse(circuitBreaker.isClosed(0));
+        now += 1;
+        assertTrue(circuitBreaker.isClosed(0));
+        // A single failure after the retry opens the circuit again.
+        circuitBreaker.recordFailure(0, new RuntimeException("expected exception 6"));
+        assertFalse(circuitBreaker.isClosed(0));
+
+        now += OPEN;
+        assertTrue(circuitBreaker.isClosed(0));
+        now += WINDOW; // no failures after the retry
+        circuitBreaker.recordFailure(0, new RuntimeException("expected exception 7"));
+        assertTrue(circuitBreaker.isClosed(0));
+
+        assertEquals(7, circuitBreaker.getErrorCount(0));
+    }
+
+    @Test
+    void testErrorsTotal() {
+        circuitBreaker.recordFailure(0, new RuntimeException("expected exception"));
+        CollectorRegistry registry = new CollectorRegistry();
+        registry.register(circuitBreaker);
+        String[] hook = {"hook"};
+        String[] failingHook = {"io.promagent.hooks.FailingHook"};
+        assertEquals(Double.valueOf(1), registry.getSampleValue("promagent_hook_errors_total", hook, failingHook));
+        assertEquals(Double.valueOf(0), registry.getSampleValue("promagent_hook_disabled", hook, failingHook));
+    }
+}
@@ -0,0 +1,121 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.promagent.internal.instrumentationtests.hooks.OnlyBeforeHook;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DispatchTableTest {
+
+    @Test
+    void testResolvedOncePerMethodAndClassLoader() throws Exception {
+        AtomicInteger nResolveCalls = new AtomicInteger();
+        DispatchTable dispatchTable = new DispatchTable(2, (interceptedClass, dispatchId, hookClassLoader) -> {
+            nResolveCalls.incrementAndGet();
+            return new HookDispatch[0];
+        });
+        int toString = 0;
+        int hashCode = 1;
+        ClassLoader loader1 = getClass().getClassLoader();
+        ClassLoader loader2 = new URLClassLoader(new URL[0], loader1);
+
+        HookDispatch[] result = dispatchTable.get(String.class, toString, loader1);
+        assertSame(result, dispatchTable.get(String.class, toString, loader1));
+        assertEquals(1, nResolveCalls.get());
+
+        dispatchTable.get(String.class, hashCode, loader1);
+        dispatchTable.get(Integer.class, toString, loader1);
+        dispatchTable.get(String.class, toString, loader2);
+        assertEquals(4, nResolveCalls.get());
+
+        assertSame(result, dispatchTable.get(String.class, toString, loader1));
+        assertEquals(4, nResolveCalls.get());
+    }
+
+    @Test
+    void testHooksLiveAsLongAsHookClassLoader() throws Exception {
+        AtomicInteger nResolveCalls = new AtomicInteger();
+        DispatchTable dispatchTable = new DispatchTable(1, (interceptedClass, dispatchId, hookClassLoader) -> {
+            nResolveCalls.incrementAndGet();
+            return new HookDispatch[]{newHookDispatch(hookClassLoader)};
+        });
+        ClassLoader hookClassLoader = new HookClassLoader();
+        Class<?> hookClass = dispatchTable.get(String.class, 0, hookClassLoader)[0].getHookClass();
+        assertSame(hookClassLoader, hookClass.getClassLoader());
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        // The entry is only weakly referenced from the table, but it is still alive because the hook class loader is alive.
+        assertSame(hookClass, dispatchTable.get(String.class, 0, hookClassLoader)[0].getHookClass());
+        assertEquals(1, nResolveCalls.get());
+    }
+
+    @Test
+    void testUndeployedHookClassLoaderIsCollected() throws Exception {
+        DispatchTable dispatchTable = new DispatchTable(1, (interceptedClass, dispatchId, hookClassLoader) -> new HookDispatch[]{newHookDispatch(hookClassLoader)});
+        // String is loaded by the bootstrap class loader, so its dispatch table outlives the deployment.
+        WeakReference<ClassLoader> undeployed = dispatchWithNewHookClassLoader(dispatchTable);
+        for (int i = 0; i < 100 && undeployed.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(undeployed.get());
+    }
+
+    private static WeakReference<ClassLoader> dispatchWithNewHookClassLoader(DispatchTable dispatchTable) {
+        ClassLoader hookClassLoader = new HookClassLoader();
+        assertEquals(1, dispatchTable.get(String.class, 0, hookClassLoader).length);
+        return new WeakReference<>(hookClassLoader);
+    }
+
+    private static HookDispatch newHookDispatch(ClassLoader hookClassLoader) {
+        try {
+            Class<?> hookClass = hookClassLoader.loadClass(OnlyBeforeHook.class.getName());
+            return new HookDispatch(0, hookClass, Collections.emptyList(), Collections.emptyList(), null, new Object());
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Like the PerDeploymentClassLoader, this loads its own copy of the hook class, and everything else through the parent.
+     */
+    private static class HookClassLoader extends URLClassLoader {
+
+        private HookClassLoader() {
+            super(new URL[]{OnlyBeforeHook.class.getProtectionDomain().getCodeSource().getLocation()}, DispatchTableTest.class.getClassLoader());
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!name.equals(OnlyBeforeHook.class.getName())) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> result = findLoadedClass(name);
+                return result != null ? result : findClass(name);
+            }
+        }
+    }
+}
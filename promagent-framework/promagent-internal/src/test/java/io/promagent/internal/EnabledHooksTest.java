@@ -0,0 +1,49 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EnabledHooksTest {
+
+    @Test
+    void testEnableAndDisable() {
+        EnabledHooks enabledHooks = new EnabledHooks(Arrays.asList(
+                new HookMetadata(0, "io.promagent.hooks.ServletHook", Collections.singletonList("javax.servlet.Servlet"), Collections.emptyList()),
+                new HookMetadata(1, "io.promagent.hooks.JdbcHook", Collections.singletonList("java.sql.Statement"), Collections.emptyList())
+        ), null);
+        assertEquals(Arrays.asList("io.promagent.hooks.JdbcHook", "io.promagent.hooks.ServletHook"), new ArrayList<>(enabledHooks.getHookClassNames()));
+        assertTrue(enabledHooks.isEnabled(0));
+        assertTrue(enabledHooks.isEnabled(1));
+
+        enabledHooks.setEnabled("io.promagent.hooks.JdbcHook", false);
+        assertTrue(enabledHooks.isEnabled(0));
+        assertFalse(enabledHooks.isEnabled(1));
+        assertFalse(enabledHooks.isEnabled("io.promagent.hooks.JdbcHook"));
+
+        enabledHooks.setEnabled("io.promagent.hooks.JdbcHook", false);
+        assertFalse(enabledHooks.isEnabled(1));
+        enabledHooks.setEnabled("io.promagent.hooks.JdbcHook", true);
+        assertTrue(enabledHooks.isEnabled(1));
+
+        assertThrows(IllegalArgumentException.class, () -> enabledHooks.setEnabled("io.promagent.hooks.UnknownHook", false));
+    }
+}
@@ -0,0 +1,220 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import io.prometheus.client.Summary;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static io.promagent.internal.ExpositionFormat.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpositionFormatTest {
+
+    private CollectorRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        registry = new CollectorRegistry();
+        Counter.build("requests_total", "Total \"requests\".").labelNames("path").register(registry).labels("/a\\b").inc(3);
+        Gauge.build("temperature", "Temperature.").register(registry).set(-1.5);
+        Histogram.build("duration_seconds", "Duration.").buckets(0.1, 1).register(registry).observe(0.5);
+        Summary.build("size_bytes", "Size.").quantile(0.5, 0.01).labelNames("method").register(registry).labels("GET").observe(42);
+    }
+
+    @Test
+    void testNegotiate() {
+        assertEquals(TEXT, negotiate(null));
+        assertEquals(TEXT, negotiate("text/plain"));
+        assertEquals(TEXT, negotiate("application/json"));
+        assertEquals(OPENMETRICS, negotiate("application/openmetrics-text;version=1.0.0,application/openmetrics-text;version=0.0.1;q=0.75,text/plain;version=0.0.4;q=0.5,*/*;q=0.1"));
+        assertEquals(PROTOBUF, negotiate("application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=delimited;q=0.7,text/plain;version=0.0.4;q=0.3"));
+        assertEquals(TEXT, negotiate("application/vnd.google.protobuf;proto=io.prometheus.client.MetricFamily;encoding=text"));
+        assertEquals(TEXT, negotiate("application/openmetrics-text;q=0.5, text/plain"));
+        assertEquals(TEXT, negotiate("application/openmetrics-text;q=0"));
+    }
+
+    @Test
+    void testOpenMetrics() throws IOException {
+        String result = new String(write(OPENMETRICS, false), StandardCharsets.UTF_8);
+        assertTrue(result.contains("# HELP requests Total \\\"requests\\\".\n# TYPE requests counter\nrequests_total{path=\"/a\\\\b\"} 3.0\n"), result);
+        assertTrue(result.contains("# TYPE temperature gauge\ntemperature -1.5\n"), result);
+        assertTrue(result.contains("# TYPE duration_seconds histogram\nduration_seconds_bucket{le=\"0.1\"} 0.0\n"), result);
+        assertTrue(result.contains("duration_seconds_bucket{le=\"+Inf\"} 1.0\nduration_seconds_count 1.0\nduration_seconds_sum 0.5\n"), result);
+        assertTrue(result.contains("size_bytes{method=\"GET\",quantile=\"0.5\"} 42.0\n"), result);
+        assertTrue(result.endsWith("\n# EOF\n"), result);
+    }
+
+    @Test
+    void testProtobuf() throws IOException {
+        Map<String, Message> families = new HashMap<>();
+        ByteBuffer in = ByteBuffer.wrap(write(PROTOBUF, false)).order(ByteOrder.LITTLE_ENDIAN);
+        while (in.hasRemaining()) {
+            int length = (int) readVarint(in);
+            Message family = new Message(slice(in, length));
+            families.put(family.string(1), family);
+        }
+        assertEquals(4, families.size());
+
+        Message counter = families.get("requests_total");
+        assertEquals("Total \"requests\".", counter.string(2));
+        assertEquals(0L, counter.varint(3));
+        Message labelPair = counter.message(4).message(1);
+        assertEquals("path", labelPair.string(1));
+        assertEquals("/a\\b", labelPair.string(2));
+        assertEquals(Double.valueOf(3), counter.message(4).message(3).fixed64(1));
+
+        Message gauge = families.get("temperature");
+        assertEquals(1L, gauge.varint(3));
+        assertEquals(Double.valueOf(-1.5), gauge.message(4).message(2).fixed64(1));
+
+        Message histogram = families.get("duration_seconds").message(4).message(7);
+        assertEquals(4L, families.get("duration_seconds").varint(3));
+        assertEquals(1L, histogram.varint(1));
+        assertEquals(Double.valueOf(0.5), histogram.fixed64(2));
+        List<Message> buckets = histogram.messages(3);
+        assertEquals(3, buckets.size());
+        assertEquals(Double.valueOf(0.1), buckets.get(0).fixed64(2));
+        assertEquals(0L, buckets.get(0).varint(1));
+        assertEquals(Double.valueOf(Double.POSITIVE_INFINITY), buckets.get(2).fixed64(2));
+        assertEquals(1L, buckets.get(2).varint(1));
+
+        Message summaryMetric = families.get("size_bytes").message(4);
+        assertEquals(2L, families.get("size_bytes").varint(3));
+        assertEquals(1, summaryMetric.messages(1).size()); // the quantile label is not a label of the metric
+        assertEquals("method", summaryMetric.message(1).string(1));
+        Message quantile = summaryMetric.message(4).message(3);
+        assertEquals(Double.valueOf(0.5), quantile.fixed64(1));
+        assertEquals(Double.valueOf(42), quantile.fixed64(2));
+    }
+
+    @Test
+    void testGzipProtobuf() throws IOException {
+        byte[] plain = write(PROTOBUF, false);
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(write(PROTOBUF, true)))) {
+            ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                unzipped.write(buffer, 0, n);
+            }
+            assertArrayEquals(plain, unzipped.toByteArray());
+        }
+    }
+
+    private byte[] write(ExpositionFormat format, boolean gzip) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ResponseWriter writer = ResponseWriter.acquire().open(out, gzip)) {
+            format.write(writer, registry.metricFamilySamples());
+        }
+        return out.toByteArray();
+    }
+
+    private static long readVarint(ByteBuffer in) {
+        long result = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer in, int length) {
+        ByteBuffer result = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+        result.limit(length);
+        in.position(in.position() + length);
+        return result;
+    }
+
+    /**
+     * Minimal protobuf decoder, just enough to check the fields written by {@link ProtobufFormat}.
+     */
+    private static class Message {
+
+        private final List<Integer> fields = new ArrayList<>();
+        private final List<Object> values = new ArrayList<>();
+
+        private Message(ByteBuffer in) {
+            while (in.hasRemaining()) {
+                long tag = readVarint(in);
+                fields.add((int) (tag >>> 3));
+                switch ((int) tag & 7) {
+                    case 0:
+                        values.add(readVarint(in));
+                        break;
+                    case 1:
+                        values.add(in.getDouble());
+                        break;
+                    case 2:
+                        values.add(slice(in, (int) readVarint(in)));
+                        break;
+                    default:
+                        fail("unexpected wire type in tag " + tag);
+                }
+            }
+        }
+
+        private Object get(int field) {
+            int index = fields.indexOf(field);
+            assertTrue(index >= 0, "field " + field + " not found");
+            return values.get(index);
+        }
+
+        private long varint(int field) {
+            return (Long) get(field);
+        }
+
+        private Double fixed64(int field) {
+            return (Double) get(field);
+        }
+
+        private String string(int field) {
+            ByteBuffer bytes = ((ByteBuffer) get(field)).duplicate();
+            return StandardCharsets.UTF_8.decode(bytes).toString();
+        }
+
+        private Message message(int field) {
+            return new Message(((ByteBuffer) get(field)).duplicate().order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        private List<Message> messages(int field) {
+            List<Message> result = new ArrayList<>();
+            for (int i = 0; i < fields.size(); i++) {
+                if (fields.get(i) == field) {
+                    result.add(new Message(((ByteBuffer) values.get(i)).duplicate().order(ByteOrder.LITTLE_ENDIAN)));
+                }
+            }
+            return result;
+        }
+    }
+}
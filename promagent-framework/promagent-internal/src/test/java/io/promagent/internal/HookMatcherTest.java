@@ -0,0 +1,75 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.promagent.internal.HookMetadata.MethodSignature;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HookMatcherTest {
+
+    private static final MethodSignature size = new MethodSignature("size", emptyList());
+    private static final MethodSignature get = new MethodSignature("get", singletonList("int"));
+
+    private static class MyList extends AbstractList<String> implements RandomAccess {
+
+        @Override
+        public String get(int index) {
+            return null;
+        }
+
+        @Override
+        public int size() {
+            return 0;
+        }
+    }
+
+    @Test
+    void testSuperClassesAndInterfaces() {
+        List<HookMetadata> hooks = Arrays.asList(
+                new HookMetadata(0, "CollectionHook", singletonList("java.util.Collection"), singletonList(size)),
+                new HookMetadata(1, "ListHook", Arrays.asList("java.util.AbstractList", "java.util.RandomAccess"), Arrays.asList(size, get)),
+                new HookMetadata(2, "MapHook", singletonList("java.util.Map"), singletonList(size)));
+        InstrumentedMethods instrumentedMethods = new InstrumentedMethods(hooks);
+        HookMatcher hookMatcher = new HookMatcher(hooks, instrumentedMethods);
+        int sizeId = instrumentedMethods.getDispatchId(size);
+        int getId = instrumentedMethods.getDispatchId(get);
+
+        assertEquals(bits(0, 1), hookMatcher.getHookIds(ArrayList.class, sizeId));
+        assertEquals(bits(1), hookMatcher.getHookIds(ArrayList.class, getId));
+        assertEquals(bits(0), hookMatcher.getHookIds(HashSet.class, sizeId));
+        assertEquals(bits(2), hookMatcher.getHookIds(TreeMap.class, sizeId));
+        assertEquals(bits(), hookMatcher.getHookIds(String.class, sizeId));
+        // MyList is loaded after the HookMatcher was created.
+        assertEquals(bits(0, 1), hookMatcher.getHookIds(MyList.class, sizeId));
+        assertEquals(bits(1), hookMatcher.getHookIds(MyList.class, getId));
+        // The result must be a copy, so that modifications don't affect the cached sets.
+        hookMatcher.getHookIds(ArrayList.class, sizeId).clear();
+        assertEquals(bits(0, 1), hookMatcher.getHookIds(ArrayList.class, sizeId));
+    }
+
+    private static BitSet bits(int... ids) {
+        BitSet result = new BitSet();
+        for (int id : ids) {
+            result.set(id);
+        }
+        return result;
+    }
+}
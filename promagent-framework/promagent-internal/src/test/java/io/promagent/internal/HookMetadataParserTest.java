@@ -105,6 +105,34 @@ class HookMetadataParserTest {
         Assertions.assertEquals(expected, result.first().toString());
     }
 
+    @Test
+    void testHookMethodUsage() throws IOException, ClassNotFoundException {
+        for (HookMetadata.MethodSignature method : parser.parse(className -> className.equals(ServletTestHook.class.getName())).first().getMethods()) {
+            Assertions.assertTrue(method.hasBefore());
+            Assertions.assertTrue(method.hasAfter());
+            Assertions.assertFalse(method.hasReturned());
+        }
+        for (HookMetadata.MethodSignature method : parser.parse(className -> className.equals(PrimitiveTypesTestHook.class.getName())).first().getMethods()) {
+            Assertions.assertTrue(method.hasBefore());
+            Assertions.assertFalse(method.hasAfter());
+            Assertions.assertFalse(method.hasReturned());
+        }
+        HookMetadata.MethodSignature div = parser.parse(className -> className.equals(ReturnedAndThrownTestHook.class.getName())).first().getMethods().first();
+        Assertions.assertFalse(div.hasBefore());
+        Assertions.assertTrue(div.hasAfter());
+        Assertions.assertTrue(div.hasReturned());
+    }
+
+    @Test
+    void testDenseIds() throws IOException, ClassNotFoundException {
+        SortedSet<HookMetadata> result = parser.parse(className -> className.startsWith(HookMetadataParserTest.class.getName() + "$"));
+        Assertions.assertEquals(3, result.size());
+        int expectedId = 0;
+        for (HookMetadata hookMetadata : result) {
+            Assertions.assertEquals(expectedId++, hookMetadata.getId());
+        }
+    }
+
     @Test
     void testNoHook() throws ClassNotFoundException, IOException {
         // Use HookMetadataParserTest as an example of a class that does not have any @Hook annotation.
@@ -0,0 +1,52 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.promagent.annotations.Returned;
+import io.promagent.annotations.Thrown;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import static io.promagent.internal.HookMethod.RETURNED;
+import static io.promagent.internal.HookMethod.THROWN;
+import static org.junit.jupiter.api.Assertions.*;
+
+class HookMethodTest {
+
+    private String captured;
+
+    public void after(String sql, @Returned int result, long n, @Thrown Throwable t) {
+        captured = sql + ", " + result + ", " + n + ", " + t;
+    }
+
+    @Test
+    void testLayout() throws Exception {
+        Method after = getClass().getMethod("after", String.class, int.class, long.class, Throwable.class);
+        assertArrayEquals(new int[]{0, RETURNED, 1, THROWN}, HookMethod.layoutOf(after));
+    }
+
+    @Test
+    void testInvoke() throws Exception {
+        Method after = getClass().getMethod("after", String.class, int.class, long.class, Throwable.class);
+        HookMethod hookMethod = HookMethod.of(after);
+        assertTrue(hookMethod.parameterTypesMatch(new HookMetadata.MethodSignature("intercepted", Arrays.asList("java.lang.String", "long"))));
+        assertFalse(hookMethod.parameterTypesMatch(new HookMetadata.MethodSignature("intercepted", Arrays.asList("java.lang.String", "int"))));
+        assertEquals(2, hookMethod.getArgumentCount());
+        hookMethod.invoke(this, new Object[]{"select", 3L}, 7, null);
+        assertEquals("select, 7, 3, null", captured);
+    }
+}
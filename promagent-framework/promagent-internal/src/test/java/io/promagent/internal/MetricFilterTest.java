@@ -0,0 +1,41 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricFilterTest {
+
+    @Test
+    void testFromQuery() {
+        assertTrue(MetricFilter.fromQuery(null).isEmpty());
+        assertTrue(MetricFilter.fromQuery("debug=true&name[]=").isEmpty());
+        MetricFilter filter = MetricFilter.fromQuery("name%5B%5D=http_requests_total&name[]=duration_seconds_bucket&name_prefix[]=jvm_&x=1");
+        assertFalse(filter.isEmpty());
+        assertTrue(filter.matches("http_requests_total"));
+        assertTrue(filter.matches("duration_seconds")); // by sample name
+        assertTrue(filter.matches("jvm_memory_bytes_used"));
+        assertTrue(filter.matches("http_requests")); // the OpenMetrics family name of http_requests_total
+        assertFalse(filter.matches("http"));
+        assertFalse(filter.matches("duration"));
+    }
+
+    @Test
+    void testAll() {
+        assertTrue(MetricFilter.ALL.matches("anything"));
+    }
+}
@@ -0,0 +1,115 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.promagent.internal.OverheadGovernor.Decision;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class OverheadGovernorTest {
+
+    private static final long INTERVAL = 1_000_000_000L;
+    private static final int N_PROCESSORS = 2;
+
+    private OverheadGovernor governor;
+
+    @BeforeEach
+    void setUp() {
+        governor = new OverheadGovernor(Arrays.asList(
+                new HookMetadata(0, "io.promagent.hooks.ExpensiveHook", Collections.singletonList("java.sql.Statement"), Collections.emptyList()),
+                new HookMetadata(1, "io.promagent.hooks.CheapHook", Collections.singletonList("java.sql.Statement"), Collections.emptyList())
+        ), 0.05, N_PROCESSORS);
+    }
+
+    @Test
+    void testThrottleDisableAndRecover() {
+        // 10% of the available CPU time is above the 5% budget
+        for (int throttle = 2; throttle <= OverheadGovernor.MAX_THROTTLE; throttle *= 2) {
+            runInterval(0.1, 0.01);
+            assertEquals(throttle, governor.getThrottle(0));
+            assertEquals(1, governor.getThrottle(1));
+        }
+        runInterval(0.1, 0.01);
+        assertEquals(0, governor.getThrottle(0));
+
+        for (int i = 1; i < OverheadGovernor.DISABLED_INTERVALS; i++) {
+            runInterval(0, 0.01);
+            assertEquals(0, governor.getThrottle(0));
+        }
+        runInterval(0, 0.01);
+        assertEquals(OverheadGovernor.MAX_THROTTLE, governor.getThrottle(0));
+
+        // 3% is within the budget, but not below half of the budget, so the throttle is kept
+        runInterval(0.03, 0.01);
+        assertEquals(OverheadGovernor.MAX_THROTTLE, governor.getThrottle(0));
+        for (int throttle = OverheadGovernor.MAX_THROTTLE / 2; throttle >= 1; throttle /= 2) {
+            runInterval(0.01, 0.01);
+            assertEquals(throttle, governor.getThrottle(0));
+        }
+        runInterval(0.01, 0.01);
+        assertEquals(1, governor.getThrottle(0));
+
+        assertEquals(10, governor.getDecisionCount(0, Decision.THROTTLE));
+        assertEquals(1, governor.getDecisionCount(0, Decision.DISABLE));
+        assertEquals(1, governor.getDecisionCount(0, Decision.ENABLE));
+        assertEquals(10, governor.getDecisionCount(0, Decision.RECOVER));
+        for (Decision decision : Decision.values()) {
+            assertEquals(0, governor.getDecisionCount(1, decision));
+        }
+    }
+
+    @Test
+    void testThrottleListener() {
+        List<String> changes = new ArrayList<>();
+        governor.setThrottleListener((hookId, throttle) -> changes.add(hookId + ":" + throttle));
+        runInterval(0.1, 0.01);
+        runInterval(0.1, 0.01);
+        runInterval(0.03, 0.01); // no decision
+        runInterval(0.01, 0.01);
+        assertEquals(Arrays.asList("0:2", "0:4", "0:2"), changes);
+    }
+
+    @Test
+    void testSelfMetrics() {
+        runInterval(0.1, 0.01);
+        CollectorRegistry registry = new CollectorRegistry();
+        registry.register(governor);
+        String[] hook = {"hook"};
+        String[] expensiveHook = {"io.promagent.hooks.ExpensiveHook"};
+        assertEquals(Double.valueOf(0.2), registry.getSampleValue("promagent_hook_overhead_seconds_total", hook, expensiveHook));
+        assertEquals(Double.valueOf(0.1), registry.getSampleValue("promagent_hook_overhead_ratio", hook, expensiveHook));
+        assertEquals(Double.valueOf(2), registry.getSampleValue("promagent_hook_throttle_factor", hook, expensiveHook));
+        assertEquals(Double.valueOf(1), registry.getSampleValue("promagent_hook_throttle_factor", hook, new String[]{"io.promagent.hooks.CheapHook"}));
+        assertEquals(Double.valueOf(1), registry.getSampleValue("promagent_hook_governor_decisions_total",
+                new String[]{"hook", "decision"}, new String[]{"io.promagent.hooks.ExpensiveHook", "throttle"}));
+    }
+
+    /**
+     * Simulate an interval where the hooks use the given shares of the available CPU time.
+     */
+    private void runInterval(double expensiveHookOverhead, double cheapHookOverhead) {
+        governor.record(0, (long) (expensiveHookOverhead * INTERVAL * N_PROCESSORS));
+        governor.record(1, (long) (cheapHookOverhead * INTERVAL * N_PROCESSORS));
+        governor.evaluate(INTERVAL);
+    }
+}
@@ -0,0 +1,136 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import com.sun.net.httpserver.Headers;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseWriterTest {
+
+    @Test
+    void testPlain() throws IOException {
+        String text = text();
+        ResponseWriter writer = new ResponseWriter();
+        for (int run = 0; run < 2; run++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            write(writer, out, false, text);
+            assertEquals(text, new String(out.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void testGzip() throws IOException {
+        String text = text();
+        ResponseWriter writer = new ResponseWriter();
+        for (int run = 0; run < 2; run++) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            write(writer, out, true, text);
+            assertTrue(out.size() < text.length() / 2);
+            assertEquals(text, gunzip(out.toByteArray()));
+        }
+    }
+
+    @Test
+    void testPool() throws IOException {
+        ResponseWriter writer = ResponseWriter.acquire();
+        assertNotSame(writer, ResponseWriter.acquire()); // in use
+        write(writer, new ByteArrayOutputStream(), true, "test");
+        assertSame(writer, ResponseWriter.acquire()); // returned to the pool when closed
+    }
+
+    @Test
+    void testPoolAfterFailedOpen() {
+        ResponseWriter writer = ResponseWriter.acquire();
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+        assertThrows(IOException.class, () -> writer.open(failing, true));
+        assertSame(writer, ResponseWriter.acquire()); // returned to the pool, though the caller never got it to close
+    }
+
+    @Test
+    void testReuseAfterFailure() throws IOException {
+        ResponseWriter writer = new ResponseWriter();
+        OutputStream failing = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("connection reset");
+            }
+        };
+        assertThrows(IOException.class, () -> write(writer, failing, true, text()));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(writer, out, true, "ok");
+        assertEquals("ok", gunzip(out.toByteArray()));
+    }
+
+    @Test
+    void testAcceptsGzip() {
+        assertTrue(BuiltInServer.acceptsGzip(headers("gzip")));
+        assertTrue(BuiltInServer.acceptsGzip(headers("deflate, GZIP;q=0.5")));
+        assertFalse(BuiltInServer.acceptsGzip(headers("gzip;q=0")));
+        assertFalse(BuiltInServer.acceptsGzip(headers("identity")));
+        assertFalse(BuiltInServer.acceptsGzip(new Headers()));
+    }
+
+    /**
+     * Multi-byte characters at all positions relative to the buffer boundaries, including surrogate pairs.
+     */
+    private static String text() {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; result.length() < 10 * ResponseWriter.BUFFER_SIZE; i++) {
+            result.append("http_requests_total{path=\"/café/😀\",status=\"").append(i).append("\"} 1.0\n");
+        }
+        return result.toString();
+    }
+
+    private static void write(ResponseWriter writer, OutputStream out, boolean gzip, String text) throws IOException {
+        try (ResponseWriter w = writer.open(out, gzip)) {
+            // mix the different write methods
+            w.write(text.charAt(0));
+            w.write(text.toCharArray(), 1, text.length() / 2);
+            w.write(text, text.length() / 2 + 1, text.length() - text.length() / 2 - 1);
+        }
+    }
+
+    private static String gunzip(byte[] compressed) throws IOException {
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                result.write(buffer, 0, n);
+            }
+            return new String(result.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static Headers headers(String acceptEncoding) {
+        Headers headers = new Headers();
+        headers.add("Accept-Encoding", acceptEncoding);
+        return headers;
+    }
+}
@@ -0,0 +1,130 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.promagent.agent.ClassLoaderCache;
+import io.promagent.hookcontext.MetricsStore;
+import io.promagent.internal.instrumentationtests.MethodCallCounter;
+import io.promagent.internal.instrumentationtests.classes.ToggledExample;
+import io.promagent.internal.instrumentationtests.hooks.ToggledHook;
+import io.promagent.internal.jmx.HookManager;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+import java.util.SortedSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Install the hooks with a real {@link Instrumentation}, like {@link Promagent#premain(String, Instrumentation)},
+ * and disable and enable a hook through the {@link HookManager} MBean.
+ */
+class RetransformationTest {
+
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    private ObjectName hookManagerName;
+    private final BytecodeCapture bytecodeCapture = new BytecodeCapture();
+    private Instrumentation instrumentation;
+    private ResettableClassFileTransformer transformer;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        instrumentation = ByteBuddyAgent.install();
+        SortedSet<HookMetadata> hookMetadata = new HookMetadataParser(Collections.singletonList(
+                Paths.get(ToggledHook.class.getProtectionDomain().getCodeSource().getLocation().toURI())))
+                .parse(className -> className.equals(ToggledHook.class.getName()));
+        EnabledHooks enabledHooks = new EnabledHooks(hookMetadata, instrumentation);
+        ClassLoaderCache classLoaderCache = Mockito.mock(ClassLoaderCache.class);
+        Mockito.when(classLoaderCache.currentClassLoader()).thenReturn(RetransformationTest.class.getClassLoader());
+        Delegator.init(hookMetadata, Mockito.mock(MetricsStore.class), classLoaderCache, null, new CircuitBreaker(hookMetadata), enabledHooks);
+        transformer = Promagent.installHooks(hookMetadata, enabledHooks, instrumentation);
+        instrumentation.addTransformer(bytecodeCapture, true); // added after the hooks' transformer, so it sees the transformed bytecode
+        hookManagerName = new ObjectName("io.promagent:type=hooks");
+        mBeanServer.registerMBean(new HookManager(enabledHooks), hookManagerName);
+        MethodCallCounter.reset();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        mBeanServer.unregisterMBean(hookManagerName);
+        instrumentation.removeTransformer(bytecodeCapture);
+        transformer.reset(instrumentation, AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
+    }
+
+    @Test
+    void testDisableAndEnable() throws Exception {
+        ToggledExample example = new ToggledExample();
+        assertTrue(bytecodeCapture.hasAdvice(), "advice should be added when the class is loaded");
+        example.call(1);
+        MethodCallCounter.assertNumCalls(1, ToggledHook.class, "before", 1);
+
+        setEnabled(false);
+        assertArrayEquals(new String[]{ToggledHook.class.getName()}, (String[]) mBeanServer.getAttribute(hookManagerName, "DisabledHooks"));
+        assertFalse(bytecodeCapture.hasAdvice(), "advice should be removed when the hook is disabled");
+        example.call(2);
+        MethodCallCounter.assertNumCalls(0, ToggledHook.class, "before", 2);
+
+        setEnabled(true);
+        assertEquals(0, ((String[]) mBeanServer.getAttribute(hookManagerName, "DisabledHooks")).length);
+        assertTrue(bytecodeCapture.hasAdvice(), "advice should be added again when the hook is enabled");
+        example.call(3);
+        MethodCallCounter.assertNumCalls(1, ToggledHook.class, "before", 3);
+    }
+
+    private void setEnabled(boolean enabled) throws Exception {
+        mBeanServer.invoke(hookManagerName, enabled ? "enable" : "disable", new Object[]{ToggledHook.class.getName()}, new String[]{String.class.getName()});
+    }
+
+    /**
+     * Remembers the bytecode of {@link ToggledExample} from the last time it was loaded or retransformed.
+     */
+    private static class BytecodeCapture implements ClassFileTransformer {
+
+        // not ToggledExample.class.getName(), because referencing the class while it is loaded would load it recursively
+        private static final String CLASS_NAME = "io/promagent/internal/instrumentationtests/classes/ToggledExample";
+
+        private volatile byte[] bytecode;
+
+        @Override
+        public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined, ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+            if (CLASS_NAME.equals(className)) {
+                bytecode = classfileBuffer;
+            }
+            return null;
+        }
+
+        /**
+         * The advice calls the DispatcherBridge, so the class name is in the constant pool if the advice is applied.
+         */
+        private boolean hasAdvice() {
+            assertNotNull(bytecode, "class was not retransformed");
+            return new String(bytecode, StandardCharsets.ISO_8859_1).contains("io/promagent/agent/DispatcherBridge");
+        }
+    }
+}
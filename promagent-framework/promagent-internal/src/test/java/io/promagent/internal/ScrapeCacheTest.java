@@ -0,0 +1,155 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.GaugeMetricFamily;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScrapeCacheTest {
+
+    private CollectorRegistry registry;
+    private CountingCollector collector;
+    private AtomicLong clock;
+
+    @BeforeEach
+    void setUp() {
+        registry = new CollectorRegistry();
+        collector = new CountingCollector();
+        registry.register(collector);
+        clock = new AtomicLong(0);
+    }
+
+    @Test
+    void testMaxAge() throws IOException {
+        ScrapeCache scrapeCache = new ScrapeCache(registry, TimeUnit.SECONDS.toNanos(1), clock::get);
+        assertTrue(scrapeCache.get().getText(ExpositionFormat.TEXT).contains("collections 1.0"));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+        assertTrue(scrapeCache.get().getText(ExpositionFormat.TEXT).contains("collections 1.0"));
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(scrapeCache.get().getText(ExpositionFormat.TEXT).contains("collections 2.0"));
+        assertEquals(2, collector.collections.get());
+    }
+
+    @Test
+    void testCoalesceConcurrentScrapes() throws Exception {
+        ScrapeCache scrapeCache = new ScrapeCache(registry, 0, clock::get);
+        collector.block = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] scrapes = new Future<?>[4];
+            scrapes[0] = executor.submit(scrapeCache::get);
+            collector.collecting.await(); // the first scrape is collecting
+            for (int i = 1; i < scrapes.length; i++) {
+                scrapes[i] = executor.submit(scrapeCache::get);
+            }
+            Thread.sleep(100); // let the other scrapes wait for the collection
+            collector.block.countDown();
+            for (Future<?> scrape : scrapes) {
+                assertSame(scrapes[0].get(), scrape.get());
+            }
+            assertEquals(1, collector.collections.get());
+            // with maxAge 0, the next scrape collects again
+            collector.block = null;
+            assertNotSame(scrapes[0].get(), scrapeCache.get());
+            assertEquals(2, collector.collections.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testFailedCollection() throws IOException {
+        ScrapeCache scrapeCache = new ScrapeCache(registry, TimeUnit.SECONDS.toNanos(1), clock::get);
+        collector.fail = true;
+        assertThrows(IllegalStateException.class, scrapeCache::get);
+        collector.fail = false;
+        assertTrue(scrapeCache.get().getText(ExpositionFormat.TEXT).contains("collections 2.0"));
+    }
+
+    @Test
+    void testGzip() throws IOException {
+        ScrapeCache.Payload payload = new ScrapeCache(registry, TimeUnit.SECONDS.toNanos(1), clock::get).get();
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        payload.writeTo(plain, ExpositionFormat.TEXT, false);
+        assertEquals(payload.size(ExpositionFormat.TEXT, false), plain.size());
+        assertEquals(payload.getText(ExpositionFormat.TEXT), new String(plain.toByteArray(), StandardCharsets.UTF_8));
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        payload.writeTo(gzipped, ExpositionFormat.TEXT, true);
+        assertEquals(payload.size(ExpositionFormat.TEXT, true), gzipped.size());
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped.toByteArray()))) {
+            ByteArrayOutputStream unzipped = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                unzipped.write(buffer, 0, n);
+            }
+            assertEquals(payload.getText(ExpositionFormat.TEXT), new String(unzipped.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void testFormats() throws IOException {
+        ScrapeCache.Payload payload = new ScrapeCache(registry, TimeUnit.SECONDS.toNanos(1), clock::get).get();
+        assertTrue(payload.getText(ExpositionFormat.TEXT).endsWith("collections 1.0\n"));
+        assertTrue(payload.getText(ExpositionFormat.OPENMETRICS).endsWith("collections 1.0\n# EOF\n"));
+        assertTrue(payload.size(ExpositionFormat.PROTOBUF, false) > 0);
+        assertEquals(1, collector.collections.get()); // all formats are rendered from the same collection
+    }
+
+    private static class CountingCollector extends Collector {
+
+        private final AtomicInteger collections = new AtomicInteger();
+        private final CountDownLatch collecting = new CountDownLatch(1);
+        private volatile CountDownLatch block; // null if collect() should not block
+        private volatile boolean fail = false;
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            int n = collections.incrementAndGet();
+            collecting.countDown();
+            if (fail) {
+                throw new IllegalStateException("expected exception");
+            }
+            if (block != null) {
+                try {
+                    block.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return Collections.singletonList(new GaugeMetricFamily("collections", "Number of collections.", n));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal.instrumentationtests;
+
+import io.promagent.internal.Delegator;
+import io.promagent.internal.HookMetadata;
+import io.promagent.internal.instrumentationtests.classes.IParameterTypesExample;
+import io.promagent.internal.instrumentationtests.classes.ParameterTypesExample;
+import io.promagent.internal.instrumentationtests.hooks.FailingHook;
+import io.promagent.internal.instrumentationtests.hooks.ZeroAllocationHook;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.SortedSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FailingHookTest {
+
+    private static final int MAX_FAILURES = 10; // CircuitBreaker.DEFAULT_MAX_FAILURES
+    private static final int N_CALLS = 2 * MAX_FAILURES;
+
+    private IParameterTypesExample parameterTypesExample;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        SortedSet<HookMetadata> hookMetadata = Util.loadHookMetadata(FailingHook.class, ZeroAllocationHook.class);
+        parameterTypesExample = Instrumentor.instrument(ParameterTypesExample.class, hookMetadata);
+        Delegator.init(hookMetadata, Util.mockMetricsStore(), Util.mockClassLoaderCache());
+        MethodCallCounter.reset();
+    }
+
+    /**
+     * Expected behavior:
+     * <ul>
+     * <li>The exception thrown by FailingHook does not affect the instrumented method or the other hook.
+     * <li>FailingHook's @After method is not called after its @Before method failed.
+     * <li>The failed call does not leave FailingHook marked as active, so the next call is not skipped as a nested call.
+     * <li>FailingHook is disabled after it failed MAX_FAILURES times.
+     * </ul>
+     */
+    @Test
+    void testFailingHook() {
+        long nBefore = ZeroAllocationHook.nBefore;
+        long nAfter = ZeroAllocationHook.nAfter;
+        for (int i = 0; i < N_CALLS; i++) {
+            parameterTypesExample.noParam();
+        }
+        MethodCallCounter.assertNumCalls(MAX_FAILURES, FailingHook.class, "before");
+        MethodCallCounter.assertNumCalls(0, FailingHook.class, "after");
+        assertEquals(N_CALLS, ZeroAllocationHook.nBefore - nBefore);
+        assertEquals(N_CALLS, ZeroAllocationHook.nAfter - nAfter);
+    }
+}
@@ -1,11 +1,12 @@
 package io.promagent.internal.instrumentationtests;
 
+import io.promagent.internal.AdviceArguments;
 import io.promagent.internal.HookMetadata;
+import io.promagent.internal.InstrumentedMethods;
 import io.promagent.internal.Promagent;
 import io.promagent.internal.PromagentAdvice;
 import io.promagent.internal.instrumentationtests.classes.ParameterTypesExample;
 import net.bytebuddy.ByteBuddy;
-import net.bytebuddy.asm.Advice;
 import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
 
 import java.util.Map;
@@ -29,7 +30,7 @@ public class Instrumentor {
         // For examples of byte buddy tests, see net.bytebuddy.asm.AdviceTest in the byte buddy source code.
         return new ByteBuddy()
                 .redefine(classToBeInstrumented)
-                .visit(Advice.to(PromagentAdvice.class).on(Promagent.matchAnyMethodIn(instrumentedMethods)))
+                .visit(AdviceArguments.withCustomMapping(new InstrumentedMethods(hookMetadata)).to(PromagentAdvice.class).on(Promagent.matchAnyMethodIn(instrumentedMethods)))
                 .make()
                 .load(Instrumentor.class.getClassLoader(), ClassLoadingStrategy.Default.CHILD_FIRST)
                 .getLoaded()
@@ -0,0 +1,63 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal.instrumentationtests;
+
+import io.promagent.hookcontext.MetricsStore;
+import io.promagent.internal.Delegator;
+import io.promagent.internal.HookMetadata;
+import io.promagent.internal.instrumentationtests.classes.IParameterTypesExample;
+import io.promagent.internal.instrumentationtests.classes.ParameterTypesExample;
+import io.promagent.internal.instrumentationtests.hooks.SampledHook;
+import io.prometheus.client.CollectorRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.SortedSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SamplingTest {
+
+    private static final int N_RUNS = 9;
+    private static final int N_RECURSIVE_CALLS = 2; // number of recursive calls within each run
+
+    private IParameterTypesExample parameterTypesExample;
+    private CollectorRegistry registry;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        SortedSet<HookMetadata> hookMetadata = Util.loadHookMetadata(SampledHook.class);
+        parameterTypesExample = Instrumentor.instrument(ParameterTypesExample.class, hookMetadata);
+        registry = new CollectorRegistry();
+        Delegator.init(hookMetadata, new MetricsStore(registry), Util.mockClassLoaderCache());
+        MethodCallCounter.reset();
+    }
+
+    /**
+     * Only one out of three runs should be sampled, including all nested calls within the sampled runs.
+     * The counter should be scaled up to the total number of calls.
+     */
+    @Test
+    void testSampleEvery() {
+        for (int i = 0; i < N_RUNS; i++) {
+            parameterTypesExample.recursive(N_RECURSIVE_CALLS);
+        }
+        for (int n = N_RECURSIVE_CALLS; n >= 0; n--) {
+            MethodCallCounter.assertNumCalls(N_RUNS / 3, SampledHook.class, "before", n);
+        }
+        MethodCallCounter.assertNumHookInstances(N_RUNS / 3, SampledHook.class);
+        assertEquals(Double.valueOf(N_RUNS * (N_RECURSIVE_CALLS + 1)), registry.getSampleValue("sampled_calls_total"));
+    }
+}
@@ -0,0 +1,86 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal.instrumentationtests;
+
+import io.promagent.agent.ClassLoaderCache;
+import io.promagent.hookcontext.MetricsStore;
+import io.promagent.internal.Delegator;
+import io.promagent.internal.HookMetadata;
+import io.promagent.internal.instrumentationtests.classes.IParameterTypesExample;
+import io.promagent.internal.instrumentationtests.classes.ParameterTypesExample;
+import io.promagent.internal.instrumentationtests.hooks.ScopePerThreadHook;
+import io.promagent.internal.instrumentationtests.hooks.ScopeSingletonHook;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.SortedSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+class ScopeTest {
+
+    private static final int N_THREADS = 3;
+    private static final int N_RUNS = 4; // number of runs within the same thread
+    private static final int N_RECURSIVE_CALLS = 2; // number of recursive calls within each run
+
+    private IParameterTypesExample parameterTypesExample;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        SortedSet<HookMetadata> hookMetadata = Util.loadHookMetadata(
+                ScopePerThreadHook.class,
+                ScopeSingletonHook.class
+        );
+        ClassLoaderCache classLoaderCache = Util.mockClassLoaderCache();
+        parameterTypesExample = Instrumentor.instrument(ParameterTypesExample.class, hookMetadata);
+        MetricsStore metricsStore = Util.mockMetricsStore();
+        Delegator.init(hookMetadata, metricsStore, classLoaderCache);
+        MethodCallCounter.reset();
+    }
+
+    /**
+     * Expected behavior:
+     * <ul>
+     * <li>For ScopePerThreadHook, each thread re-uses its own Hook instance for all runs,
+     *     and the @Reset method is called once at the end of each run.
+     * <li>For ScopeSingletonHook, all threads share the same Hook instance.
+     * </ul>
+     */
+    @Test
+    void testScope() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(N_THREADS);
+        for (int i = 0; i < N_THREADS; i++) {
+            executor.submit(() -> {
+                for (int j = 0; j < N_RUNS; j++) {
+                    parameterTypesExample.recursive(N_RECURSIVE_CALLS);
+                    Thread.sleep(100); // sleep a bit to make sure all threads are really running in parallel.
+                }
+                return null;
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+
+        for (int n = N_RECURSIVE_CALLS; n >= 0; n--) {
+            MethodCallCounter.assertNumCalls(N_THREADS * N_RUNS, ScopePerThreadHook.class, "before", n);
+            MethodCallCounter.assertNumCalls(N_THREADS * N_RUNS, ScopeSingletonHook.class, "before", n);
+        }
+        // The state of the per-thread Hook instance should be reset after each run, so each run sees all recursive calls.
+        MethodCallCounter.assertNumCalls(N_THREADS * N_RUNS, ScopePerThreadHook.class, "reset", N_RECURSIVE_CALLS + 1);
+        MethodCallCounter.assertNumHookInstances(N_THREADS, ScopePerThreadHook.class);
+        MethodCallCounter.assertNumHookInstances(1, ScopeSingletonHook.class);
+    }
+}
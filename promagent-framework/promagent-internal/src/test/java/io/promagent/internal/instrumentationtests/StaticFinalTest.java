@@ -11,14 +11,15 @@ import java.util.SortedSet;
 
 import io.promagent.agent.ClassLoaderCache;
 import io.promagent.hookcontext.MetricsStore;
+import io.promagent.internal.AdviceArguments;
 import io.promagent.internal.Delegator;
 import io.promagent.internal.HookMetadata;
+import io.promagent.internal.InstrumentedMethods;
 import io.promagent.internal.Promagent;
 import io.promagent.internal.PromagentAdvice;
 import io.promagent.internal.instrumentationtests.classes.StaticFinalExample;
 import io.promagent.internal.instrumentationtests.hooks.StaticFinalTestHook;
 import net.bytebuddy.ByteBuddy;
-import net.bytebuddy.asm.Advice;
 import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -40,7 +41,7 @@ class StaticFinalTest {
         Set<HookMetadata.MethodSignature> instrumentedMethods = instruments.get(StaticFinalExample.class.getName());
         example = new ByteBuddy()
                 .redefine(StaticFinalExample.class)
-                .visit(Advice.to(PromagentAdvice.class).on(Promagent.matchAnyMethodIn(instrumentedMethods)))
+                .visit(AdviceArguments.withCustomMapping(new InstrumentedMethods(hookMetadata)).to(PromagentAdvice.class).on(Promagent.matchAnyMethodIn(instrumentedMethods)))
                 .make()
                 .load(this.getClass().getClassLoader(), ClassLoadingStrategy.Default.CHILD_FIRST)
                 .getLoaded()
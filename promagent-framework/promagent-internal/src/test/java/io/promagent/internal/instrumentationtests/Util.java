@@ -7,10 +7,12 @@ import io.promagent.internal.HookMetadataParser;
 import org.mockito.Mockito;
 
 import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.SortedSet;
 import java.util.stream.Stream;
@@ -33,6 +35,16 @@ class Util {
         return mockedClassLoaderCache;
     }
 
+    /**
+     * A real ClassLoaderCache without any hook JARs, so hook classes are loaded from the test's class path.
+     * Unlike the mock, calling currentClassLoader() does not allocate any memory.
+     */
+    static ClassLoaderCache newClassLoaderCache() throws ReflectiveOperationException {
+        Constructor<ClassLoaderCache> constructor = ClassLoaderCache.class.getDeclaredConstructor(List.class, List.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(Collections.emptyList(), Collections.emptyList());
+    }
+
     static MetricsStore mockMetricsStore() {
         return Mockito.mock(MetricsStore.class);
     }
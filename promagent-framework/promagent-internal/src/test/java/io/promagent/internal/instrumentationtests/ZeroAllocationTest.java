@@ -0,0 +1,71 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal.instrumentationtests;
+
+import io.promagent.internal.Delegator;
+import io.promagent.internal.HookMetadata;
+import io.promagent.internal.instrumentationtests.classes.IParameterTypesExample;
+import io.promagent.internal.instrumentationtests.classes.ParameterTypesExample;
+import io.promagent.internal.instrumentationtests.hooks.ZeroAllocationHook;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.SortedSet;
+
+/**
+ * Intercepted calls should not allocate any memory once the hook instances and dispatch tables are initialized.
+ */
+class ZeroAllocationTest {
+
+    private static final int N_WARMUP = 100_000;
+    private static final int N_CALLS = 100_000;
+
+    private IParameterTypesExample parameterTypesExample;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        SortedSet<HookMetadata> hookMetadata = Util.loadHookMetadata(ZeroAllocationHook.class);
+        parameterTypesExample = Instrumentor.instrument(ParameterTypesExample.class, hookMetadata);
+        Delegator.init(hookMetadata, Util.mockMetricsStore(), Util.newClassLoaderCache());
+    }
+
+    @Test
+    void testZeroAllocation() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        Assumptions.assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        Assumptions.assumeTrue(allocationMXBean.isThreadAllocatedMemorySupported() && allocationMXBean.isThreadAllocatedMemoryEnabled());
+        long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < N_WARMUP; i++) {
+            parameterTypesExample.noParam();
+        }
+        long nCallsBefore = ZeroAllocationHook.nAfter;
+        // The measurement itself may allocate a few bytes, so we don't expect exactly zero.
+        // However, less than one byte per call means that intercepted calls do not allocate any objects.
+        long allocatedBefore = allocationMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < N_CALLS; i++) {
+            parameterTypesExample.noParam();
+        }
+        long allocated = allocationMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        Assertions.assertEquals(N_CALLS, ZeroAllocationHook.nAfter - nCallsBefore);
+        Assertions.assertTrue(allocated < N_CALLS, "Expected zero allocation per intercepted call, but " + N_CALLS + " calls allocated " + allocated + " bytes.");
+    }
+}
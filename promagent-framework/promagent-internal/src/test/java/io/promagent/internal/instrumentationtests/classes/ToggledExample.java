@@ -0,0 +1,10 @@
+package io.promagent.internal.instrumentationtests.classes;
+
+/**
+ * Instrumented by an agent installed at runtime, see RetransformationTest.
+ * Not used by any other test, so retransforming it doesn't affect the other tests.
+ */
+public class ToggledExample {
+
+    public void call(int n) {}
+}
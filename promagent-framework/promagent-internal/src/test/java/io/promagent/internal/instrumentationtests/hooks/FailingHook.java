@@ -0,0 +1,28 @@
+package io.promagent.internal.instrumentationtests.hooks;
+
+import io.promagent.annotations.After;
+import io.promagent.annotations.Before;
+import io.promagent.annotations.Hook;
+import io.promagent.hookcontext.MetricsStore;
+import io.promagent.internal.instrumentationtests.MethodCallCounter;
+
+/**
+ * Instrument {@link io.promagent.internal.instrumentationtests.classes.ParameterTypesExample#noParam()}
+ * with a Hook that always fails in its @Before method.
+ */
+@Hook(instruments = "io.promagent.internal.instrumentationtests.classes.ParameterTypesExample")
+public class FailingHook {
+
+    public FailingHook(MetricsStore m) {}
+
+    @Before(method = "noParam")
+    public void before() {
+        MethodCallCounter.observe(this, "before");
+        throw new IllegalStateException("expected exception thrown by " + getClass().getSimpleName());
+    }
+
+    @After(method = "noParam")
+    public void after() {
+        MethodCallCounter.observe(this, "after");
+    }
+}
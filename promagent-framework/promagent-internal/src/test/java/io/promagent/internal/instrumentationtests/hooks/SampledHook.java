@@ -0,0 +1,39 @@
+package io.promagent.internal.instrumentationtests.hooks;
+
+import io.promagent.annotations.Before;
+import io.promagent.annotations.Hook;
+import io.promagent.hookcontext.MetricDef;
+import io.promagent.hookcontext.MetricsStore;
+import io.promagent.internal.instrumentationtests.MethodCallCounter;
+import io.prometheus.client.Counter;
+
+/**
+ * Instrument {@link io.promagent.internal.instrumentationtests.classes.ParameterTypesExample#recursive(int)}
+ * for one out of three outer calls.
+ */
+@Hook(
+        instruments = "io.promagent.internal.instrumentationtests.classes.ParameterTypesExample",
+        skipNestedCalls = false,
+        sampleEvery = 3,
+        scaleSampledMetrics = true
+)
+public class SampledHook {
+
+    private final Counter calls;
+
+    public SampledHook(MetricsStore metricsStore) {
+        calls = metricsStore.createOrGet(new MetricDef<>(
+                "sampled_calls_total",
+                (name, registry) -> Counter.build()
+                        .name(name)
+                        .help("Number of calls to recursive().")
+                        .register(registry)
+        ));
+    }
+
+    @Before(method = "recursive")
+    public void before(int n) {
+        MethodCallCounter.observe(this, "before", n);
+        calls.inc();
+    }
+}
@@ -0,0 +1,41 @@
+package io.promagent.internal.instrumentationtests.hooks;
+
+import io.promagent.annotations.After;
+import io.promagent.annotations.Before;
+import io.promagent.annotations.Hook;
+import io.promagent.annotations.Reset;
+import io.promagent.hookcontext.MetricsStore;
+import io.promagent.internal.instrumentationtests.MethodCallCounter;
+
+/**
+ * Instrument {@link io.promagent.internal.instrumentationtests.classes.ParameterTypesExample#recursive(int)}
+ * with one Hook instance per thread.
+ */
+@Hook(
+        instruments = "io.promagent.internal.instrumentationtests.classes.ParameterTypesExample",
+        skipNestedCalls = false,
+        scope = Hook.Scope.PER_THREAD
+)
+public class ScopePerThreadHook {
+
+    private int depth = 0;
+
+    public ScopePerThreadHook(MetricsStore m) {}
+
+    @Before(method = "recursive")
+    public void before(int n) {
+        MethodCallCounter.observe(this, "before", n);
+        depth++;
+    }
+
+    @After(method = "recursive")
+    public void after(int n) {
+        MethodCallCounter.observe(this, "after", n);
+    }
+
+    @Reset
+    public void reset() {
+        MethodCallCounter.observe(this, "reset", depth);
+        depth = 0;
+    }
+}
@@ -0,0 +1,31 @@
+package io.promagent.internal.instrumentationtests.hooks;
+
+import io.promagent.annotations.After;
+import io.promagent.annotations.Before;
+import io.promagent.annotations.Hook;
+import io.promagent.hookcontext.MetricsStore;
+import io.promagent.internal.instrumentationtests.MethodCallCounter;
+
+/**
+ * Instrument {@link io.promagent.internal.instrumentationtests.classes.ParameterTypesExample#recursive(int)}
+ * with a single Hook instance shared by all threads.
+ */
+@Hook(
+        instruments = "io.promagent.internal.instrumentationtests.classes.ParameterTypesExample",
+        skipNestedCalls = false,
+        scope = Hook.Scope.SINGLETON
+)
+public class ScopeSingletonHook {
+
+    public ScopeSingletonHook(MetricsStore m) {}
+
+    @Before(method = "recursive")
+    public void before(int n) {
+        MethodCallCounter.observe(this, "before", n);
+    }
+
+    @After(method = "recursive")
+    public void after(int n) {
+        MethodCallCounter.observe(this, "after", n);
+    }
+}
@@ -0,0 +1,20 @@
+package io.promagent.internal.instrumentationtests.hooks;
+
+import io.promagent.annotations.Before;
+import io.promagent.annotations.Hook;
+import io.promagent.hookcontext.MetricsStore;
+import io.promagent.internal.instrumentationtests.MethodCallCounter;
+
+/**
+ * Test hook that is disabled and enabled again at runtime
+ */
+@Hook(instruments = "io.promagent.internal.instrumentationtests.classes.ToggledExample")
+public class ToggledHook {
+
+    public ToggledHook(MetricsStore m) {}
+
+    @Before(method = "call")
+    public void before(int n) {
+        MethodCallCounter.observe(this, "before", n);
+    }
+}
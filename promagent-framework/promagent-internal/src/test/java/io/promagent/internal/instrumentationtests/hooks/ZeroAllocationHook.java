@@ -0,0 +1,39 @@
+package io.promagent.internal.instrumentationtests.hooks;
+
+import io.promagent.annotations.After;
+import io.promagent.annotations.Before;
+import io.promagent.annotations.Hook;
+import io.promagent.annotations.Reset;
+import io.promagent.hookcontext.MetricsStore;
+
+/**
+ * Instrument {@link io.promagent.internal.instrumentationtests.classes.ParameterTypesExample#noParam()}
+ * without allocating any memory in the hook itself.
+ */
+@Hook(
+        instruments = "io.promagent.internal.instrumentationtests.classes.ParameterTypesExample",
+        scope = Hook.Scope.PER_THREAD
+)
+public class ZeroAllocationHook {
+
+    public static long nBefore = 0;
+    public static long nAfter = 0;
+    public static long nReset = 0;
+
+    public ZeroAllocationHook(MetricsStore m) {}
+
+    @Before(method = "noParam")
+    public void before() {
+        nBefore++;
+    }
+
+    @After(method = "noParam")
+    public void after() {
+        nAfter++;
+    }
+
+    @Reset
+    public void reset() {
+        nReset++;
+    }
+}
@@ -0,0 +1,122 @@
+// Copyright 2017 The Promagent Authors
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package io.promagent.internal.jmx;
+
+import io.promagent.hookcontext.MetricDef;
+import io.promagent.hookcontext.MetricsStore;
+import io.promagent.internal.MetricFilter;
+import io.prometheus.client.Collector;
+import io.prometheus.client.Counter;
+import io.prometheus.client.GaugeMetricFamily;
+import io.prometheus.client.Histogram;
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PromagentCollectorRegistryTest {
+
+    @Test
+    void testRegisterScaledMetric() throws Exception {
+        PromagentCollectorRegistry registry = new PromagentCollectorRegistry();
+        Counter counter = new MetricsStore(registry).scaledBy(10).createOrGet(new MetricDef<>("scaled_calls_total",
+                (name, r) -> Counter.build().name(name).help("Scaled calls.").register(r)));
+        counter.inc();
+        assertEquals(Double.valueOf(10), registry.getSampleValue("scaled_calls_total"));
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName("io.promagent:type=metrics,name=scaled_calls_total")));
+    }
+
+    @Test
+    void testFilter() {
+        PromagentCollectorRegistry registry = new PromagentCollectorRegistry();
+        registry.registerNoJmx(Counter.build("a_total", "a").create());
+        registry.registerNoJmx(Histogram.build("b_seconds", "b").create());
+        registry.registerNoJmx(new ExpensiveCollector());
+        AtomicInteger undescribedCollections = new AtomicInteger();
+        registry.registerNoJmx(new Collector() {
+            @Override
+            public List<MetricFamilySamples> collect() {
+                undescribedCollections.incrementAndGet();
+                return Collections.singletonList(new GaugeMetricFamily("undescribed", "Not describable.", 1));
+            }
+        });
+
+        MetricFilter filter = new MetricFilter(Collections.singletonList("b_seconds_bucket"), Collections.singletonList("a_"));
+        assertEquals(Arrays.asList("a_total", "b_seconds"), names(registry.metricFamilySamples(filter)));
+        assertEquals(1, undescribedCollections.get()); // collected, because its names are unknown, but filtered out
+
+        filter = new MetricFilter(Collections.singletonList("undescribed"), Collections.emptyList());
+        assertEquals(Collections.singletonList("undescribed"), names(registry.metricFamilySamples(filter)));
+
+        assertThrows(IllegalStateException.class, () -> names(registry.metricFamilySamples(MetricFilter.ALL)));
+    }
+
+    /**
+     * Collectors like the JmxCollector are Describable, but describe an empty list because their families are only known when collected.
+     */
+    @Test
+    void testFilterEmptyDescribe() {
+        PromagentCollectorRegistry registry = new PromagentCollectorRegistry();
+        registry.registerNoJmx(new EmptyDescribeCollector());
+
+        MetricFilter filter = new MetricFilter(Collections.emptyList(), Collections.singletonList("jvm_"));
+        assertEquals(Collections.singletonList("jvm_threads"), names(registry.metricFamilySamples(filter)));
+
+        filter = new MetricFilter(Collections.singletonList("other"), Collections.emptyList());
+        assertEquals(Collections.emptyList(), names(registry.metricFamilySamples(filter)));
+    }
+
+    private static List<String> names(Enumeration<Collector.MetricFamilySamples> mfs) {
+        List<String> result = new ArrayList<>();
+        while (mfs.hasMoreElements()) {
+            result.add(mfs.nextElement().name);
+        }
+        return result;
+    }
+
+    private static class ExpensiveCollector extends Collector implements Collector.Describable {
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            throw new IllegalStateException("must not be collected when it isn't selected");
+        }
+
+        @Override
+        public List<MetricFamilySamples> describe() {
+            return Collections.singletonList(new GaugeMetricFamily("expensive", "Expensive to collect.", 0));
+        }
+    }
+
+    private static class EmptyDescribeCollector extends Collector implements Collector.Describable {
+
+        @Override
+        public List<MetricFamilySamples> collect() {
+            return Collections.singletonList(new GaugeMetricFamily("jvm_threads", "Number of threads.", 12));
+        }
+
+        @Override
+        public List<MetricFamilySamples> describe() {
+            return Collections.emptyList();
+        }
+    }
+}